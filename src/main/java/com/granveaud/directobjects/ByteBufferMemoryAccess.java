@@ -0,0 +1,291 @@
+package com.granveaud.directobjects;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MemoryAccess which only uses public APIs. Memory blocks are direct ByteBuffers and an address is the block id
+ * in the high 32 bits and the offset in the block in the low 32 bits, so blocks are limited to 2GB.
+ *
+ * Freed memory is released when the ByteBuffer is garbage collected. Atomic operations are only atomic between
+ * threads of the same JVM.
+ */
+final class ByteBufferMemoryAccess implements MemoryAccess {
+    // blocks are set and read with volatile semantics: a block registered by a thread is seen by the others
+    private volatile AtomicReferenceArray<ByteBuffer> blocks = new AtomicReferenceArray<ByteBuffer>(16);
+
+    // ids of free blocks
+    private int[] freeIds = new int[16];
+    private int freeCount;
+    private int nextId = 1; // 0 is the null address
+
+    private static int getId(long address) {
+        return (int) (address >>> 32);
+    }
+
+    private static int getOffset(long address) {
+        return (int) address;
+    }
+
+    private ByteBuffer getBlock(long address) {
+        ByteBuffer block = blocks.get(getId(address));
+        if (block == null) {
+            throw new IllegalArgumentException("Invalid address " + Long.toHexString(address));
+        }
+        return block;
+    }
+
+    // buffer positioned at address, with size bytes remaining
+    private ByteBuffer getBuffer(long address, long size) {
+        ByteBuffer buffer = getBlock(address).duplicate().order(ByteOrder.nativeOrder());
+        buffer.limit(getOffset(address) + (int) size).position(getOffset(address));
+        return buffer;
+    }
+
+    private synchronized long register(ByteBuffer block) {
+        int id;
+        if (freeCount > 0) {
+            id = freeIds[--freeCount];
+        } else {
+            id = nextId++;
+            if (id == blocks.length()) {
+                AtomicReferenceArray<ByteBuffer> newBlocks = new AtomicReferenceArray<ByteBuffer>(blocks.length() * 2);
+                for (int i = 0; i < id; i++) {
+                    newBlocks.set(i, blocks.get(i));
+                }
+                blocks = newBlocks;
+            }
+        }
+
+        blocks.set(id, block.order(ByteOrder.nativeOrder()));
+        return (long) id << 32;
+    }
+
+    private synchronized void unregister(long address) {
+        int id = getId(address);
+        if (blocks.get(id) == null) return;
+
+        blocks.set(id, null);
+        if (freeCount == freeIds.length) {
+            freeIds = Arrays.copyOf(freeIds, freeIds.length * 2);
+        }
+        freeIds[freeCount++] = id;
+    }
+
+    @Override
+    public long getAddress(Buffer buffer) {
+        if (!(buffer instanceof ByteBuffer) || !buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer is not a direct ByteBuffer");
+        }
+
+        ByteBuffer block = ((ByteBuffer) buffer).duplicate();
+        block.clear();
+        return register(block);
+    }
+
+    @Override
+    public void releaseAddress(long address) {
+        unregister(address);
+    }
+
+    @Override
+    public ByteBuffer wrap(long address, int size) {
+        return getBuffer(address, size).slice();
+    }
+
+    @Override
+    public long allocate(long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot allocate more than 2GB: " + size);
+        }
+        return register(ByteBuffer.allocateDirect((int) size));
+    }
+
+    @Override
+    public long reallocate(long address, long size) {
+        long newAddress = allocate(size);
+        if (address != 0) {
+            copyMemory(address, newAddress, Math.min(size, getBlock(address).capacity() - getOffset(address)));
+            free(address);
+        }
+        return newAddress;
+    }
+
+    @Override
+    public void free(long address) {
+        unregister(address);
+    }
+
+    @Override
+    public void setMemory(long address, long size, byte value) {
+        ByteBuffer buffer = getBuffer(address, size);
+
+        byte[] chunk = new byte[(int) Math.min(size, 4096)];
+        Arrays.fill(chunk, value);
+        while (buffer.hasRemaining()) {
+            buffer.put(chunk, 0, Math.min(chunk.length, buffer.remaining()));
+        }
+    }
+
+    @Override
+    public void copyMemory(long srcAddress, long destAddress, long size) {
+        getBuffer(destAddress, size).put(getBuffer(srcAddress, size));
+    }
+
+    @Override
+    public byte getByte(long address) {
+        return getBlock(address).get(getOffset(address));
+    }
+
+    @Override
+    public void putByte(long address, byte value) {
+        getBlock(address).put(getOffset(address), value);
+    }
+
+    @Override
+    public short getShort(long address) {
+        return getBlock(address).getShort(getOffset(address));
+    }
+
+    @Override
+    public void putShort(long address, short value) {
+        getBlock(address).putShort(getOffset(address), value);
+    }
+
+    @Override
+    public char getChar(long address) {
+        return getBlock(address).getChar(getOffset(address));
+    }
+
+    @Override
+    public void putChar(long address, char value) {
+        getBlock(address).putChar(getOffset(address), value);
+    }
+
+    @Override
+    public int getInt(long address) {
+        return getBlock(address).getInt(getOffset(address));
+    }
+
+    @Override
+    public void putInt(long address, int value) {
+        getBlock(address).putInt(getOffset(address), value);
+    }
+
+    @Override
+    public long getLong(long address) {
+        return getBlock(address).getLong(getOffset(address));
+    }
+
+    @Override
+    public void putLong(long address, long value) {
+        getBlock(address).putLong(getOffset(address), value);
+    }
+
+    @Override
+    public float getFloat(long address) {
+        return getBlock(address).getFloat(getOffset(address));
+    }
+
+    @Override
+    public void putFloat(long address, float value) {
+        getBlock(address).putFloat(getOffset(address), value);
+    }
+
+    @Override
+    public double getDouble(long address) {
+        return getBlock(address).getDouble(getOffset(address));
+    }
+
+    @Override
+    public void putDouble(long address, double value) {
+        getBlock(address).putDouble(getOffset(address), value);
+    }
+
+    // no atomic operations on ByteBuffers before Java 9: use the block as a lock
+
+    @Override
+    public long getLongVolatile(long address) {
+        ByteBuffer block = getBlock(address);
+        synchronized (block) {
+            return block.getLong(getOffset(address));
+        }
+    }
+
+    @Override
+    public void putLongVolatile(long address, long value) {
+        ByteBuffer block = getBlock(address);
+        synchronized (block) {
+            block.putLong(getOffset(address), value);
+        }
+    }
+
+    @Override
+    public void putOrderedLong(long address, long value) {
+        putLongVolatile(address, value);
+    }
+
+    @Override
+    public boolean compareAndSwapLong(long address, long expected, long value) {
+        ByteBuffer block = getBlock(address);
+        synchronized (block) {
+            if (block.getLong(getOffset(address)) != expected) return false;
+
+            block.putLong(getOffset(address), value);
+            return true;
+        }
+    }
+
+    @Override
+    public void getBytes(long address, byte[] values, int off, int len) {
+        getBuffer(address, len).get(values, off, len);
+    }
+
+    @Override
+    public void putBytes(long address, byte[] values, int off, int len) {
+        getBuffer(address, len).put(values, off, len);
+    }
+
+    @Override
+    public void getInts(long address, int[] values, int off, int len) {
+        getBuffer(address, (long) len << 2).asIntBuffer().get(values, off, len);
+    }
+
+    @Override
+    public void putInts(long address, int[] values, int off, int len) {
+        getBuffer(address, (long) len << 2).asIntBuffer().put(values, off, len);
+    }
+
+    @Override
+    public void getLongs(long address, long[] values, int off, int len) {
+        getBuffer(address, (long) len << 3).asLongBuffer().get(values, off, len);
+    }
+
+    @Override
+    public void putLongs(long address, long[] values, int off, int len) {
+        getBuffer(address, (long) len << 3).asLongBuffer().put(values, off, len);
+    }
+
+    @Override
+    public void getFloats(long address, float[] values, int off, int len) {
+        getBuffer(address, (long) len << 2).asFloatBuffer().get(values, off, len);
+    }
+
+    @Override
+    public void putFloats(long address, float[] values, int off, int len) {
+        getBuffer(address, (long) len << 2).asFloatBuffer().put(values, off, len);
+    }
+
+    @Override
+    public void getDoubles(long address, double[] values, int off, int len) {
+        getBuffer(address, (long) len << 3).asDoubleBuffer().get(values, off, len);
+    }
+
+    @Override
+    public void putDoubles(long address, double[] values, int off, int len) {
+        getBuffer(address, (long) len << 3).asDoubleBuffer().put(values, off, len);
+    }
+}
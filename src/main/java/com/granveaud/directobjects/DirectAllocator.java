@@ -0,0 +1,37 @@
+package com.granveaud.directobjects;
+
+/**
+ * Allocator of the memory blocks of DirectObjectPointers. Addresses are used with the MemoryAccess backend, so an
+ * allocator must return memory which is accessible through it.
+ */
+public interface DirectAllocator {
+
+    /**
+     * Default allocator: each block is allocated with the MemoryAccess backend (malloc for Unsafe).
+     */
+    DirectAllocator NATIVE = new DirectAllocator() {
+        @Override
+        public long allocate(long size) {
+            return Utils.MEMORY.allocate(size);
+        }
+
+        @Override
+        public long reallocate(long address, long size) {
+            return Utils.MEMORY.reallocate(address, size);
+        }
+
+        @Override
+        public void free(long address) {
+            Utils.MEMORY.free(address);
+        }
+    };
+
+    long allocate(long size);
+
+    /**
+     * @return address of a block of size bytes with the content of the block at address, which may be moved
+     */
+    long reallocate(long address, long size);
+
+    void free(long address);
+}
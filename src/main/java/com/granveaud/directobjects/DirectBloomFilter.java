@@ -0,0 +1,227 @@
+package com.granveaud.directobjects;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Bloom filter stored in native memory, to skip lookups of absent keys. It is a blocked filter: all the bits of a key
+ * are in the same 64-byte block, so a lookup reads a single cache line.
+ *
+ * add can be called concurrently (bits are set with compare and swap) and mightContain doesn't lock. Keys can't be
+ * removed: rebuild the filter when many keys have been removed.
+ *
+ * Snapshot format: int magic, int number of hashes, long number of blocks (in the byte order of the writer), then
+ * the blocks.
+ */
+public class DirectBloomFilter {
+    private static final int MAGIC = 0x44424C4D; // DBLM
+    private static final int HEADER_SIZE = 16;
+
+    private static final int BLOCK_SIZE = 64;
+    private static final int BLOCK_BITS_SHIFT = 9; // 512 bits per block
+    private static final int MAX_HASH_COUNT = 16;
+
+    // size of the chunks written or read at once
+    private static final int IO_CHUNK_SIZE = 1 << 30;
+
+    private final long blockCount;
+    private final int hashCount;
+
+    private volatile long rawAddress; // 0 once freed
+    private final long address; // aligned on BLOCK_SIZE
+
+    /**
+     * @param expectedInsertions number of keys which will be added
+     * @param falsePositiveRate probability that mightContain returns true for an absent key, once all keys are added
+     */
+    public DirectBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        this(getBlockCount(expectedInsertions, falsePositiveRate), getHashCount(expectedInsertions, falsePositiveRate));
+    }
+
+    private DirectBloomFilter(long blockCount, int hashCount) {
+        this.blockCount = blockCount;
+        this.hashCount = hashCount;
+
+        long size = blockCount * BLOCK_SIZE;
+        rawAddress = Utils.MEMORY.allocate(size + BLOCK_SIZE);
+        address = (rawAddress + BLOCK_SIZE - 1) & -BLOCK_SIZE;
+        Utils.MEMORY.setMemory(address, size, (byte) 0);
+    }
+
+    // optimal number of bits: -n * ln(p) / ln(2)^2
+    private static long getBitCount(long expectedInsertions, double falsePositiveRate) {
+        if (expectedInsertions <= 0 || falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("Invalid expected insertions " + expectedInsertions + " or false positive rate " + falsePositiveRate);
+        }
+        return (long) Math.ceil(-expectedInsertions * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2)));
+    }
+
+    private static long getBlockCount(long expectedInsertions, double falsePositiveRate) {
+        return Math.max(1, (getBitCount(expectedInsertions, falsePositiveRate) + (1 << BLOCK_BITS_SHIFT) - 1) >>> BLOCK_BITS_SHIFT);
+    }
+
+    // optimal number of hashes: bits / n * ln(2)
+    private static int getHashCount(long expectedInsertions, double falsePositiveRate) {
+        double bitsPerKey = (double) getBitCount(expectedInsertions, falsePositiveRate) / expectedInsertions;
+        return (int) Math.max(1, Math.min(MAX_HASH_COUNT, Math.round(bitsPerKey * Math.log(2))));
+    }
+
+    // murmur3 finalizer
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return key;
+    }
+
+    private long getBlockAddress(long hash) {
+        // high bits of the hash select the block, the bits in the block come from the whole hash
+        long block = ((hash >>> 32) * blockCount) >>> 32;
+        return address + block * BLOCK_SIZE;
+    }
+
+    public void add(long key) {
+        checkNotFreed();
+
+        long hash = mix(key);
+        long block = getBlockAddress(hash);
+
+        long x = hash;
+        for (int i = 0; i < hashCount; i++) {
+            x *= 0x9E3779B97F4A7C15L;
+            int bit = (int) (x >>> (64 - BLOCK_BITS_SHIFT));
+            long wordAddress = block + ((bit >>> 6) << 3);
+            long mask = 1L << bit;
+
+            long word = Utils.MEMORY.getLong(wordAddress);
+            while ((word & mask) == 0 && !Utils.MEMORY.compareAndSwapLong(wordAddress, word, word | mask)) {
+                word = Utils.MEMORY.getLongVolatile(wordAddress);
+            }
+        }
+    }
+
+    /**
+     * @return false if key has never been added, true if it has probably been added
+     */
+    public boolean mightContain(long key) {
+        checkNotFreed();
+
+        long hash = mix(key);
+        long block = getBlockAddress(hash);
+
+        long x = hash;
+        for (int i = 0; i < hashCount; i++) {
+            x *= 0x9E3779B97F4A7C15L;
+            int bit = (int) (x >>> (64 - BLOCK_BITS_SHIFT));
+            if ((Utils.MEMORY.getLong(block + ((bit >>> 6) << 3)) & (1L << bit)) == 0) return false;
+        }
+
+        return true;
+    }
+
+    public void clear() {
+        checkNotFreed();
+        Utils.MEMORY.setMemory(address, blockCount * BLOCK_SIZE, (byte) 0);
+    }
+
+    public long getBitCount() {
+        return blockCount << BLOCK_BITS_SHIFT;
+    }
+
+    public int getHashCount() {
+        return hashCount;
+    }
+
+    // the filter of a closed DirectLogStore is freed while callers may still hold it
+    private void checkNotFreed() {
+        if (rawAddress == 0) throw new IllegalStateException("Bloom filter is freed");
+    }
+
+    public void free() {
+        if (rawAddress != 0) {
+            Utils.MEMORY.free(rawAddress);
+            rawAddress = 0;
+        }
+    }
+
+    /**
+     * Write the filter at the position of the channel.
+     */
+    public void write(FileChannel fc) throws IOException {
+        checkNotFreed();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(hashCount).putLong(blockCount).flip();
+        while (header.hasRemaining()) {
+            fc.write(header);
+        }
+
+        long size = blockCount * BLOCK_SIZE;
+        for (long offset = 0; offset < size; offset += IO_CHUNK_SIZE) {
+            ByteBuffer buffer = Utils.MEMORY.wrap(address + offset, (int) Math.min(IO_CHUNK_SIZE, size - offset));
+            while (buffer.hasRemaining()) {
+                fc.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Read a filter written by write at the position of the channel, possibly on a host with another byte order. It
+     * can be used with DirectLogStore.attachBloomFilter.
+     */
+    public static DirectBloomFilter read(FileChannel fc) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        readFully(fc, header);
+        header.flip();
+
+        boolean swapBytes = false;
+        int magic = header.getInt();
+        if (magic == Integer.reverseBytes(MAGIC)) {
+            swapBytes = true;
+            header.order(ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        } else if (magic != MAGIC) {
+            throw new IOException("Invalid Bloom filter header " + Integer.toHexString(magic));
+        }
+        int hashCount = header.getInt();
+        long blockCount = header.getLong();
+
+        // don't trust the header: a corrupt file must not allocate any amount of memory or disable the filter
+        if (hashCount < 1 || hashCount > MAX_HASH_COUNT) {
+            throw new IOException("Invalid Bloom filter hash count " + hashCount);
+        }
+        if (blockCount <= 0 || blockCount > (fc.size() - fc.position()) / BLOCK_SIZE) {
+            throw new IOException("Invalid Bloom filter block count " + blockCount + " for " + (fc.size() - fc.position()) + " remaining bytes");
+        }
+
+        DirectBloomFilter filter = new DirectBloomFilter(blockCount, hashCount);
+        try {
+            long size = blockCount * BLOCK_SIZE;
+            for (long offset = 0; offset < size; offset += IO_CHUNK_SIZE) {
+                readFully(fc, Utils.MEMORY.wrap(filter.address + offset, (int) Math.min(IO_CHUNK_SIZE, size - offset)));
+            }
+
+            if (swapBytes) {
+                for (long offset = 0; offset < size; offset += 8) {
+                    Utils.MEMORY.putLong(filter.address + offset, Long.reverseBytes(Utils.MEMORY.getLong(filter.address + offset)));
+                }
+            }
+        } catch (IOException e) {
+            filter.free();
+            throw e;
+        }
+
+        return filter;
+    }
+
+    private static void readFully(FileChannel fc, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer) < 0) {
+                throw new IOException("Unexpected end of file");
+            }
+        }
+    }
+}
@@ -0,0 +1,326 @@
+package com.granveaud.directobjects;
+
+/**
+ * Append-only store of beans in columns: each fixed-width field of the layout is stored in its own contiguous
+ * native array, so a scan of one field reads only the memory of that field. The rest of the serialized bean
+ * (values before and after the layout block) is stored in a separate area and used only to rebuild whole beans.
+ *
+ * Beans must follow the DirectLayout convention: serialize calls doContext.startLayout(layout), then writes the
+ * fixed-width fields with put...Field. Values can be written before the block (e.g. putVersion) and after it.
+ *
+ * Columns are in native byte order. Aggregates (sum...) are tight loops over a column and bulk reads (readInts...)
+ * copy a range of a column in a Java array for custom loops which the JIT can vectorize.
+ *
+ * This class is not thread-safe.
+ */
+public class DirectColumnStore<V extends DirectObject> {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final DirectLayout layout;
+
+    // one array per field of the layout
+    private final long[] columns;
+
+    // start offset of the variable part of each row in tailArea, and offset of the layout block in each row (the
+    // variable part is the bytes before the block followed by the bytes after it)
+    private long tailOffsets;
+    private long layoutOffsets;
+    private long tailArea;
+    private long tailCapacity;
+    private long tailSize;
+
+    private int capacity;
+    private int size;
+
+    // buffer where a bean is serialized before being split in columns
+    private long rowBuffer;
+    private int rowBufferCapacity;
+    private final DirectObjectView rowView = new DirectObjectView();
+
+    public DirectColumnStore(DirectLayout layout) {
+        this(layout, INITIAL_CAPACITY);
+    }
+
+    public DirectColumnStore(DirectLayout layout, int initialCapacity) {
+        this.layout = layout;
+        this.capacity = Math.max(1, initialCapacity);
+
+        columns = new long[layout.getFieldCount()];
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = Utils.MEMORY.allocate((long) capacity * layout.getType(i).getSize());
+        }
+        tailOffsets = Utils.MEMORY.allocate((long) capacity * 8);
+        layoutOffsets = Utils.MEMORY.allocate((long) capacity * 4);
+
+        tailCapacity = 1024;
+        tailArea = Utils.MEMORY.allocate(tailCapacity);
+
+        rowBufferCapacity = 4 + layout.getSize() + 256;
+        rowBuffer = Utils.MEMORY.allocate(rowBufferCapacity);
+    }
+
+    public DirectLayout getLayout() {
+        return layout;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Append a bean.
+     *
+     * @return row of the bean
+     */
+    public int add(V bean) {
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        int objSize = bean.getSerializedSize(doContext);
+        if (objSize < layout.getSize()) {
+            throw new IllegalArgumentException("Serialized size " + objSize + " is smaller than the layout size " + layout.getSize());
+        }
+        ensureRowBufferCapacity(objSize + 4);
+        Utils.MEMORY.putInt(rowBuffer, objSize);
+        rowView.moveTo(rowBuffer).updateFromBean(bean, doContext);
+
+        int layoutOffset = doContext.getLayoutOffset();
+        if (layoutOffset < 0) {
+            throw new IllegalArgumentException("Bean " + bean.getClass().getName() + " doesn't call startLayout in serialize");
+        }
+
+        if (size == capacity) grow();
+        int row = size;
+
+        // split the layout block in columns
+        long layoutAddress = rowBuffer + 4 + layoutOffset;
+        for (int i = 0; i < columns.length; i++) {
+            int fieldSize = layout.getType(i).getSize();
+            Utils.MEMORY.copyMemory(layoutAddress + layout.getOffset(i), columns[i] + (long) row * fieldSize, fieldSize);
+        }
+
+        // then the variable part: bytes before and after the block
+        int tailLength = objSize - layout.getSize();
+        ensureTailCapacity(tailSize + tailLength);
+        Utils.MEMORY.copyMemory(rowBuffer + 4, tailArea + tailSize, layoutOffset);
+        Utils.MEMORY.copyMemory(layoutAddress + layout.getSize(), tailArea + tailSize + layoutOffset, tailLength - layoutOffset);
+        Utils.MEMORY.putLong(tailOffsets + (long) row * 8, tailSize);
+        Utils.MEMORY.putInt(layoutOffsets + (long) row * 4, layoutOffset);
+        tailSize += tailLength;
+
+        size++;
+        return row;
+    }
+
+    /**
+     * Rebuild the bean of row in the given bean. This method doesn't allocate memory (unless unserialize does).
+     */
+    public void get(int row, V bean) {
+        checkRow(row);
+
+        long tailStart = Utils.MEMORY.getLong(tailOffsets + (long) row * 8);
+        long tailEnd = row + 1 < size ? Utils.MEMORY.getLong(tailOffsets + (long) (row + 1) * 8) : tailSize;
+        int objSize = layout.getSize() + (int) (tailEnd - tailStart);
+        int layoutOffset = Utils.MEMORY.getInt(layoutOffsets + (long) row * 4);
+
+        // gather the row in the buffer
+        ensureRowBufferCapacity(objSize + 4);
+        Utils.MEMORY.putInt(rowBuffer, objSize);
+        long layoutAddress = rowBuffer + 4 + layoutOffset;
+        Utils.MEMORY.copyMemory(tailArea + tailStart, rowBuffer + 4, layoutOffset);
+        for (int i = 0; i < columns.length; i++) {
+            int fieldSize = layout.getType(i).getSize();
+            Utils.MEMORY.copyMemory(columns[i] + (long) row * fieldSize, layoutAddress + layout.getOffset(i), fieldSize);
+        }
+        Utils.MEMORY.copyMemory(tailArea + tailStart + layoutOffset, layoutAddress + layout.getSize(), tailEnd - tailStart - layoutOffset);
+
+        rowView.moveTo(rowBuffer).populateBean(bean, DirectObjectContext.getThreadContext());
+    }
+
+    public byte getByte(int row, int field) {
+        return Utils.MEMORY.getByte(getValueAddress(row, field, DirectLayout.FieldType.BYTE));
+    }
+
+    public boolean getBoolean(int row, int field) {
+        return Utils.MEMORY.getByte(getValueAddress(row, field, DirectLayout.FieldType.BOOLEAN)) != 0;
+    }
+
+    public short getShort(int row, int field) {
+        return Utils.MEMORY.getShort(getValueAddress(row, field, DirectLayout.FieldType.SHORT));
+    }
+
+    public char getChar(int row, int field) {
+        return Utils.MEMORY.getChar(getValueAddress(row, field, DirectLayout.FieldType.CHAR));
+    }
+
+    public int getInt(int row, int field) {
+        return Utils.MEMORY.getInt(getValueAddress(row, field, DirectLayout.FieldType.INT));
+    }
+
+    public float getFloat(int row, int field) {
+        return Utils.MEMORY.getFloat(getValueAddress(row, field, DirectLayout.FieldType.FLOAT));
+    }
+
+    public long getLong(int row, int field) {
+        return Utils.MEMORY.getLong(getValueAddress(row, field, DirectLayout.FieldType.LONG));
+    }
+
+    public double getDouble(int row, int field) {
+        return Utils.MEMORY.getDouble(getValueAddress(row, field, DirectLayout.FieldType.DOUBLE));
+    }
+
+    /**
+     * Copy the values of an int field for rows [fromRow, fromRow + len) in values.
+     */
+    public void readInts(int field, int fromRow, int[] values, int off, int len) {
+        checkRange(fromRow, len);
+        Utils.MEMORY.getInts(getColumn(field, DirectLayout.FieldType.INT) + (long) fromRow * 4, values, off, len);
+    }
+
+    public void readLongs(int field, int fromRow, long[] values, int off, int len) {
+        checkRange(fromRow, len);
+        Utils.MEMORY.getLongs(getColumn(field, DirectLayout.FieldType.LONG) + (long) fromRow * 8, values, off, len);
+    }
+
+    public void readFloats(int field, int fromRow, float[] values, int off, int len) {
+        checkRange(fromRow, len);
+        Utils.MEMORY.getFloats(getColumn(field, DirectLayout.FieldType.FLOAT) + (long) fromRow * 4, values, off, len);
+    }
+
+    public void readDoubles(int field, int fromRow, double[] values, int off, int len) {
+        checkRange(fromRow, len);
+        Utils.MEMORY.getDoubles(getColumn(field, DirectLayout.FieldType.DOUBLE) + (long) fromRow * 8, values, off, len);
+    }
+
+    // sums use several accumulators so that consecutive additions don't depend on each other
+
+    public long sumInt(int field) {
+        long address = getColumn(field, DirectLayout.FieldType.INT);
+        long end = address + (long) size * 4;
+
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (; address + 16 <= end; address += 16) {
+            s0 += Utils.MEMORY.getInt(address);
+            s1 += Utils.MEMORY.getInt(address + 4);
+            s2 += Utils.MEMORY.getInt(address + 8);
+            s3 += Utils.MEMORY.getInt(address + 12);
+        }
+        for (; address < end; address += 4) {
+            s0 += Utils.MEMORY.getInt(address);
+        }
+
+        return s0 + s1 + s2 + s3;
+    }
+
+    public long sumLong(int field) {
+        long address = getColumn(field, DirectLayout.FieldType.LONG);
+        long end = address + (long) size * 8;
+
+        long s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (; address + 32 <= end; address += 32) {
+            s0 += Utils.MEMORY.getLong(address);
+            s1 += Utils.MEMORY.getLong(address + 8);
+            s2 += Utils.MEMORY.getLong(address + 16);
+            s3 += Utils.MEMORY.getLong(address + 24);
+        }
+        for (; address < end; address += 8) {
+            s0 += Utils.MEMORY.getLong(address);
+        }
+
+        return s0 + s1 + s2 + s3;
+    }
+
+    /**
+     * Sum of a double field. The additions are not done in row order, so the result may differ slightly from a
+     * sequential sum.
+     */
+    public double sumDouble(int field) {
+        long address = getColumn(field, DirectLayout.FieldType.DOUBLE);
+        long end = address + (long) size * 8;
+
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        for (; address + 32 <= end; address += 32) {
+            s0 += Utils.MEMORY.getDouble(address);
+            s1 += Utils.MEMORY.getDouble(address + 8);
+            s2 += Utils.MEMORY.getDouble(address + 16);
+            s3 += Utils.MEMORY.getDouble(address + 24);
+        }
+        for (; address < end; address += 8) {
+            s0 += Utils.MEMORY.getDouble(address);
+        }
+
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Remove all rows, memory is kept for new rows.
+     */
+    public void clear() {
+        size = 0;
+        tailSize = 0;
+    }
+
+    public void free() {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i] != 0) {
+                Utils.MEMORY.free(columns[i]);
+                columns[i] = 0;
+            }
+        }
+        if (tailOffsets != 0) {
+            Utils.MEMORY.free(tailOffsets);
+            Utils.MEMORY.free(layoutOffsets);
+            Utils.MEMORY.free(tailArea);
+            Utils.MEMORY.free(rowBuffer);
+            tailOffsets = layoutOffsets = tailArea = rowBuffer = 0;
+        }
+        size = 0;
+    }
+
+    private long getColumn(int field, DirectLayout.FieldType type) {
+        if (layout.getType(field) != type) {
+            throw new IllegalArgumentException("Field " + layout.getName(field) + " is not a " + type + " field");
+        }
+        return columns[field];
+    }
+
+    private long getValueAddress(int row, int field, DirectLayout.FieldType type) {
+        checkRow(row);
+        return getColumn(field, type) + (long) row * type.getSize();
+    }
+
+    private void checkRow(int row) {
+        if (row < 0 || row >= size) {
+            throw new IndexOutOfBoundsException("Row " + row + " out of bounds, size " + size);
+        }
+    }
+
+    private void checkRange(int fromRow, int len) {
+        if (fromRow < 0 || len < 0 || fromRow + len > size) {
+            throw new IndexOutOfBoundsException("Rows " + fromRow + " to " + (fromRow + len) + " out of bounds, size " + size);
+        }
+    }
+
+    private void grow() {
+        int newCapacity = capacity * 2;
+        for (int i = 0; i < columns.length; i++) {
+            columns[i] = Utils.MEMORY.reallocate(columns[i], (long) newCapacity * layout.getType(i).getSize());
+        }
+        tailOffsets = Utils.MEMORY.reallocate(tailOffsets, (long) newCapacity * 8);
+        layoutOffsets = Utils.MEMORY.reallocate(layoutOffsets, (long) newCapacity * 4);
+        capacity = newCapacity;
+    }
+
+    private void ensureTailCapacity(long requiredCapacity) {
+        if (requiredCapacity > tailCapacity) {
+            tailCapacity = Math.max(requiredCapacity, tailCapacity * 2);
+            tailArea = Utils.MEMORY.reallocate(tailArea, tailCapacity);
+        }
+    }
+
+    private void ensureRowBufferCapacity(int requiredCapacity) {
+        if (requiredCapacity > rowBufferCapacity) {
+            rowBufferCapacity = Math.max(requiredCapacity, rowBufferCapacity * 2);
+            rowBuffer = Utils.MEMORY.reallocate(rowBuffer, rowBufferCapacity);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.granveaud.directobjects;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Layout of the fixed-width fields of a bean. Fields are declared in any order and the planner places them by
+ * decreasing size so that each field is aligned on its size without padding between fields.
+ *
+ * The layout is planned for a block written first in serialize, just after the 4 bytes of the object size: the
+ * block starts at 4 modulo 8, so a 4-byte field (or smaller fields) is placed before the 8-byte fields. Elsewhere
+ * (nested objects...) the layout is still valid but fields may be unaligned.
+ *
+ * Usage:
+ * <pre>
+ * static final DirectLayout.Builder BUILDER = new DirectLayout.Builder();
+ * static final int ID = BUILDER.addInt("id");
+ * static final int PRICE = BUILDER.addDouble("price");
+ * static final DirectLayout LAYOUT = BUILDER.build();
+ *
+ * public void serialize(DirectObjectContext doContext) {
+ *     doContext.startLayout(LAYOUT);
+ *     doContext.putIntField(ID, id);
+ *     doContext.putDoubleField(PRICE, price);
+ *     // variable length fields follow
+ * }
+ * </pre>
+ */
+public final class DirectLayout {
+
+    public enum FieldType {
+        BYTE(1), BOOLEAN(1), SHORT(2), CHAR(2), INT(4), FLOAT(4), LONG(8), DOUBLE(8);
+
+        final int size;
+
+        FieldType(int size) {
+            this.size = size;
+        }
+
+        public int getSize() {
+            return size;
+        }
+    }
+
+    // alignment of the start of the block modulo 8 (after the object size)
+    private static final int START_ALIGNMENT = 4;
+
+    public static class Builder {
+        private final List<String> names = new ArrayList<String>();
+        private final List<FieldType> types = new ArrayList<FieldType>();
+
+        /**
+         * @return field id, used to get its offset and read or write it
+         */
+        public int add(String name, FieldType type) {
+            names.add(name);
+            types.add(type);
+            return types.size() - 1;
+        }
+
+        public int addByte(String name) {
+            return add(name, FieldType.BYTE);
+        }
+
+        public int addBoolean(String name) {
+            return add(name, FieldType.BOOLEAN);
+        }
+
+        public int addShort(String name) {
+            return add(name, FieldType.SHORT);
+        }
+
+        public int addChar(String name) {
+            return add(name, FieldType.CHAR);
+        }
+
+        public int addInt(String name) {
+            return add(name, FieldType.INT);
+        }
+
+        public int addFloat(String name) {
+            return add(name, FieldType.FLOAT);
+        }
+
+        public int addLong(String name) {
+            return add(name, FieldType.LONG);
+        }
+
+        public int addDouble(String name) {
+            return add(name, FieldType.DOUBLE);
+        }
+
+        public DirectLayout build() {
+            return new DirectLayout(names.toArray(new String[names.size()]), types.toArray(new FieldType[types.size()]));
+        }
+    }
+
+    private final String[] names;
+    private final FieldType[] types;
+    private final int[] offsets;
+    private final int size;
+
+    private DirectLayout(String[] names, FieldType[] types) {
+        this.names = names;
+        this.types = types;
+        this.offsets = new int[types.length];
+
+        boolean[] placed = new boolean[types.length];
+        int position = 0;
+
+        // fill the bytes before the first 8-byte aligned position with smaller fields
+        if (hasFieldOfSize(8)) {
+            int gap = (8 - START_ALIGNMENT) & 7;
+            for (int fieldSize = 4; fieldSize >= 1; fieldSize >>= 1) {
+                for (int i = 0; i < types.length && position + fieldSize <= gap; i++) {
+                    if (!placed[i] && types[i].size == fieldSize) {
+                        offsets[i] = position;
+                        placed[i] = true;
+                        position += fieldSize;
+                    }
+                }
+            }
+            position = gap;
+        }
+
+        // then by decreasing size
+        for (int fieldSize = 8; fieldSize >= 1; fieldSize >>= 1) {
+            for (int i = 0; i < types.length; i++) {
+                if (!placed[i] && types[i].size == fieldSize) {
+                    offsets[i] = position;
+                    placed[i] = true;
+                    position += fieldSize;
+                }
+            }
+        }
+
+        this.size = position;
+    }
+
+    private boolean hasFieldOfSize(int fieldSize) {
+        for (FieldType type : types) {
+            if (type.size == fieldSize) return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return size of the block including padding
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public int getFieldCount() {
+        return types.length;
+    }
+
+    public int getOffset(int field) {
+        return offsets[field];
+    }
+
+    public FieldType getType(int field) {
+        return types[field];
+    }
+
+    public String getName(int field) {
+        return names[field];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("DirectLayout(size=").append(size);
+        for (int i = 0; i < types.length; i++) {
+            sb.append(", ").append(names[i]).append(' ').append(types[i]).append('@').append(offsets[i]);
+        }
+        return sb.append(')').toString();
+    }
+}
@@ -0,0 +1,138 @@
+package com.granveaud.directobjects;
+
+import java.nio.ByteOrder;
+
+/**
+ * Flyweight over a list embedded in an object by DirectObjectContext.putStringList or putObjectList, or over an
+ * array of primitives written by putInts, putLongs or putDoubles (see DirectObjectContext.getIntsView...). Elements
+ * are decoded only when they are accessed, so size() and get(index) don't read the whole list.
+ *
+ * A view can be moved to another list and reused. It is valid as long as the object memory is not modified or freed.
+ */
+public class DirectListView {
+    // used to decode elements
+    private final DirectObjectContext doContext = new DirectObjectContext();
+
+    private long address;
+    private int count;
+
+    // size of the elements of an array of primitives, 0 for a list with a table of end offsets
+    private int elementSize;
+
+    /**
+     * Byte order of the list, if it was not written in the native order. Views obtained with
+     * DirectObjectContext.getListView use the order of the context.
+     */
+    public void setByteOrder(ByteOrder byteOrder) {
+        doContext.setByteOrder(byteOrder);
+    }
+
+    /**
+     * Mode of the context used to decode elements. Views obtained with DirectObjectContext.getListView use the mode
+     * of the context.
+     */
+    public void setMode(DirectObjectContext.Mode mode) {
+        doContext.setMode(mode);
+    }
+
+    void setOptions(DirectObjectContext doContext) {
+        this.doContext.setOptions(doContext);
+    }
+
+    public DirectListView moveTo(long address) {
+        this.address = address;
+        this.count = doContext.readInt(address);
+        this.elementSize = 0;
+        return this;
+    }
+
+    // move to an array of primitives of elementSize bytes
+    DirectListView moveToArray(long address, int elementSize) {
+        moveTo(address);
+        this.elementSize = elementSize;
+        return this;
+    }
+
+    public long getAddress() {
+        return address;
+    }
+
+    /**
+     * @return true if a null list was written
+     */
+    public boolean isNull() {
+        return count == -1;
+    }
+
+    public int size() {
+        return Math.max(count, 0);
+    }
+
+    /**
+     * @return size of the encoded list in bytes
+     */
+    public int getLength() {
+        if (count <= 0) return 4;
+        if (elementSize > 0) return 4 + elementSize * count;
+
+        return 4 + 4 * count + getEnd(count - 1);
+    }
+
+    private int getEnd(int index) {
+        return doContext.readInt(address + 4 + 4L * index);
+    }
+
+    public long getElementAddress(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Index " + index + " size " + size());
+        }
+
+        if (elementSize > 0) return address + 4 + (long) elementSize * index;
+
+        long data = address + 4 + 4L * count;
+        return index == 0 ? data : data + getEnd(index - 1);
+    }
+
+    public int getElementLength(int index) {
+        getElementAddress(index);
+        if (elementSize > 0) return elementSize;
+
+        return index == 0 ? getEnd(0) : getEnd(index) - getEnd(index - 1);
+    }
+
+    public String getString(int index) {
+        moveContext(index);
+        return doContext.getString();
+    }
+
+    /**
+     * Load a nested object in bean.
+     *
+     * @return false if the element is null (bean is not modified)
+     */
+    public boolean getObject(int index, DirectObject bean) {
+        moveContext(index);
+        return doContext.getObject(bean);
+    }
+
+    private void moveContext(int index) {
+        long elementAddress = getElementAddress(index);
+        doContext.setCurrentAddress(elementAddress, elementAddress + getElementLength(index));
+    }
+
+    int readInt(long address) {
+        return doContext.readInt(address);
+    }
+
+    public int getInt(int index) {
+        return doContext.readInt(getElementAddress(index));
+    }
+
+    public long getLong(int index) {
+        return doContext.readLong(getElementAddress(index));
+    }
+
+    public double getDouble(int index) {
+        return Double.longBitsToDouble(doContext.readLong(getElementAddress(index)));
+    }
+}
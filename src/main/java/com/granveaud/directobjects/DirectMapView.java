@@ -0,0 +1,147 @@
+package com.granveaud.directobjects;
+
+import java.nio.ByteOrder;
+
+/**
+ * Flyweight over a map embedded in an object by DirectObjectContext.putStringLongMap, putStringStringMap or
+ * putStringObjectMap. Entries are sorted by key: a key is found by binary search, comparing the encoded keys
+ * without decoding them.
+ *
+ * A view can be moved to another map and reused. It is valid as long as the object memory is not modified or freed.
+ */
+public class DirectMapView {
+    private final DirectListView entries = new DirectListView();
+
+    /**
+     * Byte order of the map, if it was not written in the native order. Views obtained with
+     * DirectObjectContext.getMapView use the order of the context.
+     */
+    public void setByteOrder(ByteOrder byteOrder) {
+        entries.setByteOrder(byteOrder);
+    }
+
+    public void setMode(DirectObjectContext.Mode mode) {
+        entries.setMode(mode);
+    }
+
+    void setOptions(DirectObjectContext doContext) {
+        entries.setOptions(doContext);
+    }
+
+    public DirectMapView moveTo(long address) {
+        entries.moveTo(address);
+        return this;
+    }
+
+    public long getAddress() {
+        return entries.getAddress();
+    }
+
+    /**
+     * @return true if a null map was written
+     */
+    public boolean isNull() {
+        return entries.isNull();
+    }
+
+    public int size() {
+        return entries.size() / 2;
+    }
+
+    /**
+     * @return size of the encoded map in bytes
+     */
+    public int getLength() {
+        return entries.getLength();
+    }
+
+    /**
+     * @return index of key or -1 if the key is not found
+     */
+    public int indexOf(CharSequence key) {
+        int low = 0;
+        int high = size() - 1;
+
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = compareKey(entries.getElementAddress(2 * mid), key);
+
+            if (cmp < 0) {
+                low = mid + 1;
+            } else if (cmp > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+
+        return -1;
+    }
+
+    // same order as String.compareTo, decoding the string written by DirectObjectContext.putString
+    private int compareKey(long address, CharSequence key) {
+        int strlen = entries.readInt(address);
+        address += 4;
+
+        int len = Math.min(strlen, key.length());
+        for (int i = 0; i < len; i++) {
+            char c;
+            int c1 = Utils.MEMORY.getByte(address++);
+            if ((c1 & 0x80) == 0) {
+                c = (char) c1;
+            } else {
+                int c2 = Utils.MEMORY.getByte(address++);
+                if ((c2 & 0x80) == 0) {
+                    c = (char) ((c2 << 7) | (c1 & 0x7f));
+                } else {
+                    int c3 = Utils.MEMORY.getByte(address++);
+                    c = (char) ((c3 << 14) | (c2 & 0x7f) << 7 | (c1 & 0x7f));
+                }
+            }
+
+            if (c != key.charAt(i)) return c - key.charAt(i);
+        }
+
+        return strlen - key.length();
+    }
+
+    public boolean containsKey(CharSequence key) {
+        return indexOf(key) != -1;
+    }
+
+    public String getKey(int index) {
+        return entries.getString(2 * index);
+    }
+
+    public long getLong(int index) {
+        return entries.getLong(2 * index + 1);
+    }
+
+    public String getString(int index) {
+        return entries.getString(2 * index + 1);
+    }
+
+    public boolean getObject(int index, DirectObject bean) {
+        return entries.getObject(2 * index + 1, bean);
+    }
+
+    public long getLong(CharSequence key, long defaultValue) {
+        int index = indexOf(key);
+        return index == -1 ? defaultValue : getLong(index);
+    }
+
+    public String getString(CharSequence key) {
+        int index = indexOf(key);
+        return index == -1 ? null : getString(index);
+    }
+
+    /**
+     * Load the object associated to key in bean.
+     *
+     * @return false if key is not found or its object is null (bean is not modified)
+     */
+    public boolean getObject(CharSequence key, DirectObject bean) {
+        int index = indexOf(key);
+        return index != -1 && getObject(index, bean);
+    }
+}
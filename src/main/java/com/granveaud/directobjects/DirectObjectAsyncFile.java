@@ -0,0 +1,318 @@
+package com.granveaud.directobjects;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Append-only file of objects written and read with an AsynchronousFileChannel, so that the calling thread doesn't
+ * wait for the disk. Records have the same format as DirectObjectPointer.write(FileChannel): the object size in the
+ * native byte order followed by the object.
+ *
+ * Writes are coalesced: a record is copied in the current batch buffer, which is written as soon as no other batch
+ * is being written. While the disk is busy, records accumulate in the batch and are written together. At most
+ * maxInFlight batches are written at the same time: when they are all busy and the current batch is full, write
+ * waits for a batch to complete (back pressure).
+ *
+ * Futures are completed by the threads of the channel. A record can be read once its write future is completed. When
+ * a write fails, the futures of its records, and of all following flushes, are completed exceptionally: the file
+ * has a hole and must not be trusted anymore.
+ *
+ * This class is thread-safe.
+ */
+public final class DirectObjectAsyncFile implements Closeable {
+
+    private final AsynchronousFileChannel channel;
+    private final int batchSize;
+    private final int maxInFlight;
+
+    // all fields below are guarded by this
+    private final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+    private ByteBuffer batch;
+    private long batchPosition;
+    private List<CompletableFuture<Long>> batchFutures = new ArrayList<CompletableFuture<Long>>();
+    private List<Long> batchRecordPositions = new ArrayList<Long>();
+
+    // batches being written
+    private final List<CompletableFuture<Void>> writing = new ArrayList<CompletableFuture<Void>>();
+    private long endPosition;
+
+    // first write error, reported by all following flushes
+    private Throwable writeError;
+
+    /**
+     * @param channel file opened for writing and/or reading, records are appended at its end
+     * @param batchSize size of the batch buffers, a larger record is written alone
+     * @param maxInFlight maximum number of batches written at the same time
+     */
+    public DirectObjectAsyncFile(AsynchronousFileChannel channel, int batchSize, int maxInFlight) throws IOException {
+        if (batchSize <= 0 || maxInFlight <= 0) {
+            throw new IllegalArgumentException("Invalid batch size " + batchSize + " or max in flight " + maxInFlight);
+        }
+
+        this.channel = channel;
+        this.batchSize = batchSize;
+        this.maxInFlight = maxInFlight;
+
+        endPosition = channel.size();
+        batchPosition = endPosition;
+    }
+
+    /**
+     * @return position of the end of the file, including records not written yet
+     */
+    public synchronized long getEndPosition() {
+        return endPosition;
+    }
+
+    /**
+     * Append the object. The pointer is copied before this method returns and can be freed at once.
+     *
+     * @return future completed with the position of the record when it is written
+     */
+    public CompletableFuture<Long> write(DirectObjectPointer pointer) {
+        int size = pointer.getObjectSize() + 4;
+        ByteBuffer record = Utils.MEMORY.wrap(pointer.getAddress(), size);
+
+        CompletableFuture<Long> future = new CompletableFuture<Long>();
+        synchronized (this) {
+            if (size > batchSize) {
+                // large record: written alone after the current batch
+                while (writing.size() >= maxInFlight || batch != null) {
+                    if (writing.size() >= maxInFlight) {
+                        waitForCompletion();
+                    } else {
+                        submitBatch();
+                    }
+                }
+
+                ByteBuffer copy = ByteBuffer.allocateDirect(size);
+                copy.put(record).flip();
+
+                List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>(1);
+                futures.add(future);
+                List<Long> positions = new ArrayList<Long>(1);
+                positions.add(endPosition);
+                submit(copy, endPosition, futures, positions, false);
+
+                endPosition += size;
+                return future;
+            }
+
+            // get a batch with enough space, the full batch is written when a slot is available
+            while (batch == null || batch.remaining() < size) {
+                if (writing.size() >= maxInFlight) {
+                    waitForCompletion();
+                } else if (batch != null) {
+                    submitBatch();
+                } else {
+                    batch = freeBuffers.isEmpty() ? ByteBuffer.allocateDirect(batchSize) : freeBuffers.poll();
+                    batchPosition = endPosition;
+                }
+            }
+
+            batch.put(record);
+            batchFutures.add(future);
+            batchRecordPositions.add(endPosition);
+            endPosition += size;
+
+            // nothing is being written: write now, otherwise the batch is written when a write completes
+            if (writing.isEmpty()) submitBatch();
+        }
+
+        return future;
+    }
+
+    /**
+     * Write the current batch, waiting for a slot if maxInFlight batches are being written.
+     *
+     * @return future completed when all the records appended before this call are written, or completed
+     * exceptionally if a write has failed
+     */
+    public synchronized CompletableFuture<Void> flush() {
+        // a completed write submits the pending batch itself
+        while (batch != null && writing.size() >= maxInFlight) {
+            waitForCompletion();
+        }
+        submitBatch();
+
+        if (writeError != null) {
+            CompletableFuture<Void> failed = new CompletableFuture<Void>();
+            failed.completeExceptionally(writeError);
+            return failed;
+        }
+        return CompletableFuture.allOf(writing.toArray(new CompletableFuture<?>[writing.size()]));
+    }
+
+    /**
+     * Read the record at position into a new block of native memory.
+     */
+    public CompletableFuture<DirectObjectPointer> read(long position) {
+        return read(position, DirectAllocator.NATIVE);
+    }
+
+    public CompletableFuture<DirectObjectPointer> read(final long position, final DirectAllocator allocator) {
+        final CompletableFuture<DirectObjectPointer> future = new CompletableFuture<DirectObjectPointer>();
+        final ByteBuffer sizeBuffer = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+
+        readFully(sizeBuffer, position, future, new Runnable() {
+            @Override
+            public void run() {
+                int objSize = sizeBuffer.getInt(0);
+                if (objSize < 0) {
+                    future.completeExceptionally(new IOException("Invalid object size " + objSize + " at " + position));
+                    return;
+                }
+
+                final DirectObjectPointer pointer = new DirectObjectPointer(allocator.allocate(objSize + 4), allocator);
+                Utils.MEMORY.putInt(pointer.getAddress(), objSize);
+
+                ByteBuffer body = Utils.MEMORY.wrap(pointer.getAddress() + 4, objSize);
+                readFully(body, position + 4, future, new Runnable() {
+                    @Override
+                    public void run() {
+                        future.complete(pointer);
+                    }
+                });
+
+                // free memory if the object couldn't be read
+                future.whenComplete(new BiConsumer<DirectObjectPointer, Throwable>() {
+                    @Override
+                    public void accept(DirectObjectPointer p, Throwable e) {
+                        if (e != null) pointer.free();
+                    }
+                });
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Flush pending records and close the channel.
+     *
+     * @throws IOException if a write has failed, the channel is closed anyway
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            flush().join();
+        } catch (CompletionException e) {
+            throw new IOException("Write failed", e.getCause());
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void waitForCompletion() {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a write", e);
+        }
+    }
+
+    private void submitBatch() {
+        if (batch == null) return;
+
+        ByteBuffer buffer = batch;
+        buffer.flip();
+        batch = null;
+
+        List<CompletableFuture<Long>> futures = batchFutures;
+        List<Long> positions = batchRecordPositions;
+        batchFutures = new ArrayList<CompletableFuture<Long>>();
+        batchRecordPositions = new ArrayList<Long>();
+
+        submit(buffer, batchPosition, futures, positions, true);
+    }
+
+    // write buffer at position, then complete the futures of its records
+    private void submit(final ByteBuffer buffer, final long position, final List<CompletableFuture<Long>> futures,
+                        final List<Long> positions, final boolean reuseBuffer) {
+        final CompletableFuture<Void> written = new CompletableFuture<Void>();
+        writing.add(written);
+
+        new CompletionHandler<Integer, Void>() {
+            void write() {
+                try {
+                    channel.write(buffer, position + buffer.position(), null, this);
+                } catch (RuntimeException e) {
+                    // e.g. NonWritableChannelException, the handler is not called
+                    failed(e, null);
+                }
+            }
+
+            @Override
+            public void completed(Integer result, Void attachment) {
+                if (buffer.hasRemaining()) {
+                    write();
+                    return;
+                }
+
+                done(null);
+                for (int i = 0; i < futures.size(); i++) {
+                    futures.get(i).complete(positions.get(i));
+                }
+                written.complete(null);
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                done(e);
+                for (CompletableFuture<Long> future : futures) {
+                    future.completeExceptionally(e);
+                }
+                written.completeExceptionally(e);
+            }
+
+            // release the slot before completing the futures: their continuations may write on this thread
+            private void done(Throwable e) {
+                synchronized (DirectObjectAsyncFile.this) {
+                    writing.remove(written);
+                    if (e != null && writeError == null) writeError = e;
+                    if (reuseBuffer) {
+                        buffer.clear();
+                        freeBuffers.offer(buffer);
+                    }
+
+                    // records appended while the disk was busy
+                    if (batch != null && batch.position() > 0) submitBatch();
+
+                    DirectObjectAsyncFile.this.notifyAll();
+                }
+            }
+        }.write();
+    }
+
+    // read buffer completely at position then run next, or fail future
+    private void readFully(final ByteBuffer buffer, final long position, final CompletableFuture<?> future, final Runnable next) {
+        channel.read(buffer, position, null, new CompletionHandler<Integer, Void>() {
+            @Override
+            public void completed(Integer result, Void attachment) {
+                if (result < 0) {
+                    future.completeExceptionally(new IOException("Unexpected end of file at " + (position + buffer.position())));
+                } else if (buffer.hasRemaining()) {
+                    channel.read(buffer, position + buffer.position(), null, this);
+                } else {
+                    next.run();
+                }
+            }
+
+            @Override
+            public void failed(Throwable e, Void attachment) {
+                future.completeExceptionally(e);
+            }
+        });
+    }
+}
@@ -1,11 +1,54 @@
 package com.granveaud.directobjects;
 
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class DirectObjectContext {
+
+    /**
+     * CHECKED: every read or write is checked against the size of the object before accessing memory. Use it in
+     * tests and canaries to detect wrong getSerializedSize implementations or corrupted data.
+     * UNCHECKED: only a check of the position at the end of each read or write (and of each nested object), for
+     * production hot paths. An overrun is reported after the fact, memory after the object may already be corrupted.
+     */
+    public enum Mode {
+        CHECKED, UNCHECKED
+    }
+
+    /**
+     * Default mode of new contexts, CHECKED if the system property directobjects.checked is true.
+     */
+    private static final Mode DEFAULT_MODE = Boolean.getBoolean("directobjects.checked") ? Mode.CHECKED : Mode.UNCHECKED;
+
+    private static final ThreadLocal<DirectObjectContext> THREAD_CONTEXT = new ThreadLocal<DirectObjectContext>() {
+        @Override
+        protected DirectObjectContext initialValue() {
+            return new DirectObjectContext();
+        }
+    };
+
     private DirectObjectPointer pointer;
 
     // current position for serialization/unserialization operations
     private long currentAddress;
 
+    // end of the object being read or written (top level object or nested object)
+    private long limitAddress;
+
+    // true if byte order is not the native order
+    private boolean swapBytes;
+
+    // block of fixed-width fields being read or written
+    private DirectLayout layout;
+    private long layoutAddress;
+
+    private boolean checked = DEFAULT_MODE == Mode.CHECKED;
+
     public DirectObjectContext() {
     }
 
@@ -14,8 +57,49 @@ public class DirectObjectContext {
         reset();
     }
 
+    /**
+     * Context which reads and writes values in byteOrder instead of the native order, to produce data which can be
+     * shared with hosts of another architecture (files, mapped memory). Values are swapped with Integer.reverseBytes
+     * and similar methods, which are intrinsics on most JVMs.
+     */
+    public DirectObjectContext(ByteOrder byteOrder) {
+        setByteOrder(byteOrder);
+    }
+
+    public ByteOrder getByteOrder() {
+        return swapBytes ? (ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN) : ByteOrder.nativeOrder();
+    }
+
+    public void setByteOrder(ByteOrder byteOrder) {
+        this.swapBytes = byteOrder != ByteOrder.nativeOrder();
+    }
+
+    public Mode getMode() {
+        return checked ? Mode.CHECKED : Mode.UNCHECKED;
+    }
+
+    public void setMode(Mode mode) {
+        this.checked = mode == Mode.CHECKED;
+    }
+
+    // copy byte order and mode of another context
+    void setOptions(DirectObjectContext doContext) {
+        this.swapBytes = doContext.swapBytes;
+        this.checked = doContext.checked;
+    }
+
+    /**
+     * Context cached for the current thread. It is used by the methods which don't take an explicit context
+     * (DirectObjectPointer.populateBean(bean), updateFromBean(bean), DirectMap...) to avoid an allocation
+     * for each call. It must not be used by serialize/unserialize implementations.
+     */
+    public static DirectObjectContext getThreadContext() {
+        return THREAD_CONTEXT.get();
+    }
+
     public void reset() {
         currentAddress = pointer.address + 4;
+        limitAddress = currentAddress + pointer.getObjectSize();
     }
 
     public void reset(DirectObjectPointer newPointer) {
@@ -28,24 +112,192 @@ public class DirectObjectContext {
     }
 
     protected void startReadWrite() {
-        currentAddress = pointer.address + 4;
+        reset();
+        layout = null;
     }
 
     protected void finishReadWrite() {
-        // check position
-        if (currentAddress != 0 && getRelativePosition() > pointer.getObjectSize()) {
-            throw new RuntimeException("Read or write exceeded object size. Risk of memory corruption!");
+        // in checked mode, an overrun has already been detected before accessing memory. In unchecked mode it is
+        // detected after the fact, at the cost of a comparison per object
+        if (getRelativePosition() > pointer.getObjectSize()) {
+            throw new IllegalStateException("Write exceeded object size by " + (getRelativePosition() - pointer.getObjectSize()) + " bytes, memory after the object may be corrupted");
         }
+        if (checked && getRelativePosition() < pointer.getObjectSize()) {
+            throw new IllegalStateException("Unused space after write: " + (pointer.getObjectSize() - getRelativePosition()) + " bytes");
+        }
+    }
 
-        if (currentAddress != 0 && getRelativePosition() < pointer.getObjectSize()) {
-            System.err.println("warning: unused space " + (currentAddress - pointer.address));
+    protected void finishRead() {
+        // same overrun check as finishReadWrite. Unused space is allowed: fields appended by a newer version of the bean
+        if (getRelativePosition() > pointer.getObjectSize()) {
+            throw new IllegalStateException("Read exceeded object size by " + (getRelativePosition() - pointer.getObjectSize()) + " bytes");
         }
     }
 
+    private void checkBounds(long size) {
+        if (currentAddress + size > limitAddress) {
+            throw new IndexOutOfBoundsException("Access of " + size + " bytes exceeds object size by " + (currentAddress + size - limitAddress) + " bytes");
+        }
+    }
+
+    // absolute position, used by the views over embedded collections
+    void setCurrentAddress(long address, long limitAddress) {
+        this.currentAddress = address;
+        this.limitAddress = limitAddress;
+    }
+
+    // read/write at an absolute address in the byte order of the context
+    int readInt(long address) {
+        int res = Utils.MEMORY.getInt(address);
+        return swapBytes ? Integer.reverseBytes(res) : res;
+    }
+
+    void writeInt(long address, int value) {
+        Utils.MEMORY.putInt(address, swapBytes ? Integer.reverseBytes(value) : value);
+    }
+
+    long readLong(long address) {
+        long res = Utils.MEMORY.getLong(address);
+        return swapBytes ? Long.reverseBytes(res) : res;
+    }
+
+    void writeLong(long address, long value) {
+        Utils.MEMORY.putLong(address, swapBytes ? Long.reverseBytes(value) : value);
+    }
+
+    /**
+     * @return number of bytes left in the object being read (the top level object or the nested object being read
+     * by getObject). Can be used to read the fields appended to a bean only if they are present.
+     */
+    public int getRemaining() {
+        return (int) (limitAddress - currentAddress);
+    }
+
+    public boolean hasRemaining() {
+        return currentAddress < limitAddress;
+    }
+
+    /**
+     * Write the schema version of the object. It must be the first value written by serialize, from the first
+     * version of the bean. unserialize reads it with getVersion() and uses default values for the fields which
+     * don't exist in older versions. Fields appended by newer versions are left unread and skipped.
+     */
+    public void putVersion(int version) {
+        if (version < 0) {
+            throw new IllegalArgumentException("Invalid version " + version);
+        }
+        putVarInt(version);
+    }
+
+    public int getVersion() {
+        return getVarInt();
+    }
+
+    public int getVersionLength(int version) {
+        return getVarIntLength(version);
+    }
+
     private int getRelativePosition() {
         return (int) (currentAddress - pointer.address - 4);
     }
 
+    /**
+     * Start the block of the fixed-width fields of layout at the current position. The fields are then read and
+     * written in any order with get/put*Field methods, and the position is after the block.
+     */
+    public void startLayout(DirectLayout layout) {
+        if (checked) checkBounds(layout.getSize());
+
+        this.layout = layout;
+        this.layoutAddress = currentAddress;
+        currentAddress += layout.getSize();
+    }
+
+    public int getLayoutLength(DirectLayout layout) {
+        return layout.getSize();
+    }
+
+    /**
+     * @return offset from the start of the object of the layout block started by the top level object during the
+     * last read or write, or -1 if it didn't call startLayout
+     */
+    public int getLayoutOffset() {
+        return layout == null ? -1 : (int) (layoutAddress - pointer.address - 4);
+    }
+
+    private long getFieldAddress(int field, DirectLayout.FieldType type) {
+        if (checked && (layout == null || layout.getType(field) != type)) {
+            throw new IllegalArgumentException("Field " + field + " is not a " + type + " field of the current layout");
+        }
+        return layoutAddress + layout.getOffset(field);
+    }
+
+    public byte getByteField(int field) {
+        return Utils.MEMORY.getByte(getFieldAddress(field, DirectLayout.FieldType.BYTE));
+    }
+
+    public void putByteField(int field, byte value) {
+        Utils.MEMORY.putByte(getFieldAddress(field, DirectLayout.FieldType.BYTE), value);
+    }
+
+    public boolean getBooleanField(int field) {
+        return Utils.MEMORY.getByte(getFieldAddress(field, DirectLayout.FieldType.BOOLEAN)) != 0;
+    }
+
+    public void putBooleanField(int field, boolean value) {
+        Utils.MEMORY.putByte(getFieldAddress(field, DirectLayout.FieldType.BOOLEAN), value ? (byte) 1 : (byte) 0);
+    }
+
+    public short getShortField(int field) {
+        short res = Utils.MEMORY.getShort(getFieldAddress(field, DirectLayout.FieldType.SHORT));
+        return swapBytes ? Short.reverseBytes(res) : res;
+    }
+
+    public void putShortField(int field, short value) {
+        Utils.MEMORY.putShort(getFieldAddress(field, DirectLayout.FieldType.SHORT), swapBytes ? Short.reverseBytes(value) : value);
+    }
+
+    public char getCharField(int field) {
+        char res = Utils.MEMORY.getChar(getFieldAddress(field, DirectLayout.FieldType.CHAR));
+        return swapBytes ? Character.reverseBytes(res) : res;
+    }
+
+    public void putCharField(int field, char value) {
+        Utils.MEMORY.putChar(getFieldAddress(field, DirectLayout.FieldType.CHAR), swapBytes ? Character.reverseBytes(value) : value);
+    }
+
+    public int getIntField(int field) {
+        return readInt(getFieldAddress(field, DirectLayout.FieldType.INT));
+    }
+
+    public void putIntField(int field, int value) {
+        writeInt(getFieldAddress(field, DirectLayout.FieldType.INT), value);
+    }
+
+    public float getFloatField(int field) {
+        return Float.intBitsToFloat(readInt(getFieldAddress(field, DirectLayout.FieldType.FLOAT)));
+    }
+
+    public void putFloatField(int field, float value) {
+        writeInt(getFieldAddress(field, DirectLayout.FieldType.FLOAT), Float.floatToRawIntBits(value));
+    }
+
+    public long getLongField(int field) {
+        return readLong(getFieldAddress(field, DirectLayout.FieldType.LONG));
+    }
+
+    public void putLongField(int field, long value) {
+        writeLong(getFieldAddress(field, DirectLayout.FieldType.LONG), value);
+    }
+
+    public double getDoubleField(int field) {
+        return Double.longBitsToDouble(readLong(getFieldAddress(field, DirectLayout.FieldType.DOUBLE)));
+    }
+
+    public void putDoubleField(int field, double value) {
+        writeLong(getFieldAddress(field, DirectLayout.FieldType.DOUBLE), Double.doubleToRawLongBits(value));
+    }
+
     public void alignInt() {
         if ((currentAddress & 3) != 0) {
             currentAddress = ((currentAddress >> 2) + 1) << 2;
@@ -59,87 +311,928 @@ public class DirectObjectContext {
     }
 
     public byte getByte() {
-        return Utils.UNSAFE.getByte(currentAddress++);
+        if (checked) checkBounds(1);
+        return Utils.MEMORY.getByte(currentAddress++);
     }
 
     public void putByte(byte value) {
-        Utils.UNSAFE.putByte(currentAddress++, value);
+        if (checked) checkBounds(1);
+        Utils.MEMORY.putByte(currentAddress++, value);
     }
 
     public int getUnsignedByte() {
-        return Utils.UNSAFE.getByte(currentAddress++) & 0xff;
+        if (checked) checkBounds(1);
+        return Utils.MEMORY.getByte(currentAddress++) & 0xff;
     }
 
     public void putUnsignedByte(int value) {
-        Utils.UNSAFE.putInt(currentAddress++, (byte) value);
+        if (checked) checkBounds(1);
+        Utils.MEMORY.putByte(currentAddress++, (byte) value);
     }
 
     public char getChar() {
-        char res = Utils.UNSAFE.getChar(currentAddress);
+        if (checked) checkBounds(2);
+        char res = Utils.MEMORY.getChar(currentAddress);
         currentAddress += 2;
-        return res;
+        return swapBytes ? Character.reverseBytes(res) : res;
     }
 
     public void putChar(char value) {
-        Utils.UNSAFE.putChar(currentAddress, value);
+        if (checked) checkBounds(2);
+        Utils.MEMORY.putChar(currentAddress, swapBytes ? Character.reverseBytes(value) : value);
         currentAddress += 2;
     }
 
     public short getShort() {
-        short res = Utils.UNSAFE.getShort(currentAddress);
+        if (checked) checkBounds(2);
+        short res = Utils.MEMORY.getShort(currentAddress);
         currentAddress += 2;
-        return res;
+        return swapBytes ? Short.reverseBytes(res) : res;
     }
 
     public void putShort(short value) {
-        Utils.UNSAFE.putShort(currentAddress, value);
+        if (checked) checkBounds(2);
+        Utils.MEMORY.putShort(currentAddress, swapBytes ? Short.reverseBytes(value) : value);
         currentAddress += 2;
     }
 
     public int getInt() {
-        int res = Utils.UNSAFE.getInt(currentAddress);
+        if (checked) checkBounds(4);
+        int res = Utils.MEMORY.getInt(currentAddress);
         currentAddress += 4;
-        return res;
+        return swapBytes ? Integer.reverseBytes(res) : res;
     }
 
     public void putInt(int value) {
-        Utils.UNSAFE.putInt(currentAddress, value);
+        if (checked) checkBounds(4);
+        Utils.MEMORY.putInt(currentAddress, swapBytes ? Integer.reverseBytes(value) : value);
         currentAddress += 4;
     }
 
     public long getLong() {
-        long res = Utils.UNSAFE.getLong(currentAddress);
+        if (checked) checkBounds(8);
+        long res = Utils.MEMORY.getLong(currentAddress);
         currentAddress += 8;
-        return res;
+        return swapBytes ? Long.reverseBytes(res) : res;
     }
 
     public void putLong(long value) {
-        Utils.UNSAFE.putLong(currentAddress, value);
+        if (checked) checkBounds(8);
+        Utils.MEMORY.putLong(currentAddress, swapBytes ? Long.reverseBytes(value) : value);
+        currentAddress += 8;
+    }
+
+    public boolean getBoolean() {
+        if (checked) checkBounds(1);
+        return Utils.MEMORY.getByte(currentAddress++) != 0;
+    }
+
+    public void putBoolean(boolean value) {
+        if (checked) checkBounds(1);
+        Utils.MEMORY.putByte(currentAddress++, value ? (byte) 1 : (byte) 0);
+    }
+
+    public float getFloat() {
+        if (swapBytes) return Float.intBitsToFloat(getInt());
+        if (checked) checkBounds(4);
+
+        float res = Utils.MEMORY.getFloat(currentAddress);
+        currentAddress += 4;
+        return res;
+    }
+
+    public void putFloat(float value) {
+        if (swapBytes) {
+            putInt(Float.floatToRawIntBits(value));
+            return;
+        }
+        if (checked) checkBounds(4);
+
+        Utils.MEMORY.putFloat(currentAddress, value);
+        currentAddress += 4;
+    }
+
+    public double getDouble() {
+        if (swapBytes) return Double.longBitsToDouble(getLong());
+        if (checked) checkBounds(8);
+
+        double res = Utils.MEMORY.getDouble(currentAddress);
         currentAddress += 8;
+        return res;
+    }
+
+    public void putDouble(double value) {
+        if (swapBytes) {
+            putLong(Double.doubleToRawLongBits(value));
+            return;
+        }
+        if (checked) checkBounds(8);
+
+        Utils.MEMORY.putDouble(currentAddress, value);
+        currentAddress += 8;
+    }
+
+    /**
+     * Write an unsigned int with a variable length encoding (LEB128): 7 bits per byte, 1 to 5 bytes.
+     * Use putSignedVarInt for values which can be negative.
+     */
+    public void putVarInt(int value) {
+        while ((value & ~0x7f) != 0) {
+            putByte((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        putByte((byte) value);
+    }
+
+    public int getVarInt() {
+        int b = getByte();
+        if (b >= 0) return b;
+
+        int res = b & 0x7f;
+        for (int shift = 7; ; shift += 7) {
+            b = getByte();
+            res |= (b & 0x7f) << shift;
+            if (b >= 0) return res;
+        }
+    }
+
+    public int getVarIntLength(int value) {
+        return (31 - Integer.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    /**
+     * Write an unsigned long with a variable length encoding (LEB128): 7 bits per byte, 1 to 10 bytes.
+     */
+    public void putVarLong(long value) {
+        while ((value & ~0x7fL) != 0) {
+            putByte((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        putByte((byte) value);
+    }
+
+    public long getVarLong() {
+        long b = getByte();
+        if (b >= 0) return b;
+
+        long res = b & 0x7f;
+        for (int shift = 7; ; shift += 7) {
+            b = getByte();
+            res |= (b & 0x7f) << shift;
+            if (b >= 0) return res;
+        }
+    }
+
+    public int getVarLongLength(long value) {
+        return (63 - Long.numberOfLeadingZeros(value | 1)) / 7 + 1;
+    }
+
+    /**
+     * Write a signed int with zig-zag and variable length encodings, so small negative values are also short.
+     */
+    public void putSignedVarInt(int value) {
+        putVarInt((value << 1) ^ (value >> 31));
+    }
+
+    public int getSignedVarInt() {
+        int n = getVarInt();
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    public int getSignedVarIntLength(int value) {
+        return getVarIntLength((value << 1) ^ (value >> 31));
+    }
+
+    public void putSignedVarLong(long value) {
+        putVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public long getSignedVarLong() {
+        long n = getVarLong();
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    public int getSignedVarLongLength(long value) {
+        return getVarLongLength((value << 1) ^ (value >> 63));
+    }
+
+    /**
+     * Write a sequence of longs as its length, its first value and the differences between consecutive values,
+     * all with variable length encodings. Very compact for sorted values like timestamps.
+     */
+    public void putDeltaLongs(long[] values) {
+        putDeltaLongs(values, 0, values.length);
+    }
+
+    public void putDeltaLongs(long[] values, int off, int len) {
+        putVarInt(len);
+
+        long previous = 0;
+        for (int i = off; i < off + len; i++) {
+            putSignedVarLong(values[i] - previous);
+            previous = values[i];
+        }
+    }
+
+    public long[] getDeltaLongs() {
+        long[] values = new long[getVarInt()];
+        readDeltaLongs(values, 0, values.length);
+        return values;
+    }
+
+    /**
+     * Read a sequence written by putDeltaLongs in an existing array, which must be large enough.
+     *
+     * @return number of values read
+     */
+    public int getDeltaLongs(long[] values, int off) {
+        int len = getVarInt();
+        if (off + len > values.length) {
+            throw new IllegalArgumentException("Array too small for " + len + " values");
+        }
+        readDeltaLongs(values, off, len);
+        return len;
+    }
+
+    private void readDeltaLongs(long[] values, int off, int len) {
+        long previous = 0;
+        for (int i = off; i < off + len; i++) {
+            previous += getSignedVarLong();
+            values[i] = previous;
+        }
+    }
+
+    public int getDeltaLongsLength(long[] values) {
+        return getDeltaLongsLength(values, 0, values.length);
+    }
+
+    public int getDeltaLongsLength(long[] values, int off, int len) {
+        int res = getVarIntLength(len);
+
+        long previous = 0;
+        for (int i = off; i < off + len; i++) {
+            res += getSignedVarLongLength(values[i] - previous);
+            previous = values[i];
+        }
+
+        return res;
     }
 
     public void putBytes(byte[] bytes) {
         int len = bytes.length;
-        Utils.UNSAFE.copyMemory(bytes, Utils.BYTES_OFFSET, null, currentAddress, len);
+        if (checked) checkBounds(len);
+        Utils.MEMORY.putBytes(currentAddress, bytes, 0, len);
         currentAddress += len;
     }
 
     public void putBytes(byte[] bytes, int off, int len) {
-        Utils.UNSAFE.copyMemory(bytes, Utils.BYTES_OFFSET + off, null, currentAddress, len);
+        if (checked) checkBounds(len);
+        Utils.MEMORY.putBytes(currentAddress, bytes, off, len);
         currentAddress += len;
     }
 
     public void getBytes(byte[] bytes) {
         int len = bytes.length;
-        Utils.UNSAFE.copyMemory(null, currentAddress, bytes, Utils.BYTES_OFFSET, len);
+        if (checked) checkBounds(len);
+        Utils.MEMORY.getBytes(currentAddress, bytes, 0, len);
         currentAddress += len;
     }
 
     public void getBytes(byte[] bytes, int off, int len) {
-        Utils.UNSAFE.copyMemory(null, currentAddress, bytes, Utils.BYTES_OFFSET + off, len);
+        if (checked) checkBounds(len);
+        Utils.MEMORY.getBytes(currentAddress, bytes, off, len);
         currentAddress += len;
     }
 
+    /*
+     * Arrays of primitives are written as an int length (-1 for null) followed by the values, copied with a single
+     * bulk copy.
+     */
+
+    public void putInts(int[] values) {
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+
+        putInts(values, 0, values.length);
+    }
+
+    public void putInts(int[] values, int off, int len) {
+        putInt(len);
+        if (checked) checkBounds((long) len << 2);
+
+        if (swapBytes) {
+            for (int i = off; i < off + len; i++) {
+                putInt(values[i]);
+            }
+            return;
+        }
+
+        long bytes = (long) len << 2;
+        Utils.MEMORY.putInts(currentAddress, values, off, len);
+        currentAddress += bytes;
+    }
+
+    public int[] getInts() {
+        int len = getInt();
+        if (len == -1) return null;
+
+        int[] values = new int[len];
+        copyInts(values, 0, len);
+        return values;
+    }
+
+    /**
+     * Read values in an existing array, which must be large enough.
+     *
+     * @return number of values read or -1 for a null array
+     */
+    public int getInts(int[] values, int off) {
+        int len = getInt();
+        if (len == -1) return -1;
+
+        if (off + len > values.length) {
+            throw new IllegalArgumentException("Array too small for " + len + " values");
+        }
+        copyInts(values, off, len);
+        return len;
+    }
+
+    private void copyInts(int[] values, int off, int len) {
+        if (checked) checkBounds((long) len << 2);
+
+        if (swapBytes) {
+            for (int i = off; i < off + len; i++) {
+                values[i] = getInt();
+            }
+            return;
+        }
+
+        long bytes = (long) len << 2;
+        Utils.MEMORY.getInts(currentAddress, values, off, len);
+        currentAddress += bytes;
+    }
+
+    public int getIntsLength(int[] values) {
+        if (values == null) return 4;
+
+        return 4 + values.length * 4;
+    }
+
+    public void putLongs(long[] values) {
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+
+        putLongs(values, 0, values.length);
+    }
+
+    public void putLongs(long[] values, int off, int len) {
+        putInt(len);
+        if (checked) checkBounds((long) len << 3);
+
+        if (swapBytes) {
+            for (int i = off; i < off + len; i++) {
+                putLong(values[i]);
+            }
+            return;
+        }
+
+        long bytes = (long) len << 3;
+        Utils.MEMORY.putLongs(currentAddress, values, off, len);
+        currentAddress += bytes;
+    }
+
+    public long[] getLongs() {
+        int len = getInt();
+        if (len == -1) return null;
+
+        long[] values = new long[len];
+        copyLongs(values, 0, len);
+        return values;
+    }
+
+    /**
+     * Read values in an existing array, which must be large enough.
+     *
+     * @return number of values read or -1 for a null array
+     */
+    public int getLongs(long[] values, int off) {
+        int len = getInt();
+        if (len == -1) return -1;
+
+        if (off + len > values.length) {
+            throw new IllegalArgumentException("Array too small for " + len + " values");
+        }
+        copyLongs(values, off, len);
+        return len;
+    }
+
+    private void copyLongs(long[] values, int off, int len) {
+        if (checked) checkBounds((long) len << 3);
+
+        if (swapBytes) {
+            for (int i = off; i < off + len; i++) {
+                values[i] = getLong();
+            }
+            return;
+        }
+
+        long bytes = (long) len << 3;
+        Utils.MEMORY.getLongs(currentAddress, values, off, len);
+        currentAddress += bytes;
+    }
+
+    public int getLongsLength(long[] values) {
+        if (values == null) return 4;
+
+        return 4 + values.length * 8;
+    }
+
+    public void putFloats(float[] values) {
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+
+        putFloats(values, 0, values.length);
+    }
+
+    public void putFloats(float[] values, int off, int len) {
+        putInt(len);
+        if (checked) checkBounds((long) len << 2);
+
+        if (swapBytes) {
+            for (int i = off; i < off + len; i++) {
+                putFloat(values[i]);
+            }
+            return;
+        }
+
+        long bytes = (long) len << 2;
+        Utils.MEMORY.putFloats(currentAddress, values, off, len);
+        currentAddress += bytes;
+    }
+
+    public float[] getFloats() {
+        int len = getInt();
+        if (len == -1) return null;
+
+        float[] values = new float[len];
+        copyFloats(values, 0, len);
+        return values;
+    }
+
+    /**
+     * Read values in an existing array, which must be large enough.
+     *
+     * @return number of values read or -1 for a null array
+     */
+    public int getFloats(float[] values, int off) {
+        int len = getInt();
+        if (len == -1) return -1;
+
+        if (off + len > values.length) {
+            throw new IllegalArgumentException("Array too small for " + len + " values");
+        }
+        copyFloats(values, off, len);
+        return len;
+    }
+
+    private void copyFloats(float[] values, int off, int len) {
+        if (checked) checkBounds((long) len << 2);
+
+        if (swapBytes) {
+            for (int i = off; i < off + len; i++) {
+                values[i] = getFloat();
+            }
+            return;
+        }
+
+        long bytes = (long) len << 2;
+        Utils.MEMORY.getFloats(currentAddress, values, off, len);
+        currentAddress += bytes;
+    }
+
+    public int getFloatsLength(float[] values) {
+        if (values == null) return 4;
+
+        return 4 + values.length * 4;
+    }
+
+    public void putDoubles(double[] values) {
+        if (values == null) {
+            putInt(-1);
+            return;
+        }
+
+        putDoubles(values, 0, values.length);
+    }
+
+    public void putDoubles(double[] values, int off, int len) {
+        putInt(len);
+        if (checked) checkBounds((long) len << 3);
+
+        if (swapBytes) {
+            for (int i = off; i < off + len; i++) {
+                putDouble(values[i]);
+            }
+            return;
+        }
+
+        long bytes = (long) len << 3;
+        Utils.MEMORY.putDoubles(currentAddress, values, off, len);
+        currentAddress += bytes;
+    }
+
+    public double[] getDoubles() {
+        int len = getInt();
+        if (len == -1) return null;
+
+        double[] values = new double[len];
+        copyDoubles(values, 0, len);
+        return values;
+    }
+
+    /**
+     * Read values in an existing array, which must be large enough.
+     *
+     * @return number of values read or -1 for a null array
+     */
+    public int getDoubles(double[] values, int off) {
+        int len = getInt();
+        if (len == -1) return -1;
+
+        if (off + len > values.length) {
+            throw new IllegalArgumentException("Array too small for " + len + " values");
+        }
+        copyDoubles(values, off, len);
+        return len;
+    }
+
+    private void copyDoubles(double[] values, int off, int len) {
+        if (checked) checkBounds((long) len << 3);
+
+        if (swapBytes) {
+            for (int i = off; i < off + len; i++) {
+                values[i] = getDouble();
+            }
+            return;
+        }
+
+        long bytes = (long) len << 3;
+        Utils.MEMORY.getDoubles(currentAddress, values, off, len);
+        currentAddress += bytes;
+    }
+
+    public int getDoublesLength(double[] values) {
+        if (values == null) return 4;
+
+        return 4 + values.length * 8;
+    }
+
+    /**
+     * Write a nested object as its serialized size (-1 for null) followed by its serialization.
+     */
+    public void putObject(DirectObject obj) {
+        if (obj == null) {
+            putInt(-1);
+            return;
+        }
+
+        int objSize = obj.getSerializedSize(this);
+        putInt(objSize);
+        if (checked) checkBounds(objSize);
+
+        long oldLimitAddress = limitAddress;
+        DirectLayout oldLayout = layout;
+        long oldLayoutAddress = layoutAddress;
+        limitAddress = currentAddress + objSize;
+
+        obj.serialize(this);
+
+        // the parent would overwrite the end of the nested object, check it before skipping unused space
+        if (currentAddress > limitAddress) {
+            throw new IllegalStateException("Write of nested object exceeded its size by " + (currentAddress - limitAddress) + " bytes");
+        }
+        currentAddress = limitAddress;
+        limitAddress = oldLimitAddress;
+        layout = oldLayout;
+        layoutAddress = oldLayoutAddress;
+    }
+
+    /**
+     * Read a nested object written by putObject in bean.
+     *
+     * @return false if a null object was written (bean is not modified)
+     */
+    public boolean getObject(DirectObject bean) {
+        int objSize = getInt();
+        if (objSize == -1) return false;
+        if (checked) checkBounds(objSize);
+
+        long oldLimitAddress = limitAddress;
+        DirectLayout oldLayout = layout;
+        long oldLayoutAddress = layoutAddress;
+        limitAddress = currentAddress + objSize;
+
+        bean.unserialize(this);
+
+        // the parent would read the end of the nested object again, check it before skipping unused space
+        if (currentAddress > limitAddress) {
+            throw new IllegalStateException("Read of nested object exceeded its size by " + (currentAddress - limitAddress) + " bytes");
+        }
+        currentAddress = limitAddress;
+        limitAddress = oldLimitAddress;
+        layout = oldLayout;
+        layoutAddress = oldLayoutAddress;
+
+        return true;
+    }
+
+    public int getObjectLength(DirectObject obj) {
+        if (obj == null) return 4;
+
+        return 4 + obj.getSerializedSize(this);
+    }
+
+    /*
+     * Embedded collections. The elements are preceded by the table of their end offsets (relative to the first
+     * element) so that DirectListView and DirectMapView can access an element without decoding the previous ones.
+     * Layout: int element count (-1 for null), int[count] end offsets, elements.
+     * Maps are stored as a list of keys and values (key0, value0, key1...) sorted by key.
+     */
+
+    private long startCollection(int count) {
+        putInt(count);
+        if (checked) checkBounds(4L * count);
+        long table = currentAddress;
+        currentAddress += 4L * count;
+        return table;
+    }
+
+    private void endElement(long table, int index) {
+        long data = table + 4L * readInt(table - 4);
+        writeInt(table + 4L * index, (int) (currentAddress - data));
+    }
+
+    private int getCollectionLength(int count, int elementsLength) {
+        return 4 + 4 * count + elementsLength;
+    }
+
+    public void putStringList(Collection<? extends CharSequence> list) {
+        if (list == null) {
+            putInt(-1);
+            return;
+        }
+
+        long table = startCollection(list.size());
+        int i = 0;
+        for (CharSequence str : list) {
+            putString(str);
+            endElement(table, i++);
+        }
+    }
+
+    public List<String> getStringList() {
+        int count = getInt();
+        if (count == -1) return null;
+
+        if (checked) checkBounds(4L * count);
+        currentAddress += 4L * count;
+
+        List<String> res = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            res.add(getString());
+        }
+
+        return res;
+    }
+
+    public int getStringListLength(Collection<? extends CharSequence> list) {
+        if (list == null) return 4;
+
+        int res = 0;
+        for (CharSequence str : list) {
+            res += getStringLength(str);
+        }
+
+        return getCollectionLength(list.size(), res);
+    }
+
+    /**
+     * Write a list of nested objects, each one as written by putObject. Read it with getListView.
+     */
+    public void putObjectList(Collection<? extends DirectObject> list) {
+        if (list == null) {
+            putInt(-1);
+            return;
+        }
+
+        long table = startCollection(list.size());
+        int i = 0;
+        for (DirectObject obj : list) {
+            putObject(obj);
+            endElement(table, i++);
+        }
+    }
+
+    public int getObjectListLength(Collection<? extends DirectObject> list) {
+        if (list == null) return 4;
+
+        int res = 0;
+        for (DirectObject obj : list) {
+            res += getObjectLength(obj);
+        }
+
+        return getCollectionLength(list.size(), res);
+    }
+
+    private static String[] getSortedKeys(Map<String, ?> map) {
+        String[] keys = map.keySet().toArray(new String[map.size()]);
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * @throws IllegalArgumentException if a value is null, before anything is written
+     */
+    public void putStringLongMap(Map<String, Long> map) {
+        if (map == null) {
+            putInt(-1);
+            return;
+        }
+        if (map.containsValue(null)) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+
+        long table = startCollection(2 * map.size());
+        int i = 0;
+        for (String key : getSortedKeys(map)) {
+            putString(key);
+            endElement(table, i++);
+            putLong(map.get(key));
+            endElement(table, i++);
+        }
+    }
+
+    public Map<String, Long> getStringLongMap() {
+        int count = getInt();
+        if (count == -1) return null;
+
+        if (checked) checkBounds(4L * count);
+        currentAddress += 4L * count;
+
+        Map<String, Long> res = new HashMap<String, Long>();
+        for (int i = 0; i < count; i += 2) {
+            String key = getString();
+            res.put(key, getLong());
+        }
+
+        return res;
+    }
+
+    public int getStringLongMapLength(Map<String, Long> map) {
+        if (map == null) return 4;
+
+        int res = 0;
+        for (String key : map.keySet()) {
+            res += getStringLength(key) + 8;
+        }
+
+        return getCollectionLength(2 * map.size(), res);
+    }
+
+    public void putStringStringMap(Map<String, String> map) {
+        if (map == null) {
+            putInt(-1);
+            return;
+        }
+
+        long table = startCollection(2 * map.size());
+        int i = 0;
+        for (String key : getSortedKeys(map)) {
+            putString(key);
+            endElement(table, i++);
+            putString(map.get(key));
+            endElement(table, i++);
+        }
+    }
+
+    public Map<String, String> getStringStringMap() {
+        int count = getInt();
+        if (count == -1) return null;
+
+        if (checked) checkBounds(4L * count);
+        currentAddress += 4L * count;
+
+        Map<String, String> res = new HashMap<String, String>();
+        for (int i = 0; i < count; i += 2) {
+            String key = getString();
+            res.put(key, getString());
+        }
+
+        return res;
+    }
+
+    public int getStringStringMapLength(Map<String, String> map) {
+        if (map == null) return 4;
+
+        int res = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            res += getStringLength(entry.getKey()) + getStringLength(entry.getValue());
+        }
+
+        return getCollectionLength(2 * map.size(), res);
+    }
+
+    /**
+     * Write a map of nested objects, each one as written by putObject. Read it with getMapView.
+     */
+    public void putStringObjectMap(Map<String, ? extends DirectObject> map) {
+        if (map == null) {
+            putInt(-1);
+            return;
+        }
+
+        long table = startCollection(2 * map.size());
+        int i = 0;
+        for (String key : getSortedKeys(map)) {
+            putString(key);
+            endElement(table, i++);
+            putObject(map.get(key));
+            endElement(table, i++);
+        }
+    }
+
+    public int getStringObjectMapLength(Map<String, ? extends DirectObject> map) {
+        if (map == null) return 4;
+
+        int res = 0;
+        for (Map.Entry<String, ? extends DirectObject> entry : map.entrySet()) {
+            res += getStringLength(entry.getKey()) + getObjectLength(entry.getValue());
+        }
+
+        return getCollectionLength(2 * map.size(), res);
+    }
+
+    /**
+     * Move view to the list at the current position and skip it. Elements are decoded by the view on access.
+     */
+    public DirectListView getListView(DirectListView view) {
+        if (checked) checkBounds(4);
+        view.setOptions(this);
+        view.moveTo(currentAddress);
+        if (checked) checkBounds(view.getLength());
+        currentAddress += view.getLength();
+        return view;
+    }
+
+    /**
+     * Move view to the array written by putInts at the current position and skip it. Values are read with
+     * view.getInt(index).
+     */
+    public DirectListView getIntsView(DirectListView view) {
+        return getArrayView(view, 4);
+    }
+
+    /**
+     * Same as getIntsView for an array written by putLongs, values are read with view.getLong(index).
+     */
+    public DirectListView getLongsView(DirectListView view) {
+        return getArrayView(view, 8);
+    }
+
+    /**
+     * Same as getIntsView for an array written by putDoubles, values are read with view.getDouble(index).
+     */
+    public DirectListView getDoublesView(DirectListView view) {
+        return getArrayView(view, 8);
+    }
+
+    private DirectListView getArrayView(DirectListView view, int elementSize) {
+        if (checked) checkBounds(4);
+        view.setOptions(this);
+        view.moveToArray(currentAddress, elementSize);
+        if (checked) checkBounds(view.getLength());
+        currentAddress += view.getLength();
+        return view;
+    }
+
+    /**
+     * Move view to the map at the current position and skip it. Entries are decoded by the view on access.
+     */
+    public DirectMapView getMapView(DirectMapView view) {
+        if (checked) checkBounds(4);
+        view.setOptions(this);
+        view.moveTo(currentAddress);
+        if (checked) checkBounds(view.getLength());
+        currentAddress += view.getLength();
+        return view;
+    }
+
     public void putString(CharSequence str) {
         if (str == null) {
             putInt(-1);
@@ -185,15 +1278,8 @@ public class DirectObjectContext {
             }
         }
 
-        // create String without copying char[]
-        // UnsafeUtils.UNSAFE.allocateInstance(String.class) crashes??
-        String res = new String();
-        Utils.UNSAFE.putObject(res, Utils.STRING_VALUE_OFFSET, chars);
-        if (Utils.STRING_COUNT_OFFSET != 0) {
-            Utils.UNSAFE.putInt(res, Utils.STRING_COUNT_OFFSET, chars.length);
-        }
-
-        return res;
+        // create String without copying char[] if possible
+        return Utils.newString(chars);
     }
 
     public int getStringLength(CharSequence str) {
@@ -239,15 +1325,8 @@ public class DirectObjectContext {
             chars[i] = getChar();
         }
 
-        // create String without copying char[]
-        // UnsafeUtils.UNSAFE.allocateInstance(String.class) crashes??
-        String res = new String();
-        Utils.UNSAFE.putObject(res, Utils.STRING_VALUE_OFFSET, chars);
-        if (Utils.STRING_COUNT_OFFSET != 0) {
-            Utils.UNSAFE.putInt(res, Utils.STRING_COUNT_OFFSET, chars.length);
-        }
-
-        return res;
+        // create String without copying char[] if possible
+        return Utils.newString(chars);
     }
 
     public int getStringFastLength(CharSequence str) {
@@ -279,15 +1358,8 @@ public class DirectObjectContext {
             chars[i] = (char) getByte();
         }
 
-        // create String without copying char[]
-        // UnsafeUtils.UNSAFE.allocateInstance(String.class) crashes??
-        String res = new String();
-        Utils.UNSAFE.putObject(res, Utils.STRING_VALUE_OFFSET, chars);
-        if (Utils.STRING_COUNT_OFFSET != 0) {
-            Utils.UNSAFE.putInt(res, Utils.STRING_COUNT_OFFSET, chars.length);
-        }
-
-        return res;
+        // create String without copying char[] if possible
+        return Utils.newString(chars);
     }
 
     public int getStringASCIILength(CharSequence str) {
@@ -303,10 +1375,11 @@ public class DirectObjectContext {
         return pos;
     }
 
+    /**
+     * Position after alignLong() at position pos of a top level object. alignLong() aligns the address and objects
+     * start after their 4-byte size, so positions are aligned modulo 8 with an offset of 4.
+     */
     public int alignPositionLong(int pos) {
-        if ((pos & 7) != 0) {
-            return ((pos >> 3) + 1) << 3;
-        }
-        return pos;
+        return ((pos + 4 + 7) & ~7) - 4;
     }
 }
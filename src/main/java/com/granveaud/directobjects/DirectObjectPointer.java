@@ -15,6 +15,8 @@ public class DirectObjectPointer {
 
         private DirectObjectContext directObjectContext;
         private boolean autoRelease;
+        private ByteOrder byteOrder;
+        private DirectAllocator allocator = DirectAllocator.NATIVE;
 
         public Builder fromBean(DirectObject bean) {
             this.bean = bean;
@@ -41,6 +43,24 @@ public class DirectObjectPointer {
             return this;
         }
 
+        /**
+         * Byte order of the object size read from a file channel or a mapped buffer (native order by default for a
+         * file channel, order of the buffer for a mapped buffer). For fromBean, serialize with a context in this
+         * byte order if no context is given.
+         */
+        public Builder withByteOrder(ByteOrder byteOrder) {
+            this.byteOrder = byteOrder;
+            return this;
+        }
+
+        /**
+         * Allocator of the memory block of the object (DirectAllocator.NATIVE by default).
+         */
+        public Builder withAllocator(DirectAllocator allocator) {
+            this.allocator = allocator;
+            return this;
+        }
+
         public DirectObjectPointer build() {
             if (bean == null && fileChannel == null && mappedByteBuffer == null) {
                 throw new IllegalArgumentException("One of fromBean, fromFileChannel or fromMappedByteBuffer is mandatory");
@@ -48,31 +68,38 @@ public class DirectObjectPointer {
 
             DirectObjectPointer pointer = null;
             if (bean != null) {
-                pointer = DirectObjectPointer.createFromBean(bean, directObjectContext != null ? directObjectContext : new DirectObjectContext());
+                DirectObjectContext doContext = directObjectContext;
+                if (doContext == null) {
+                    doContext = byteOrder != null ? new DirectObjectContext(byteOrder) : DirectObjectContext.getThreadContext();
+                }
+                pointer = DirectObjectPointer.createFromBean(bean, doContext, allocator);
             } else if (fileChannel != null) {
                 try {
                     // read objSize
-                    ByteBuffer tempBuffer = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+                    ByteBuffer tempBuffer = ByteBuffer.allocate(4).order(byteOrder != null ? byteOrder : ByteOrder.nativeOrder());
                     fileChannel.read(tempBuffer);
 
                     tempBuffer.flip();
                     tempBuffer.position(0);
                     int objSize = tempBuffer.getInt();
 
-                    pointer = DirectObjectPointer.createFromFileChannel(fileChannel, objSize);
+                    pointer = DirectObjectPointer.createFromFileChannel(fileChannel, objSize, allocator);
                 } catch (IOException e) {
                     throw new IllegalArgumentException("Cannot read from file channel", e);
                 }
             } else if (mappedByteBuffer != null) {
                 // read objSize
                 int objSize = mappedByteBuffer.getInt();
+                if (byteOrder != null && byteOrder != mappedByteBuffer.order()) {
+                    objSize = Integer.reverseBytes(objSize);
+                }
 
-                pointer = DirectObjectPointer.createFromMappedByteBuffer(mappedByteBuffer, objSize);
+                pointer = DirectObjectPointer.createFromMappedByteBuffer(mappedByteBuffer, objSize, allocator);
             }
 
             // autoclose option
             if (autoRelease) {
-                pointer = new DirectObjectPointerAutoRelease(pointer.address);
+                pointer = new DirectObjectPointerAutoRelease(pointer.address, pointer.allocator);
             }
 
             return pointer;
@@ -80,8 +107,8 @@ public class DirectObjectPointer {
     }
 
     private static class DirectObjectPointerAutoRelease extends DirectObjectPointer {
-        DirectObjectPointerAutoRelease(long address) {
-            super(address);
+        DirectObjectPointerAutoRelease(long address, DirectAllocator allocator) {
+            super(address, allocator);
         }
 
         @Override
@@ -91,70 +118,84 @@ public class DirectObjectPointer {
     }
 
     protected long address;
+    protected DirectAllocator allocator;
+
+    DirectObjectPointer(long address) {
+        this(address, DirectAllocator.NATIVE);
+    }
 
-    private DirectObjectPointer(long address) {
+    DirectObjectPointer(long address, DirectAllocator allocator) {
         this.address = address;
+        this.allocator = allocator;
     }
 
-    private DirectObjectPointer(int objSize) {
-        address = Utils.UNSAFE.allocateMemory(objSize + 4);
-        Utils.UNSAFE.putInt(address, objSize);
+    private DirectObjectPointer(int objSize, DirectAllocator allocator) {
+        this.allocator = allocator;
+        address = allocator.allocate(objSize + 4);
+        Utils.MEMORY.putInt(address, objSize);
     }
 
     private void realloc(int newObjSize) {
-        address = Utils.UNSAFE.reallocateMemory(address, newObjSize + 4);
-        Utils.UNSAFE.putInt(address, newObjSize);
+        address = allocator.reallocate(address, newObjSize + 4);
+        Utils.MEMORY.putInt(address, newObjSize);
     }
 
     public void free() {
         if (address != 0) {
-            Utils.UNSAFE.freeMemory(address);
+            allocator.free(address);
             address = 0;
         }
     }
 
-    private static DirectObjectPointer createFromBean(DirectObject bean, DirectObjectContext doContext) {
+    private static DirectObjectPointer createFromBean(DirectObject bean, DirectObjectContext doContext, DirectAllocator allocator) {
         int objSize = bean.getSerializedSize(doContext);
 
         // allocate native memory
-        DirectObjectPointer pointer = new DirectObjectPointer(objSize);
-        doContext.reset(pointer);
-
-        // serialize
-        doContext.startReadWrite();
-        bean.serialize(doContext);
-        doContext.finishReadWrite();
+        DirectObjectPointer pointer = new DirectObjectPointer(objSize, allocator);
+        boolean serialized = false;
+        try {
+            doContext.reset(pointer);
+
+            // serialize
+            doContext.startReadWrite();
+            bean.serialize(doContext);
+            doContext.finishReadWrite();
+            serialized = true;
+        } finally {
+            // don't leak the block if serialize fails
+            if (!serialized) pointer.free();
+        }
 
         return pointer;
     }
 
-    private static DirectObjectPointer createFromFileChannel(FileChannel fc, int objSize) throws IOException {
-        DirectObjectPointer p = new DirectObjectPointer(objSize);
+    private static DirectObjectPointer createFromFileChannel(FileChannel fc, int objSize, DirectAllocator allocator) throws IOException {
+        DirectObjectPointer p = new DirectObjectPointer(objSize, allocator);
         fc.position(fc.position() - 4); // rewind objectSize
         fc.read(p.getAsByteBuffer());
 
+        // size may have been written in another byte order
+        Utils.MEMORY.putInt(p.address, objSize);
+
         return p;
     }
 
-    private static DirectObjectPointer createFromMappedByteBuffer(MappedByteBuffer map, int objSize) {
-        DirectObjectPointer p = new DirectObjectPointer(objSize);
+    private static DirectObjectPointer createFromMappedByteBuffer(MappedByteBuffer map, int objSize, DirectAllocator allocator) {
+        DirectObjectPointer p = new DirectObjectPointer(objSize, allocator);
 
-        try {
-            // copy memory from MappedByteBuffer to native memory
-            long mapAddress = Utils.UNSAFE.getLong(map, Utils.BUFFER_ADDRESS_OFFSET);
-            Utils.UNSAFE.copyMemory(null, mapAddress, null, p.address, objSize + 4);
-
-            // change position in MappedByteBuffer
-            map.position(map.position() + objSize);
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Cannot get mapped byte buffer info", e);
-        }
+        // copy memory from MappedByteBuffer to native memory
+        ByteBuffer src = map.duplicate();
+        src.limit(src.position() + objSize);
+        p.getAsByteBuffer(4).put(src);
+
+        // change position in MappedByteBuffer
+        map.position(map.position() + objSize);
 
         return p;
     }
 
     public void updateFromBean(DirectObject bean) {
-        updateFromBean(bean, new DirectObjectContext());
+        updateFromBean(bean, DirectObjectContext.getThreadContext());
     }
 
     public void updateFromBean(DirectObject bean, DirectObjectContext doContext) {
@@ -175,7 +216,7 @@ public class DirectObjectPointer {
     }
 
     public void populateBean(DirectObject bean) {
-        populateBean(bean, new DirectObjectContext());
+        populateBean(bean, DirectObjectContext.getThreadContext());
     }
 
     public void populateBean(DirectObject bean, DirectObjectContext doContext) {
@@ -184,26 +225,45 @@ public class DirectObjectPointer {
         // unserialize
         doContext.startReadWrite();
         bean.unserialize(doContext);
-        doContext.finishReadWrite();
+        doContext.finishRead();
     }
 
     public long getAddress() {
         return address;
     }
 
+    public DirectAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Move the object to a new block of allocator and free the old block. The address changes.
+     */
+    public void relocate(DirectAllocator allocator) {
+        if (address == 0) return;
+
+        long size = getObjectSize() + 4;
+        long newAddress = allocator.allocate(size);
+        Utils.MEMORY.copyMemory(address, newAddress, size);
+        this.allocator.free(address);
+
+        this.address = newAddress;
+        this.allocator = allocator;
+    }
+
     public int getObjectSize() {
-        return (address != 0 ? Utils.UNSAFE.getInt(address) : 0);
+        return (address != 0 ? Utils.MEMORY.getInt(address) : 0);
     }
 
     private ByteBuffer getAsByteBuffer() {
+        return getAsByteBuffer(0);
+    }
+
+    private ByteBuffer getAsByteBuffer(int offset) {
         if (address == 0) return null;
 
-        try {
-            // instanciate a DirectByteBuffer which wraps the memory block including objectSize
-            return (ByteBuffer) Utils.DIRECT_BYTE_BUFFER_CONSTRUCTOR.newInstance(address, getObjectSize() + 4);
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Cannot instanciate DirectByteBuffer");
-        }
+        // ByteBuffer which wraps the memory block including objectSize
+        return Utils.MEMORY.wrap(address + offset, getObjectSize() + 4 - offset);
     }
 
     public void write(FileChannel fc) throws IOException {
@@ -211,8 +271,34 @@ public class DirectObjectPointer {
         fc.write(buffer);
     }
 
+    /**
+     * Write the object with its size in byteOrder. The object itself must have been serialized with a context in
+     * the same byte order.
+     */
+    public void write(FileChannel fc, ByteOrder byteOrder) throws IOException {
+        if (byteOrder == ByteOrder.nativeOrder()) {
+            write(fc);
+            return;
+        }
+
+        ByteBuffer sizeBuffer = ByteBuffer.allocate(4).order(byteOrder);
+        sizeBuffer.putInt(0, getObjectSize());
+
+        fc.write(new ByteBuffer[]{sizeBuffer, getAsByteBuffer(4)});
+    }
+
     public void write(MappedByteBuffer mappedByteBuffer) throws IOException {
         ByteBuffer buffer = getAsByteBuffer();
         mappedByteBuffer.put(buffer);
     }
+
+    /**
+     * Write the object with its size in byteOrder. The object itself must have been serialized with a context in
+     * the same byte order.
+     */
+    public void write(MappedByteBuffer mappedByteBuffer, ByteOrder byteOrder) throws IOException {
+        int objSize = getObjectSize();
+        mappedByteBuffer.putInt(byteOrder == mappedByteBuffer.order() ? objSize : Integer.reverseBytes(objSize));
+        mappedByteBuffer.put(getAsByteBuffer(4));
+    }
 }
@@ -0,0 +1,296 @@
+package com.granveaud.directobjects;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential reader of size-prefixed records (the format of DirectObjectPointer.write) in a file or a direct buffer
+ * (usually a MappedByteBuffer). Each record is exposed in place through a reused view and context, so a scan doesn't
+ * allocate memory per record:
+ * <pre>
+ * DirectObjectReader reader = new DirectObjectReader(fc);
+ * while (reader.next()) {
+ *     reader.populateBean(bean);
+ * }
+ * reader.close();
+ * </pre>
+ *
+ * A file is read with positional reads in a large native buffer (read-ahead), so the position of the channel is not
+ * used and several readers can read the same channel from different threads. A buffer is read in place, except when
+ * the records are not in the native byte order: each record is then copied in the reader buffer.
+ *
+ * split cuts the remaining records in ranges which can be read in parallel. A reader must be used by a single thread.
+ */
+public class DirectObjectReader implements Closeable {
+    private static final int DEFAULT_BUFFER_SIZE = 4 << 20;
+
+    private final FileChannel fc;
+    private final ByteBuffer mapping;
+    private long mappingAddress;
+
+    private final long end;
+    private final ByteOrder byteOrder;
+    private final boolean swapBytes;
+
+    // position of the next record, and of the current record (-1 if none)
+    private long position;
+    private long recordPosition = -1;
+
+    // read-ahead buffer for a file (bufferLimit bytes read from bufferStart), or copy of a record for a mapping
+    private long bufferAddress;
+    private int bufferCapacity;
+    private long bufferStart;
+    private int bufferLimit;
+
+    private final DirectObjectView view = new DirectObjectView();
+    private final DirectObjectContext doContext;
+
+    /**
+     * Read all the records of the file, in native byte order.
+     */
+    public DirectObjectReader(FileChannel fc) throws IOException {
+        this(fc, 0, fc.size(), DEFAULT_BUFFER_SIZE, ByteOrder.nativeOrder());
+    }
+
+    /**
+     * Read the records of the file between start and end.
+     *
+     * @param bufferSize size of the read-ahead buffer, it is enlarged for larger records
+     * @param byteOrder byte order of the records, see DirectObjectPointer.write(FileChannel, ByteOrder)
+     */
+    public DirectObjectReader(FileChannel fc, long start, long end, int bufferSize, ByteOrder byteOrder) {
+        this(fc, null, start, end, bufferSize, byteOrder);
+    }
+
+    /**
+     * Read the records of the buffer between its position and its limit, in native byte order. The position of the
+     * buffer is not changed.
+     */
+    public DirectObjectReader(ByteBuffer buffer) {
+        this(buffer, ByteOrder.nativeOrder());
+    }
+
+    public DirectObjectReader(ByteBuffer buffer, ByteOrder byteOrder) {
+        this(null, buffer, buffer.position(), buffer.limit(), 256, byteOrder);
+    }
+
+    private DirectObjectReader(FileChannel fc, ByteBuffer mapping, long start, long end, int bufferSize, ByteOrder byteOrder) {
+        if (bufferSize < 4 || start < 0 || start > end) {
+            throw new IllegalArgumentException("Invalid buffer size " + bufferSize + " or range " + start + "-" + end);
+        }
+
+        this.fc = fc;
+        this.mapping = mapping;
+        this.position = start;
+        this.end = end;
+        this.byteOrder = byteOrder;
+        this.swapBytes = byteOrder != ByteOrder.nativeOrder();
+        this.doContext = new DirectObjectContext(byteOrder);
+
+        if (mapping != null) {
+            // address of index 0 of the buffer
+            mappingAddress = Utils.MEMORY.getAddress(mapping);
+        }
+
+        bufferCapacity = bufferSize;
+        bufferAddress = Utils.MEMORY.allocate(bufferCapacity);
+    }
+
+    /**
+     * Move to the next record.
+     *
+     * @return false if there is no more record
+     */
+    public boolean next() throws IOException {
+        if (position >= end) {
+            recordPosition = -1;
+            return false;
+        }
+
+        int objSize = readObjectSize(position);
+
+        long recordAddress;
+        if (fc != null) {
+            ensureBuffered(position, objSize + 4);
+            recordAddress = bufferAddress + (position - bufferStart);
+            if (swapBytes) Utils.MEMORY.putInt(recordAddress, objSize);
+        } else if (!swapBytes) {
+            recordAddress = mappingAddress + position;
+        } else {
+            // the size must be in native order for the view
+            ensureBufferCapacity(objSize + 4);
+            Utils.MEMORY.copyMemory(mappingAddress + position + 4, bufferAddress + 4, objSize);
+            Utils.MEMORY.putInt(bufferAddress, objSize);
+            recordAddress = bufferAddress;
+        }
+
+        view.moveTo(recordAddress);
+        recordPosition = position;
+        position += objSize + 4;
+
+        return true;
+    }
+
+    /**
+     * @return position of the current record in the file or the buffer
+     */
+    public long getRecordPosition() {
+        checkRecord();
+        return recordPosition;
+    }
+
+    public int getObjectSize() {
+        checkRecord();
+        return view.getObjectSize();
+    }
+
+    /**
+     * View of the current record, valid until the next call to next.
+     */
+    public DirectObjectPointer getRecord() {
+        checkRecord();
+        return view;
+    }
+
+    /**
+     * Load the current record in the bean.
+     */
+    public void populateBean(DirectObject bean) {
+        checkRecord();
+        view.populateBean(bean, doContext);
+    }
+
+    /**
+     * Context used by populateBean, in the byte order of the records.
+     */
+    public DirectObjectContext getContext() {
+        return doContext;
+    }
+
+    /**
+     * Cut the records after the current one in at most parts readers over consecutive ranges of about the same
+     * size, which can be read by different threads. This reader is not changed. The cuts are found by reading the
+     * record sizes from the current position.
+     */
+    public DirectObjectReader[] split(int parts) throws IOException {
+        if (parts < 1) {
+            throw new IllegalArgumentException("Invalid number of parts " + parts);
+        }
+
+        long start = position;
+        long[] bounds = new long[parts + 1];
+        bounds[0] = start;
+
+        DirectObjectReader walker = createReader(start, end);
+        try {
+            for (int part = 1; part < parts; part++) {
+                long target = start + (end - start) / parts * part;
+                while (walker.position < target) {
+                    walker.skip();
+                }
+                bounds[part] = walker.position;
+            }
+        } finally {
+            walker.close();
+        }
+        bounds[parts] = end;
+
+        DirectObjectReader[] readers = new DirectObjectReader[parts];
+        for (int part = 0; part < parts; part++) {
+            readers[part] = createReader(bounds[part], bounds[part + 1]);
+        }
+
+        return readers;
+    }
+
+    /**
+     * Free the buffer. The file channel is not closed.
+     */
+    @Override
+    public void close() {
+        if (bufferAddress != 0) {
+            Utils.MEMORY.free(bufferAddress);
+            bufferAddress = 0;
+        }
+        if (mappingAddress != 0) {
+            Utils.MEMORY.releaseAddress(mappingAddress);
+            mappingAddress = 0;
+        }
+        recordPosition = -1;
+    }
+
+    private DirectObjectReader createReader(long start, long end) {
+        return new DirectObjectReader(fc, mapping, start, end, fc != null ? bufferCapacity : 256, byteOrder);
+    }
+
+    // move to the next record without reading its content
+    private void skip() throws IOException {
+        int objSize = readObjectSize(position);
+        position += objSize + 4;
+    }
+
+    private int readObjectSize(long recordPosition) throws IOException {
+        if (end - recordPosition < 4) {
+            throw new IOException("Truncated record at " + recordPosition);
+        }
+
+        int objSize;
+        if (fc != null) {
+            ensureBuffered(recordPosition, 4);
+            objSize = Utils.MEMORY.getInt(bufferAddress + (recordPosition - bufferStart));
+        } else {
+            objSize = Utils.MEMORY.getInt(mappingAddress + recordPosition);
+        }
+        if (swapBytes) objSize = Integer.reverseBytes(objSize);
+
+        if (objSize < 0 || objSize > end - recordPosition - 4) {
+            throw new IOException("Invalid object size " + objSize + " at " + recordPosition);
+        }
+
+        return objSize;
+    }
+
+    // make sure that the bytes [filePosition, filePosition + length) of the file are in the buffer
+    private void ensureBuffered(long filePosition, int length) throws IOException {
+        if (filePosition >= bufferStart && filePosition + length <= bufferStart + bufferLimit) return;
+
+        ensureBufferCapacity(length);
+
+        // keep the bytes already read after filePosition
+        int kept = 0;
+        if (filePosition >= bufferStart && filePosition < bufferStart + bufferLimit) {
+            kept = (int) (bufferStart + bufferLimit - filePosition);
+            Utils.MEMORY.copyMemory(bufferAddress + (filePosition - bufferStart), bufferAddress, kept);
+        }
+        bufferStart = filePosition;
+        bufferLimit = kept;
+
+        // read ahead as much as possible
+        int toRead = (int) Math.min(bufferCapacity - kept, end - filePosition - kept);
+        ByteBuffer buffer = Utils.MEMORY.wrap(bufferAddress + kept, toRead);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, filePosition + kept + buffer.position()) < 0) break;
+        }
+        bufferLimit += buffer.position();
+
+        if (bufferLimit < length) {
+            throw new IOException("Truncated record at " + filePosition);
+        }
+    }
+
+    private void ensureBufferCapacity(int capacity) {
+        if (capacity > bufferCapacity) {
+            bufferCapacity = Math.max(capacity, bufferCapacity * 2);
+            bufferAddress = Utils.MEMORY.reallocate(bufferAddress, bufferCapacity);
+        }
+    }
+
+    private void checkRecord() {
+        if (recordPosition < 0) {
+            throw new IllegalStateException("No current record");
+        }
+    }
+}
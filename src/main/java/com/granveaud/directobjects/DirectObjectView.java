@@ -0,0 +1,56 @@
+package com.granveaud.directobjects;
+
+/**
+ * Pointer to a size-prefixed object whose native memory is managed elsewhere (a DirectMap entry, a mapped file,
+ * a buffer...). A view can be moved to another address so the same instance is reused to read many objects.
+ *
+ * The memory is never freed or reallocated through a view.
+ */
+public class DirectObjectView extends DirectObjectPointer {
+    private static final ThreadLocal<DirectObjectView> THREAD_VIEW = new ThreadLocal<DirectObjectView>() {
+        @Override
+        protected DirectObjectView initialValue() {
+            return new DirectObjectView();
+        }
+    };
+
+    public DirectObjectView() {
+        super(0L);
+    }
+
+    public DirectObjectView(long address) {
+        super(address);
+    }
+
+    /**
+     * View cached for the current thread, to read or write an object at an address without allocation.
+     * Like DirectObjectContext.getThreadContext(), it must not be used by serialize/unserialize implementations.
+     */
+    public static DirectObjectView getThreadView() {
+        return THREAD_VIEW.get();
+    }
+
+    public DirectObjectView moveTo(long address) {
+        this.address = address;
+        return this;
+    }
+
+    @Override
+    public void free() {
+        throw new UnsupportedOperationException("Cannot free memory through a view");
+    }
+
+    @Override
+    public void relocate(DirectAllocator allocator) {
+        throw new UnsupportedOperationException("Cannot relocate memory through a view");
+    }
+
+    @Override
+    public void updateFromBean(DirectObject bean, DirectObjectContext doContext) {
+        if (bean.getSerializedSize(doContext) != getObjectSize()) {
+            throw new IllegalArgumentException("Cannot change object size through a view");
+        }
+
+        super.updateFromBean(bean, doContext);
+    }
+}
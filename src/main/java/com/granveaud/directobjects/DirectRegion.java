@@ -0,0 +1,296 @@
+package com.granveaud.directobjects;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Allocator which carves blocks out of large memory chunks instead of calling malloc for each object. Blocks are
+ * rounded to size classes (steps of 16 bytes up to 4KB, then powers of 2) and freed blocks are reused for the same
+ * class. A block which doesn't fit in the rest of the current chunk starts a new chunk.
+ *
+ * Chunks are aligned on huge pages (2MB by default) so that the kernel can back them with huge pages and large maps
+ * need far fewer TLB entries:
+ * - by default chunks are anonymous memory from the MemoryAccess backend. They are backed by huge pages only if
+ *   transparent huge pages are in "always" mode (/sys/kernel/mm/transparent_hugepage/enabled): Java can't call
+ *   madvise(MADV_HUGEPAGE), so the "madvise" mode gives regular pages
+ * - withDirectory maps chunks from files in a hugetlbfs mount point (for example /dev/hugepages), with pages
+ *   reserved by the administrator. The files are deleted as soon as they are mapped.
+ *
+ * Java can't bind memory to a NUMA node. With the default Linux policy a page is placed on the node of the thread
+ * which touches it first: use withPreTouch and build/fill the region from a thread running on the target node
+ * (process started with numactl --cpunodebind=N or thread bound with taskset), or start the JVM with
+ * numactl --membind=N. Use one region per node for data accessed by threads of that node.
+ *
+ * Memory is only returned to the system by close. allocate, reallocate and free are synchronized.
+ */
+public final class DirectRegion implements DirectAllocator {
+    public static final long HUGE_PAGE_SIZE = 2L << 20;
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
+    private static final int PAGE_SIZE = 4096;
+
+    // block header: int size class and padding, so that the payload is 8-byte aligned
+    private static final int HEADER_SIZE = 8;
+
+    // small classes: blocks of 16 to 4096 bytes by steps of 16, then one class per power of 2
+    private static final int SMALL_CLASSES = 256;
+    private static final int SMALL_LIMIT = SMALL_CLASSES << 4;
+    private static final int CLASS_COUNT = SMALL_CLASSES + 32;
+
+    public static class Builder {
+        private long chunkSize = 256L << 20;
+        private long alignment = HUGE_PAGE_SIZE;
+        private File directory;
+        private boolean preTouch;
+
+        /**
+         * Size of the chunks reserved when the region is full (256MB by default, 1GB max).
+         */
+        public Builder withChunkSize(long chunkSize) {
+            this.chunkSize = chunkSize;
+            return this;
+        }
+
+        /**
+         * Alignment of the chunks and of their size: the huge page size (2MB by default), or the page size of the
+         * hugetlbfs mount point.
+         */
+        public Builder withAlignment(long alignment) {
+            this.alignment = alignment;
+            return this;
+        }
+
+        /**
+         * Map chunks from files created in directory, usually a hugetlbfs mount point. The directory must be in
+         * memory (hugetlbfs or tmpfs), otherwise the region is written to disk.
+         */
+        public Builder withDirectory(File directory) {
+            this.directory = directory;
+            return this;
+        }
+
+        /**
+         * Touch every page of a chunk when it is reserved, from the reserving thread. Pages are then placed on the
+         * NUMA node of this thread and later accesses don't page fault.
+         */
+        public Builder withPreTouch(boolean preTouch) {
+            this.preTouch = preTouch;
+            return this;
+        }
+
+        public DirectRegion build() {
+            if (alignment < PAGE_SIZE || Long.bitCount(alignment) != 1) {
+                throw new IllegalArgumentException("Alignment must be a power of 2 >= " + PAGE_SIZE + ": " + alignment);
+            }
+            if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+                throw new IllegalArgumentException("Invalid chunk size " + chunkSize);
+            }
+            if (directory != null && !directory.isDirectory()) {
+                throw new IllegalArgumentException(directory + " is not a directory");
+            }
+
+            return new DirectRegion(roundUp(chunkSize, alignment), alignment, directory, preTouch);
+        }
+    }
+
+    private final long chunkSize;
+    private final long alignment;
+    private final File directory;
+    private final boolean preTouch;
+
+    // heads of the lists of free blocks of each class, the next block is stored in the payload
+    private final long[] freeLists = new long[CLASS_COUNT];
+
+    // current chunk
+    private long chunkPosition;
+    private long chunkLimit;
+
+    // addresses to free or release on close, mapped buffers must be referenced to stay mapped
+    private final List<Long> allocatedChunks = new ArrayList<Long>();
+    private final List<Long> mappedChunks = new ArrayList<Long>();
+    private final List<MappedByteBuffer> mappedBuffers = new ArrayList<MappedByteBuffer>();
+
+    private long reservedSize;
+    private long allocatedSize;
+
+    private DirectRegion(long chunkSize, long alignment, File directory, boolean preTouch) {
+        this.chunkSize = chunkSize;
+        this.alignment = alignment;
+        this.directory = directory;
+        this.preTouch = preTouch;
+    }
+
+    private static long roundUp(long value, long alignment) {
+        return (value + alignment - 1) & -alignment;
+    }
+
+    private static int getSizeClass(long blockSize) {
+        if (blockSize <= SMALL_LIMIT) {
+            return (int) ((blockSize + 15) >> 4) - 1;
+        }
+
+        // ceil(log2(blockSize)), at least 13
+        return SMALL_CLASSES + 64 - Long.numberOfLeadingZeros(blockSize - 1) - 13;
+    }
+
+    private static long getBlockSize(int sizeClass) {
+        return sizeClass < SMALL_CLASSES ? (long) (sizeClass + 1) << 4 : 1L << (sizeClass - SMALL_CLASSES + 13);
+    }
+
+    @Override
+    public synchronized long allocate(long size) {
+        int sizeClass = getSizeClass(size + HEADER_SIZE);
+        if (sizeClass >= CLASS_COUNT) {
+            throw new IllegalArgumentException("Cannot allocate " + size + " bytes");
+        }
+        long blockSize = getBlockSize(sizeClass);
+
+        long block = freeLists[sizeClass];
+        if (block != 0) {
+            freeLists[sizeClass] = Utils.MEMORY.getLong(block + HEADER_SIZE);
+        } else if (blockSize >= chunkSize) {
+            // large block: in its own chunk, the current chunk is kept
+            block = reserveChunk(blockSize);
+        } else {
+            if (chunkPosition == 0 || chunkPosition + blockSize > chunkLimit) {
+                chunkPosition = reserveChunk(chunkSize);
+                chunkLimit = chunkPosition + chunkSize;
+            }
+            block = chunkPosition;
+            chunkPosition += blockSize;
+        }
+
+        Utils.MEMORY.putInt(block, sizeClass);
+        allocatedSize += blockSize;
+
+        return block + HEADER_SIZE;
+    }
+
+    /**
+     * The header of the block is read and the block is copied under the region lock, but the caller must still be
+     * the only thread which uses the block (like free).
+     */
+    @Override
+    public synchronized long reallocate(long address, long size) {
+        if (address == 0) return allocate(size);
+
+        // keep the block if the new size has the same class
+        int sizeClass = Utils.MEMORY.getInt(address - HEADER_SIZE);
+        if (getSizeClass(size + HEADER_SIZE) == sizeClass) return address;
+
+        long newAddress = allocate(size);
+        Utils.MEMORY.copyMemory(address, newAddress, Math.min(size, getBlockSize(sizeClass) - HEADER_SIZE));
+        free(address);
+
+        return newAddress;
+    }
+
+    @Override
+    public synchronized void free(long address) {
+        long block = address - HEADER_SIZE;
+        int sizeClass = Utils.MEMORY.getInt(block);
+
+        Utils.MEMORY.putLong(address, freeLists[sizeClass]);
+        freeLists[sizeClass] = block;
+        allocatedSize -= getBlockSize(sizeClass);
+    }
+
+    /**
+     * @return capacity of the block at address, at least the allocated size
+     */
+    public long getCapacity(long address) {
+        return getBlockSize(Utils.MEMORY.getInt(address - HEADER_SIZE)) - HEADER_SIZE;
+    }
+
+    /**
+     * @return size of the chunks reserved by the region
+     */
+    public synchronized long getReservedSize() {
+        return reservedSize;
+    }
+
+    /**
+     * @return size of the blocks in use, including headers and rounding
+     */
+    public synchronized long getAllocatedSize() {
+        return allocatedSize;
+    }
+
+    /**
+     * Free all the chunks. Blocks allocated in the region must not be used anymore, new allocations reserve new
+     * chunks.
+     */
+    public synchronized void close() {
+        for (long address : allocatedChunks) {
+            Utils.MEMORY.free(address);
+        }
+        for (long address : mappedChunks) {
+            Utils.MEMORY.releaseAddress(address);
+        }
+
+        // mapped buffers are unmapped when they are garbage collected
+        allocatedChunks.clear();
+        mappedChunks.clear();
+        mappedBuffers.clear();
+
+        for (int i = 0; i < freeLists.length; i++) {
+            freeLists[i] = 0;
+        }
+        chunkPosition = chunkLimit = 0;
+        reservedSize = allocatedSize = 0;
+    }
+
+    // @return aligned address of a new chunk of at least size bytes
+    private long reserveChunk(long size) {
+        size = roundUp(size, alignment);
+
+        long chunk;
+        if (directory != null) {
+            MappedByteBuffer buffer = mapFile(size);
+            chunk = Utils.MEMORY.getAddress(buffer);
+            mappedBuffers.add(buffer);
+            mappedChunks.add(chunk);
+        } else {
+            // allocate one more page to align the chunk
+            long address = Utils.MEMORY.allocate(size + alignment);
+            allocatedChunks.add(address);
+            chunk = roundUp(address, alignment);
+        }
+
+        if (preTouch) {
+            for (long offset = 0; offset < size; offset += PAGE_SIZE) {
+                Utils.MEMORY.putByte(chunk + offset, (byte) 0);
+            }
+        }
+
+        reservedSize += size;
+        return chunk;
+    }
+
+    private MappedByteBuffer mapFile(long size) {
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cannot map more than 2GB: " + size);
+        }
+
+        File file = null;
+        try {
+            file = File.createTempFile("directregion", ".mem", directory);
+
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                raf.setLength(size);
+                return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Cannot map region file in " + directory, e);
+        } finally {
+            if (file != null) file.delete();
+        }
+    }
+}
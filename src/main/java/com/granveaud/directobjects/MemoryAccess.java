@@ -0,0 +1,101 @@
+package com.granveaud.directobjects;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Backend used by the library to allocate and access native memory. Memory is identified by long addresses which
+ * support arithmetic (address + offset) inside an allocated block.
+ *
+ * The backend is selected at startup with the system property directobjects.memory:
+ * - unsafe: sun.misc.Unsafe, the default when it is available
+ * - bytebuffer: direct ByteBuffers only, for JVMs where Unsafe is not accessible
+ * - the name of a class implementing this interface, with a public no-arg constructor
+ *
+ * Values are read and written in the native byte order.
+ */
+public interface MemoryAccess {
+
+    /**
+     * @return address of the memory of a direct or mapped buffer
+     */
+    long getAddress(Buffer buffer);
+
+    /**
+     * Called when an address returned by getAddress is not used anymore.
+     */
+    void releaseAddress(long address);
+
+    /**
+     * @return a ByteBuffer over size bytes at address, to read or write it with channels
+     */
+    ByteBuffer wrap(long address, int size);
+
+    long allocate(long size);
+
+    long reallocate(long address, long size);
+
+    void free(long address);
+
+    void setMemory(long address, long size, byte value);
+
+    void copyMemory(long srcAddress, long destAddress, long size);
+
+    byte getByte(long address);
+
+    void putByte(long address, byte value);
+
+    short getShort(long address);
+
+    void putShort(long address, short value);
+
+    char getChar(long address);
+
+    void putChar(long address, char value);
+
+    int getInt(long address);
+
+    void putInt(long address, int value);
+
+    long getLong(long address);
+
+    void putLong(long address, long value);
+
+    float getFloat(long address);
+
+    void putFloat(long address, float value);
+
+    double getDouble(long address);
+
+    void putDouble(long address, double value);
+
+    long getLongVolatile(long address);
+
+    void putLongVolatile(long address, long value);
+
+    void putOrderedLong(long address, long value);
+
+    boolean compareAndSwapLong(long address, long expected, long value);
+
+    // copy between native memory and arrays
+
+    void getBytes(long address, byte[] values, int off, int len);
+
+    void putBytes(long address, byte[] values, int off, int len);
+
+    void getInts(long address, int[] values, int off, int len);
+
+    void putInts(long address, int[] values, int off, int len);
+
+    void getLongs(long address, long[] values, int off, int len);
+
+    void putLongs(long address, long[] values, int off, int len);
+
+    void getFloats(long address, float[] values, int off, int len);
+
+    void putFloats(long address, float[] values, int off, int len);
+
+    void getDoubles(long address, double[] values, int off, int len);
+
+    void putDoubles(long address, double[] values, int off, int len);
+}
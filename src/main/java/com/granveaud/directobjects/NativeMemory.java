@@ -0,0 +1,91 @@
+package com.granveaud.directobjects;
+
+import java.nio.Buffer;
+
+/**
+ * Raw access to native memory for the off-heap structures of the library (indexes, buffers...), through the
+ * MemoryAccess backend. Addresses are not checked: use with care.
+ */
+public final class NativeMemory {
+
+    private NativeMemory() {
+    }
+
+    /**
+     * @return address of the memory of a direct or mapped buffer
+     */
+    public static long getAddress(Buffer buffer) {
+        return Utils.MEMORY.getAddress(buffer);
+    }
+
+    /**
+     * Release an address returned by getAddress, when the buffer is not used anymore.
+     */
+    public static void releaseAddress(long address) {
+        Utils.MEMORY.releaseAddress(address);
+    }
+
+    public static long allocate(long size) {
+        return Utils.MEMORY.allocate(size);
+    }
+
+    public static long reallocate(long address, long size) {
+        return Utils.MEMORY.reallocate(address, size);
+    }
+
+    public static void free(long address) {
+        Utils.MEMORY.free(address);
+    }
+
+    public static void setMemory(long address, long size, byte value) {
+        Utils.MEMORY.setMemory(address, size, value);
+    }
+
+    public static void copyMemory(long srcAddress, long destAddress, long size) {
+        Utils.MEMORY.copyMemory(srcAddress, destAddress, size);
+    }
+
+    public static byte getByte(long address) {
+        return Utils.MEMORY.getByte(address);
+    }
+
+    public static void putByte(long address, byte value) {
+        Utils.MEMORY.putByte(address, value);
+    }
+
+    public static int getInt(long address) {
+        return Utils.MEMORY.getInt(address);
+    }
+
+    public static void putInt(long address, int value) {
+        Utils.MEMORY.putInt(address, value);
+    }
+
+    public static long getLong(long address) {
+        return Utils.MEMORY.getLong(address);
+    }
+
+    public static void putLong(long address, long value) {
+        Utils.MEMORY.putLong(address, value);
+    }
+
+    public static long getLongVolatile(long address) {
+        return Utils.MEMORY.getLongVolatile(address);
+    }
+
+    public static void putLongVolatile(long address, long value) {
+        Utils.MEMORY.putLongVolatile(address, value);
+    }
+
+    /**
+     * Store with release semantics: cheaper than putLongVolatile, the value is visible to other threads after
+     * all previous writes.
+     */
+    public static void putOrderedLong(long address, long value) {
+        Utils.MEMORY.putOrderedLong(address, value);
+    }
+
+    public static boolean compareAndSwapLong(long address, long expected, long value) {
+        return Utils.MEMORY.compareAndSwapLong(address, expected, value);
+    }
+}
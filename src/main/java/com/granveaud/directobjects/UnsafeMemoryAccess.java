@@ -0,0 +1,235 @@
+package com.granveaud.directobjects;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * MemoryAccess with sun.misc.Unsafe: addresses are real native addresses.
+ */
+final class UnsafeMemoryAccess implements MemoryAccess {
+    private static final Unsafe UNSAFE = Utils.UNSAFE;
+
+    private static final long BYTES_OFFSET;
+    private static final long INTS_OFFSET;
+    private static final long LONGS_OFFSET;
+    private static final long FLOATS_OFFSET;
+    private static final long DOUBLES_OFFSET;
+
+    private static final long BUFFER_ADDRESS_OFFSET;
+    private static final long BUFFER_CAPACITY_OFFSET;
+
+    // empty direct buffer duplicated by wrap
+    private static final ByteBuffer EMPTY_DIRECT_BUFFER = ByteBuffer.allocateDirect(0);
+
+    static {
+        if (UNSAFE == null) {
+            throw new IllegalStateException("sun.misc.Unsafe is not available");
+        }
+
+        BYTES_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
+        INTS_OFFSET = UNSAFE.arrayBaseOffset(int[].class);
+        LONGS_OFFSET = UNSAFE.arrayBaseOffset(long[].class);
+        FLOATS_OFFSET = UNSAFE.arrayBaseOffset(float[].class);
+        DOUBLES_OFFSET = UNSAFE.arrayBaseOffset(double[].class);
+
+        try {
+            // fields of Buffer are read and written with Unsafe, so no reflective access to java.nio is needed
+            Field address = Buffer.class.getDeclaredField("address");
+            BUFFER_ADDRESS_OFFSET = UNSAFE.objectFieldOffset(address);
+            Field capacity = Buffer.class.getDeclaredField("capacity");
+            BUFFER_CAPACITY_OFFSET = UNSAFE.objectFieldOffset(capacity);
+        } catch (NoSuchFieldException e) {
+            throw new IllegalStateException("Cannot access Buffer fields", e);
+        }
+    }
+
+    @Override
+    public long getAddress(Buffer buffer) {
+        if (!buffer.isDirect()) {
+            throw new IllegalArgumentException("Buffer is not direct");
+        }
+        return UNSAFE.getLong(buffer, BUFFER_ADDRESS_OFFSET);
+    }
+
+    @Override
+    public void releaseAddress(long address) {
+        // the buffer is unmapped or freed when it is garbage collected
+    }
+
+    @Override
+    public ByteBuffer wrap(long address, int size) {
+        ByteBuffer buffer = EMPTY_DIRECT_BUFFER.duplicate();
+        UNSAFE.putLong(buffer, BUFFER_ADDRESS_OFFSET, address);
+        UNSAFE.putInt(buffer, BUFFER_CAPACITY_OFFSET, size);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public long allocate(long size) {
+        return UNSAFE.allocateMemory(size);
+    }
+
+    @Override
+    public long reallocate(long address, long size) {
+        return UNSAFE.reallocateMemory(address, size);
+    }
+
+    @Override
+    public void free(long address) {
+        UNSAFE.freeMemory(address);
+    }
+
+    @Override
+    public void setMemory(long address, long size, byte value) {
+        UNSAFE.setMemory(address, size, value);
+    }
+
+    @Override
+    public void copyMemory(long srcAddress, long destAddress, long size) {
+        UNSAFE.copyMemory(srcAddress, destAddress, size);
+    }
+
+    @Override
+    public byte getByte(long address) {
+        return UNSAFE.getByte(address);
+    }
+
+    @Override
+    public void putByte(long address, byte value) {
+        UNSAFE.putByte(address, value);
+    }
+
+    @Override
+    public short getShort(long address) {
+        return UNSAFE.getShort(address);
+    }
+
+    @Override
+    public void putShort(long address, short value) {
+        UNSAFE.putShort(address, value);
+    }
+
+    @Override
+    public char getChar(long address) {
+        return UNSAFE.getChar(address);
+    }
+
+    @Override
+    public void putChar(long address, char value) {
+        UNSAFE.putChar(address, value);
+    }
+
+    @Override
+    public int getInt(long address) {
+        return UNSAFE.getInt(address);
+    }
+
+    @Override
+    public void putInt(long address, int value) {
+        UNSAFE.putInt(address, value);
+    }
+
+    @Override
+    public long getLong(long address) {
+        return UNSAFE.getLong(address);
+    }
+
+    @Override
+    public void putLong(long address, long value) {
+        UNSAFE.putLong(address, value);
+    }
+
+    @Override
+    public float getFloat(long address) {
+        return UNSAFE.getFloat(address);
+    }
+
+    @Override
+    public void putFloat(long address, float value) {
+        UNSAFE.putFloat(address, value);
+    }
+
+    @Override
+    public double getDouble(long address) {
+        return UNSAFE.getDouble(address);
+    }
+
+    @Override
+    public void putDouble(long address, double value) {
+        UNSAFE.putDouble(address, value);
+    }
+
+    @Override
+    public long getLongVolatile(long address) {
+        return UNSAFE.getLongVolatile(null, address);
+    }
+
+    @Override
+    public void putLongVolatile(long address, long value) {
+        UNSAFE.putLongVolatile(null, address, value);
+    }
+
+    @Override
+    public void putOrderedLong(long address, long value) {
+        UNSAFE.putOrderedLong(null, address, value);
+    }
+
+    @Override
+    public boolean compareAndSwapLong(long address, long expected, long value) {
+        return UNSAFE.compareAndSwapLong(null, address, expected, value);
+    }
+
+    @Override
+    public void getBytes(long address, byte[] values, int off, int len) {
+        UNSAFE.copyMemory(null, address, values, BYTES_OFFSET + off, len);
+    }
+
+    @Override
+    public void putBytes(long address, byte[] values, int off, int len) {
+        UNSAFE.copyMemory(values, BYTES_OFFSET + off, null, address, len);
+    }
+
+    @Override
+    public void getInts(long address, int[] values, int off, int len) {
+        UNSAFE.copyMemory(null, address, values, INTS_OFFSET + ((long) off << 2), (long) len << 2);
+    }
+
+    @Override
+    public void putInts(long address, int[] values, int off, int len) {
+        UNSAFE.copyMemory(values, INTS_OFFSET + ((long) off << 2), null, address, (long) len << 2);
+    }
+
+    @Override
+    public void getLongs(long address, long[] values, int off, int len) {
+        UNSAFE.copyMemory(null, address, values, LONGS_OFFSET + ((long) off << 3), (long) len << 3);
+    }
+
+    @Override
+    public void putLongs(long address, long[] values, int off, int len) {
+        UNSAFE.copyMemory(values, LONGS_OFFSET + ((long) off << 3), null, address, (long) len << 3);
+    }
+
+    @Override
+    public void getFloats(long address, float[] values, int off, int len) {
+        UNSAFE.copyMemory(null, address, values, FLOATS_OFFSET + ((long) off << 2), (long) len << 2);
+    }
+
+    @Override
+    public void putFloats(long address, float[] values, int off, int len) {
+        UNSAFE.copyMemory(values, FLOATS_OFFSET + ((long) off << 2), null, address, (long) len << 2);
+    }
+
+    @Override
+    public void getDoubles(long address, double[] values, int off, int len) {
+        UNSAFE.copyMemory(null, address, values, DOUBLES_OFFSET + ((long) off << 3), (long) len << 3);
+    }
+
+    @Override
+    public void putDoubles(long address, double[] values, int off, int len) {
+        UNSAFE.copyMemory(values, DOUBLES_OFFSET + ((long) off << 3), null, address, (long) len << 3);
+    }
+}
@@ -2,45 +2,79 @@ package com.granveaud.directobjects;
 
 import sun.misc.Unsafe;
 
-import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
-import java.nio.Buffer;
 
 @SuppressWarnings("unchecked")
 public class Utils {
-    final static protected Unsafe UNSAFE;
-    final static protected int BYTES_OFFSET;
+    final static protected Unsafe UNSAFE; // null if not accessible
     final static protected long STRING_VALUE_OFFSET;
     final static protected long STRING_COUNT_OFFSET; // can be 0 for some Java versions
-    final static protected Constructor DIRECT_BYTE_BUFFER_CONSTRUCTOR;
-    final static protected long BUFFER_ADDRESS_OFFSET;
+    final static protected boolean STRING_VALUE_CHARS; // false since Java 9 (compact strings)
+
+    // backend used to access native memory, see MemoryAccess
+    final static protected MemoryAccess MEMORY;
 
     static {
+        UNSAFE = getUnsafe();
+
+        STRING_VALUE_OFFSET = getFieldOffset(String.class, "value");
+        STRING_COUNT_OFFSET = getFieldOffset(String.class, "count");
+        STRING_VALUE_CHARS = STRING_VALUE_OFFSET != 0 && isCharArrayField(String.class, "value");
+
+        MEMORY = createMemoryAccess(System.getProperty("directobjects.memory"));
+    }
+
+    private static Unsafe getUnsafe() {
         try {
             Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
             theUnsafe.setAccessible(true);
-            UNSAFE = (Unsafe) theUnsafe.get(null);
-            BYTES_OFFSET = UNSAFE.arrayBaseOffset(byte[].class);
-
-            STRING_VALUE_OFFSET = getFieldOffset(String.class, "value");
-            if (STRING_VALUE_OFFSET == 0) {
-                throw new RuntimeException("Can't get String.value offset");
-            }
-            STRING_COUNT_OFFSET = getFieldOffset(String.class, "count");
+            return (Unsafe) theUnsafe.get(null);
+        } catch (Throwable e) {
+            return null;
+        }
+    }
 
-            Class directByteBufferClass = Utils.class.getClassLoader().loadClass("java.nio.DirectByteBuffer");
-            DIRECT_BYTE_BUFFER_CONSTRUCTOR = directByteBufferClass.getDeclaredConstructor(long.class, int.class);
-            DIRECT_BYTE_BUFFER_CONSTRUCTOR.setAccessible(true);
+    private static MemoryAccess createMemoryAccess(String name) {
+        if (name == null) {
+            return UNSAFE != null ? new UnsafeMemoryAccess() : new ByteBufferMemoryAccess();
+        }
 
-            Field f3 = Buffer.class.getDeclaredField("address");
-            BUFFER_ADDRESS_OFFSET = UNSAFE.objectFieldOffset(f3);
+        if (name.equals("unsafe")) return new UnsafeMemoryAccess();
+        if (name.equals("bytebuffer")) return new ByteBufferMemoryAccess();
 
+        try {
+            return (MemoryAccess) Class.forName(name).getDeclaredConstructor().newInstance();
         } catch (Exception e) {
-            throw new RuntimeException("Can't initialize Unsafe", e);
+            throw new RuntimeException("Can't create memory access backend " + name, e);
         }
     }
 
-    private static long getFieldOffset(Class clazz, String field) {
+    /**
+     * @return name of the memory access backend
+     */
+    public static String getMemoryAccessName() {
+        return MEMORY.getClass().getSimpleName();
+    }
+
+    /**
+     * Create a String, sharing chars when the JVM stores Strings as char[]. chars must not be modified afterwards.
+     */
+    protected static String newString(char[] chars) {
+        if (!STRING_VALUE_CHARS) return new String(chars);
+
+        // UnsafeUtils.UNSAFE.allocateInstance(String.class) crashes??
+        String res = new String();
+        UNSAFE.putObject(res, STRING_VALUE_OFFSET, chars);
+        if (STRING_COUNT_OFFSET != 0) {
+            UNSAFE.putInt(res, STRING_COUNT_OFFSET, chars.length);
+        }
+
+        return res;
+    }
+
+    private static long getFieldOffset(Class<?> clazz, String field) {
+        if (UNSAFE == null) return 0;
+
         try {
             Field f = clazz.getDeclaredField(field);
             return UNSAFE.objectFieldOffset(f);
@@ -48,4 +82,12 @@ public class Utils {
             return 0;
         }
     }
+
+    private static boolean isCharArrayField(Class<?> clazz, String field) {
+        try {
+            return clazz.getDeclaredField(field).getType() == char[].class;
+        } catch (Exception e) {
+            return false;
+        }
+    }
 }
@@ -0,0 +1,141 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectPointer;
+import com.granveaud.directobjects.DirectObjectView;
+
+/**
+ * Secondary index on the values of a DirectMap, created with DirectMap.createIndex. The index is stored in
+ * native memory and is updated by the map on put and remove.
+ *
+ * Entries having the same indexed value are linked together so a lookup only visits matching entries:
+ * - the value table maps an indexed value to the address of the first entry and the number of entries
+ * - the address table maps the address of an entry to its indexed value and the previous/next entries
+ */
+public class DirectIndex {
+    // value table
+    private static final int HEAD = 0;
+    private static final int COUNT = 1;
+
+    // address table
+    private static final int VALUE = 0;
+    private static final int PREV = 1;
+    private static final int NEXT = 2;
+
+    private final DirectIndexKeyExtractor extractor;
+
+    private final LongHashTable valueTable;
+    private final LongHashTable addressTable;
+
+    DirectIndex(DirectIndexKeyExtractor extractor) {
+        this.extractor = extractor;
+
+        valueTable = new LongHashTable(2, 16);
+        addressTable = new LongHashTable(3, 16);
+    }
+
+    void add(DirectObjectPointer pointer, DirectObjectContext doContext) {
+        doContext.reset(pointer);
+        long value = extractor.extract(doContext);
+        long address = pointer.getAddress();
+
+        long valueSlot = valueTable.find(value);
+        if (valueSlot == 0) {
+            valueSlot = valueTable.insert(value);
+        }
+        long head = LongHashTable.getValue(valueSlot, HEAD);
+
+        long addressSlot = addressTable.insert(address);
+        LongHashTable.setValue(addressSlot, VALUE, value);
+        LongHashTable.setValue(addressSlot, NEXT, head);
+
+        if (head != 0) {
+            LongHashTable.setValue(addressTable.find(head), PREV, address);
+        }
+
+        LongHashTable.setValue(valueSlot, HEAD, address);
+        LongHashTable.setValue(valueSlot, COUNT, LongHashTable.getValue(valueSlot, COUNT) + 1);
+    }
+
+    boolean remove(long address) {
+        long addressSlot = addressTable.find(address);
+        if (addressSlot == 0) return false;
+
+        long value = LongHashTable.getValue(addressSlot, VALUE);
+        long prev = LongHashTable.getValue(addressSlot, PREV);
+        long next = LongHashTable.getValue(addressSlot, NEXT);
+
+        // unlink
+        long valueSlot = valueTable.find(value);
+        if (prev != 0) {
+            LongHashTable.setValue(addressTable.find(prev), NEXT, next);
+        } else {
+            LongHashTable.setValue(valueSlot, HEAD, next);
+        }
+        if (next != 0) {
+            LongHashTable.setValue(addressTable.find(next), PREV, prev);
+        }
+
+        long count = LongHashTable.getValue(valueSlot, COUNT) - 1;
+        if (count == 0) {
+            valueTable.remove(value);
+        } else {
+            LongHashTable.setValue(valueSlot, COUNT, count);
+        }
+
+        addressTable.remove(address);
+
+        return true;
+    }
+
+    void clear() {
+        valueTable.clear();
+        addressTable.clear();
+    }
+
+    void free() {
+        valueTable.free();
+        addressTable.free();
+    }
+
+    /**
+     * @return number of indexed entries
+     */
+    public int size() {
+        return addressTable.size();
+    }
+
+    /**
+     * @return number of entries whose indexed value is value
+     */
+    public int count(long value) {
+        long valueSlot = valueTable.find(value);
+        return (valueSlot != 0 ? (int) LongHashTable.getValue(valueSlot, COUNT) : 0);
+    }
+
+    /**
+     * Call visitor for each entry whose indexed value is value.
+     *
+     * @return number of matching entries
+     */
+    public int lookup(long value, DirectIndexVisitor visitor) {
+        long valueSlot = valueTable.find(value);
+        if (valueSlot == 0) return 0;
+
+        DirectObjectView view = DirectObjectView.getThreadView();
+
+        int count = 0;
+        long address = LongHashTable.getValue(valueSlot, HEAD);
+        while (address != 0) {
+            long next = LongHashTable.getValue(addressTable.find(address), NEXT);
+
+            // moved at each entry: the visitor may use the thread view too
+            visitor.visit(view.moveTo(address));
+            count++;
+
+            address = next;
+        }
+
+        return count;
+    }
+}
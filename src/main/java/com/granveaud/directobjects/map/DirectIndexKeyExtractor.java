@@ -0,0 +1,12 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObjectContext;
+
+/**
+ * Extract the indexed value from a serialized object. The context is positioned at the beginning of the object
+ * and the implementation reads only what it needs (for example skip a long then read an int), without
+ * unserializing the whole bean.
+ */
+public interface DirectIndexKeyExtractor {
+    long extract(DirectObjectContext doContext);
+}
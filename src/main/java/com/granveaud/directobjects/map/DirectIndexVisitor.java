@@ -0,0 +1,13 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObjectPointer;
+
+/**
+ * Callback used to iterate over the entries matching a DirectIndex lookup.
+ *
+ * The pointer is the view of the thread (DirectObjectView.getThreadView()), which is reused between calls. It must
+ * not be kept and the map must not be modified during the lookup.
+ */
+public interface DirectIndexVisitor {
+    void visit(DirectObjectPointer pointer);
+}
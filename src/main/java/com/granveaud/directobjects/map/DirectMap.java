@@ -1,17 +1,61 @@
 package com.granveaud.directobjects.map;
 
+import com.granveaud.directobjects.DirectAllocator;
 import com.granveaud.directobjects.DirectObject;
 import com.granveaud.directobjects.DirectObjectContext;
 import com.granveaud.directobjects.DirectObjectPointer;
+import com.granveaud.directobjects.DirectObjectView;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Supplier;
 
 public class DirectMap<K, V extends DirectObject> {
 
+    private static final Comparator<Map.Entry<?, DirectObjectPointer>> ADDRESS_COMPARATOR = new Comparator<Map.Entry<?, DirectObjectPointer>>() {
+        @Override
+        public int compare(Map.Entry<?, DirectObjectPointer> e1, Map.Entry<?, DirectObjectPointer> e2) {
+            long a1 = e1.getValue().getAddress();
+            long a2 = e2.getValue().getAddress();
+            return (a1 < a2 ? -1 : (a1 == a2 ? 0 : 1));
+        }
+    };
+
+    // scratch arrays of getAll, per thread so that concurrent read-only callers don't share them
+    private static final ThreadLocal<GetAllScratch> GET_ALL_SCRATCH = new ThreadLocal<GetAllScratch>() {
+        @Override
+        protected GetAllScratch initialValue() {
+            return new GetAllScratch();
+        }
+    };
+
+    // addresses of the values found and indexes of their keys
+    private static class GetAllScratch {
+        long[] addresses = new long[0];
+        int[] keyIndexes = new int[0];
+    }
+
     private Map<K, DirectObjectPointer> pointerMap;
+    private DirectAllocator allocator;
+
+    // secondary indexes
+    private DirectIndex[] indexes = new DirectIndex[0];
 
     public DirectMap() {
+        this(DirectAllocator.NATIVE);
+    }
+
+    /**
+     * Map whose values are allocated with allocator, for example a DirectRegion backed by huge pages.
+     */
+    public DirectMap(DirectAllocator allocator) {
+        this.allocator = allocator;
         pointerMap = new HashMap<K, DirectObjectPointer>();
     }
 
@@ -20,33 +64,77 @@ public class DirectMap<K, V extends DirectObject> {
             p.free();
         }
         pointerMap.clear();
+
+        for (DirectIndex index : indexes) {
+            index.clear();
+        }
+    }
+
+    /**
+     * Remove all entries without freeing their memory, which is freed at once by the owner of the allocator.
+     */
+    void clearWithoutFree() {
+        pointerMap.clear();
+
+        for (DirectIndex index : indexes) {
+            index.clear();
+        }
     }
 
     @Override
     protected void finalize() throws Throwable {
         // free all native pointers
         clear();
+
+        for (DirectIndex index : indexes) {
+            index.free();
+        }
+        indexes = new DirectIndex[0];
     }
 
     public int size() {
         return pointerMap.size();
     }
 
+    /**
+     * Store value for key. If the update of an existing value fails, its memory may be partly overwritten, so the
+     * entry is removed before the exception is rethrown.
+     */
     public void put(K key, V value) {
+        put(key, value, DirectObjectContext.getThreadContext());
+    }
+
+    private void put(K key, V value, DirectObjectContext doContext) {
         // check existing pointer
         DirectObjectPointer existingPointer = pointerMap.get(key);
         if (existingPointer != null) {
-            // update native memory
-            existingPointer.updateFromBean(value);
+            // update native memory (the block can be moved by realloc)
+            removeFromIndexes(existingPointer);
+            boolean updated = false;
+            try {
+                existingPointer.updateFromBean(value, doContext);
+                updated = true;
+            } finally {
+                // the value may be partly written: remove the entry rather than keep or index garbage
+                if (!updated) {
+                    existingPointer.free();
+                    pointerMap.remove(key);
+                }
+            }
+            addToIndexes(existingPointer, doContext);
         } else {
             // alloc new memory block
-            DirectObjectPointer newPointer = new DirectObjectPointer.Builder().fromBean(value).build();
+            DirectObjectPointer newPointer = new DirectObjectPointer.Builder().fromBean(value).withContext(doContext).withAllocator(allocator).build();
 
             // put pointer in map
             pointerMap.put(key, newPointer);
+            addToIndexes(newPointer, doContext);
         }
     }
 
+    /**
+     * Load the value of key in the bean. This method doesn't allocate memory.
+     */
     public boolean get(K key, V value) {
         DirectObjectPointer pointer = pointerMap.get(key);
         if (pointer == null) return false;
@@ -57,10 +145,99 @@ public class DirectMap<K, V extends DirectObject> {
         return true;
     }
 
+    /**
+     * Store several entries, reusing the same DirectObjectContext for all of them.
+     */
+    public void putAll(K[] keys, V[] values) {
+        if (keys.length != values.length) {
+            throw new IllegalArgumentException("keys and values must have the same length");
+        }
+
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+        for (int i = 0; i < keys.length; i++) {
+            put(keys[i], values[i], doContext);
+        }
+    }
+
+    /**
+     * Load the values of several keys. All pointers are resolved first, then values are loaded by increasing
+     * native address in the same bean and with the same DirectObjectContext, so visitor is not called in
+     * the order of keys. Missing keys are skipped. Addresses are sorted in arrays of the thread reused by the next
+     * calls, so this method doesn't allocate once the arrays are large enough, and visitor must not call getAll.
+     *
+     * @return number of keys found
+     */
+    public int getAll(K[] keys, V bean, DirectMapVisitor<K, V> visitor) {
+        GetAllScratch scratch = GET_ALL_SCRATCH.get();
+        if (scratch.addresses.length < keys.length) {
+            scratch.addresses = new long[keys.length];
+            scratch.keyIndexes = new int[keys.length];
+        }
+        long[] addresses = scratch.addresses;
+        int[] keyIndexes = scratch.keyIndexes;
+
+        // resolve pointers
+        int count = 0;
+        for (int i = 0; i < keys.length; i++) {
+            DirectObjectPointer pointer = pointerMap.get(keys[i]);
+            if (pointer != null) {
+                addresses[count] = pointer.getAddress();
+                keyIndexes[count] = i;
+                count++;
+            }
+        }
+
+        sortByAddress(addresses, keyIndexes, 0, count - 1);
+
+        // load from native memory
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+        DirectObjectView view = DirectObjectView.getThreadView();
+        for (int i = 0; i < count; i++) {
+            view.moveTo(addresses[i]).populateBean(bean, doContext);
+            visitor.visit(keys[keyIndexes[i]], bean);
+        }
+
+        return count;
+    }
+
+    // quicksort of addresses (and their key indexes)
+    private static void sortByAddress(long[] addresses, int[] keyIndexes, int lo, int hi) {
+        while (lo < hi) {
+            long pivot = addresses[(lo + hi) >>> 1];
+            int i = lo, j = hi;
+            while (i <= j) {
+                while (addresses[i] < pivot) i++;
+                while (addresses[j] > pivot) j--;
+                if (i <= j) {
+                    long a = addresses[i];
+                    addresses[i] = addresses[j];
+                    addresses[j] = a;
+
+                    int k = keyIndexes[i];
+                    keyIndexes[i] = keyIndexes[j];
+                    keyIndexes[j] = k;
+
+                    i++;
+                    j--;
+                }
+            }
+
+            // recurse on smaller part to bound stack depth
+            if (j - lo < hi - i) {
+                sortByAddress(addresses, keyIndexes, lo, j);
+                lo = i;
+            } else {
+                sortByAddress(addresses, keyIndexes, i, hi);
+                hi = j;
+            }
+        }
+    }
+
     public boolean remove(Object key) {
         // free existing pointer and remove from map
         DirectObjectPointer existingPointer = pointerMap.get(key);
         if (existingPointer != null) {
+            removeFromIndexes(existingPointer);
             existingPointer.free();
             pointerMap.remove(key);
 
@@ -69,4 +246,117 @@ public class DirectMap<K, V extends DirectObject> {
 
         return false;
     }
+
+    /**
+     * Call visitor for each entry of the map. The same bean and DirectObjectContext are reused for all entries
+     * so the iteration doesn't allocate.
+     */
+    public void forEach(V bean, DirectMapVisitor<K, V> visitor) {
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        for (Map.Entry<K, DirectObjectPointer> entry : pointerMap.entrySet()) {
+            entry.getValue().populateBean(bean, doContext);
+            visitor.visit(entry.getKey(), bean);
+        }
+    }
+
+    /**
+     * Same as forEach but entries are visited by increasing native address, which is more cache friendly
+     * for large maps. A temporary list of entries is allocated to sort them.
+     */
+    public void forEachInAddressOrder(V bean, DirectMapVisitor<K, V> visitor) {
+        List<Map.Entry<K, DirectObjectPointer>> entries = new ArrayList<Map.Entry<K, DirectObjectPointer>>(pointerMap.entrySet());
+        Collections.sort(entries, ADDRESS_COMPARATOR);
+
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+        for (Map.Entry<K, DirectObjectPointer> entry : entries) {
+            entry.getValue().populateBean(bean, doContext);
+            visitor.visit(entry.getKey(), bean);
+        }
+    }
+
+    /**
+     * Spliterator over the values of the map, usable with StreamSupport.stream(spliterator, true) for parallel
+     * scans. beanSupplier is called once per split and the bean is reused for all the values of the split.
+     *
+     * The map must not be modified while the spliterator is in use.
+     */
+    public Spliterator<V> spliterator(Supplier<V> beanSupplier) {
+        return new DirectMapSpliterator<K, V>(pointerMap.entrySet().spliterator(), beanSupplier);
+    }
+
+    public DirectAllocator getAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Start an incremental compaction: new values are allocated with target and the compactor moves the existing
+     * values to target by small steps, run by the thread which uses the map. When it is done, the previous allocator
+     * is not used by the map anymore (a DirectRegion can be closed).
+     */
+    public DirectMapCompactor<K, V> compactor(DirectAllocator target) {
+        allocator = target;
+        return new DirectMapCompactor<K, V>(this, target);
+    }
+
+    DirectObjectPointer[] getPointers() {
+        return pointerMap.values().toArray(new DirectObjectPointer[pointerMap.size()]);
+    }
+
+    // move a value to another allocator, its address changes in indexes
+    void relocate(DirectObjectPointer pointer, DirectAllocator target, DirectObjectContext doContext) {
+        removeFromIndexes(pointer);
+        pointer.relocate(target);
+        addToIndexes(pointer, doContext);
+    }
+
+    /**
+     * Create a secondary index on the values of the map. The index is built from the current entries and then
+     * maintained on each put and remove.
+     */
+    public DirectIndex createIndex(DirectIndexKeyExtractor extractor) {
+        DirectIndex index = new DirectIndex(extractor);
+
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+        for (DirectObjectPointer p : pointerMap.values()) {
+            index.add(p, doContext);
+        }
+
+        DirectIndex[] newIndexes = Arrays.copyOf(indexes, indexes.length + 1);
+        newIndexes[indexes.length] = index;
+        indexes = newIndexes;
+
+        return index;
+    }
+
+    /**
+     * Remove an index from the map and free its native memory.
+     */
+    public boolean dropIndex(DirectIndex index) {
+        for (int i = 0; i < indexes.length; i++) {
+            if (indexes[i] == index) {
+                DirectIndex[] newIndexes = new DirectIndex[indexes.length - 1];
+                System.arraycopy(indexes, 0, newIndexes, 0, i);
+                System.arraycopy(indexes, i + 1, newIndexes, i, indexes.length - i - 1);
+                indexes = newIndexes;
+
+                index.free();
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void addToIndexes(DirectObjectPointer pointer, DirectObjectContext doContext) {
+        for (DirectIndex index : indexes) {
+            index.add(pointer, doContext);
+        }
+    }
+
+    private void removeFromIndexes(DirectObjectPointer pointer) {
+        for (DirectIndex index : indexes) {
+            index.remove(pointer.getAddress());
+        }
+    }
 }
@@ -0,0 +1,83 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectAllocator;
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectPointer;
+
+/**
+ * Incremental compaction of a DirectMap, created with DirectMap.compactor. Each step moves values to the target
+ * allocator (usually a new DirectRegion, where they are packed densely) until a time budget is spent, so the map can
+ * be used between steps. The compactor scans the values present when it was created: values added later are already
+ * in the target allocator and removed values are skipped.
+ *
+ * Like the map, the compactor is not thread-safe: call step from the thread which uses the map.
+ *
+ * Usage:
+ * <pre>
+ * DirectRegion oldRegion = ...;
+ * DirectMapCompactor&lt;K, V&gt; compactor = map.compactor(newRegion);
+ * while (!compactor.step(100000)) {
+ *     // serve requests
+ * }
+ * oldRegion.close();
+ * </pre>
+ */
+public class DirectMapCompactor<K, V extends DirectObject> {
+    // number of values moved between two checks of the time budget
+    private static final int CHECK_INTERVAL = 32;
+
+    private final DirectMap<K, V> map;
+    private final DirectAllocator target;
+
+    private DirectObjectPointer[] pointers;
+    private int position;
+
+    private long movedCount;
+    private boolean done;
+
+    DirectMapCompactor(DirectMap<K, V> map, DirectAllocator target) {
+        this.map = map;
+        this.target = target;
+        this.pointers = map.getPointers();
+    }
+
+    /**
+     * Move values for about maxNanos.
+     *
+     * @return true when all the values of the map are in the target allocator
+     */
+    public boolean step(long maxNanos) {
+        if (done) return true;
+
+        long deadline = System.nanoTime() + maxNanos;
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        for (int i = 1; position < pointers.length; i++) {
+            DirectObjectPointer pointer = pointers[position++];
+
+            // skip removed values (freed pointers have a null address)
+            if (pointer.getAddress() != 0 && pointer.getAllocator() != target) {
+                map.relocate(pointer, target, doContext);
+                movedCount++;
+            }
+
+            if (i % CHECK_INTERVAL == 0 && System.nanoTime() - deadline >= 0) return false;
+        }
+
+        pointers = null;
+        done = true;
+        return true;
+    }
+
+    public boolean isDone() {
+        return done;
+    }
+
+    /**
+     * @return number of values moved so far
+     */
+    public long getMovedCount() {
+        return movedCount;
+    }
+}
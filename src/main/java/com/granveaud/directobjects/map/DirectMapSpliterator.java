@@ -0,0 +1,67 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectPointer;
+
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Spliterator over the values of a DirectMap. It splits the table of the underlying map so it can be used
+ * by parallel streams. Each split owns a bean and a DirectObjectContext which are reused for every element.
+ */
+class DirectMapSpliterator<K, V extends DirectObject> implements Spliterator<V>, Consumer<Map.Entry<K, DirectObjectPointer>> {
+    private final Spliterator<Map.Entry<K, DirectObjectPointer>> entries;
+    private final Supplier<V> beanSupplier;
+
+    private final V bean;
+    private final DirectObjectContext doContext = new DirectObjectContext();
+
+    private Consumer<? super V> action;
+
+    DirectMapSpliterator(Spliterator<Map.Entry<K, DirectObjectPointer>> entries, Supplier<V> beanSupplier) {
+        this.entries = entries;
+        this.beanSupplier = beanSupplier;
+        this.bean = beanSupplier.get();
+    }
+
+    @Override
+    public void accept(Map.Entry<K, DirectObjectPointer> entry) {
+        entry.getValue().populateBean(bean, doContext);
+        action.accept(bean);
+    }
+
+    @Override
+    public boolean tryAdvance(Consumer<? super V> action) {
+        this.action = action;
+        return entries.tryAdvance(this);
+    }
+
+    @Override
+    public void forEachRemaining(Consumer<? super V> action) {
+        this.action = action;
+        entries.forEachRemaining(this);
+    }
+
+    @Override
+    public Spliterator<V> trySplit() {
+        Spliterator<Map.Entry<K, DirectObjectPointer>> split = entries.trySplit();
+        if (split == null) return null;
+
+        return new DirectMapSpliterator<K, V>(split, beanSupplier);
+    }
+
+    @Override
+    public long estimateSize() {
+        return entries.estimateSize();
+    }
+
+    @Override
+    public int characteristics() {
+        // values are read in a reused bean so they are not DISTINCT
+        return entries.characteristics() & (SIZED | SUBSIZED);
+    }
+}
@@ -0,0 +1,12 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObject;
+
+/**
+ * Callback used to iterate over the entries of a DirectMap.
+ *
+ * The value bean is reused between calls: copy the values you need to keep.
+ */
+public interface DirectMapVisitor<K, V extends DirectObject> {
+    void visit(K key, V value);
+}
@@ -0,0 +1,275 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectRegion;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Supplier;
+
+/**
+ * A thread-safe map split in partitions. Keys are routed to a partition by hash and each partition is a DirectMap
+ * with its own lock and its own DirectRegion, so:
+ * - threads working on different partitions don't contend
+ * - the HashMap of each partition is resized independently, with shorter pauses
+ * - clear releases the chunks of each region at once instead of freeing values one by one
+ * - bulk operations (clear, forEach) run on each partition in parallel on a ForkJoinPool
+ *
+ * Secondary indexes are partitioned too: createIndex creates a DirectIndex in each partition, maintained under the
+ * lock of the partition, and a lookup visits the matching entries of each partition in turn.
+ */
+public class DirectPartitionedMap<K, V extends DirectObject> {
+
+    private static class Partition<K, V extends DirectObject> {
+        final DirectRegion region;
+        final DirectMap<K, V> map;
+
+        Partition(DirectRegion region) {
+            this.region = region;
+            this.map = new DirectMap<K, V>(region);
+        }
+    }
+
+    private interface PartitionTask<K, V extends DirectObject> {
+        void run(Partition<K, V> partition);
+    }
+
+    /**
+     * Secondary index made of one DirectIndex per partition, created with createIndex.
+     */
+    public class Index {
+        private final DirectIndex[] indexes;
+
+        private Index(DirectIndex[] indexes) {
+            this.indexes = indexes;
+        }
+
+        /**
+         * @return number of indexed entries
+         */
+        public int size() {
+            int size = 0;
+            for (int i = 0; i < partitions.length; i++) {
+                synchronized (partitions[i]) {
+                    size += indexes[i].size();
+                }
+            }
+            return size;
+        }
+
+        /**
+         * @return number of entries whose indexed value is value
+         */
+        public int count(long value) {
+            int count = 0;
+            for (int i = 0; i < partitions.length; i++) {
+                synchronized (partitions[i]) {
+                    count += indexes[i].count(value);
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Call visitor for each entry whose indexed value is value. Partitions are visited one after the other, each
+         * one locked while it is visited.
+         *
+         * @return number of matching entries
+         */
+        public int lookup(long value, DirectIndexVisitor visitor) {
+            int count = 0;
+            for (int i = 0; i < partitions.length; i++) {
+                synchronized (partitions[i]) {
+                    count += indexes[i].lookup(value, visitor);
+                }
+            }
+            return count;
+        }
+    }
+
+    private final Partition<K, V>[] partitions;
+    private final int shift;
+    private final ForkJoinPool pool;
+
+    /**
+     * Map with one partition per processor, regions reserving 32MB chunks and the common pool.
+     */
+    public DirectPartitionedMap() {
+        this(Runtime.getRuntime().availableProcessors(), new DirectRegion.Builder().withChunkSize(32L << 20), ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param partitionCount number of partitions, rounded up to a power of 2
+     * @param regionBuilder builder of the region of each partition (huge pages, pre-touch...)
+     * @param pool pool which runs bulk operations
+     */
+    @SuppressWarnings("unchecked")
+    public DirectPartitionedMap(int partitionCount, DirectRegion.Builder regionBuilder, ForkJoinPool pool) {
+        if (partitionCount <= 0 || partitionCount > 1 << 16) {
+            throw new IllegalArgumentException("Invalid partition count " + partitionCount);
+        }
+
+        int bits = 32 - Integer.numberOfLeadingZeros(partitionCount - 1);
+        this.shift = 32 - bits;
+        this.pool = pool;
+
+        partitions = (Partition<K, V>[]) new Partition<?, ?>[1 << bits];
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition<K, V>(regionBuilder.build());
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        for (Partition<K, V> partition : partitions) {
+            clear(partition);
+        }
+    }
+
+    public int getPartitionCount() {
+        return partitions.length;
+    }
+
+    /**
+     * @return partition of key. The high bits of the hash are used, the low bits route keys in the partition. null
+     * is a valid key, as in DirectMap, and is routed like a key whose hash is 0.
+     */
+    public int getPartitionIndex(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        return shift == 32 ? 0 : (hash * 0x9E3779B9) >>> shift;
+    }
+
+    private Partition<K, V> getPartition(Object key) {
+        return partitions[getPartitionIndex(key)];
+    }
+
+    /**
+     * @return size of the chunks reserved by the regions of all partitions
+     */
+    public long getReservedSize() {
+        long size = 0;
+        for (Partition<K, V> partition : partitions) {
+            size += partition.region.getReservedSize();
+        }
+        return size;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Partition<K, V> partition : partitions) {
+            synchronized (partition) {
+                size += partition.map.size();
+            }
+        }
+        return size;
+    }
+
+    public void put(K key, V value) {
+        Partition<K, V> partition = getPartition(key);
+        synchronized (partition) {
+            partition.map.put(key, value);
+        }
+    }
+
+    /**
+     * Load the value of key in the bean. This method doesn't allocate memory.
+     */
+    public boolean get(K key, V value) {
+        Partition<K, V> partition = getPartition(key);
+        synchronized (partition) {
+            return partition.map.get(key, value);
+        }
+    }
+
+    public boolean remove(Object key) {
+        Partition<K, V> partition = getPartition(key);
+        synchronized (partition) {
+            return partition.map.remove(key);
+        }
+    }
+
+    /**
+     * Remove all entries. Partitions are cleared in parallel and the memory of each region is released at once.
+     */
+    public void clear() {
+        runOnPartitions(new PartitionTask<K, V>() {
+            @Override
+            public void run(Partition<K, V> partition) {
+                clear(partition);
+            }
+        });
+    }
+
+    private static <K, V extends DirectObject> void clear(Partition<K, V> partition) {
+        synchronized (partition) {
+            partition.map.clearWithoutFree();
+            partition.region.close();
+        }
+    }
+
+    /**
+     * Create a secondary index in each partition, built from the current entries and then maintained on each put
+     * and remove.
+     */
+    public Index createIndex(DirectIndexKeyExtractor extractor) {
+        DirectIndex[] indexes = new DirectIndex[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            synchronized (partitions[i]) {
+                indexes[i] = partitions[i].map.createIndex(extractor);
+            }
+        }
+        return new Index(indexes);
+    }
+
+    /**
+     * Remove an index from all partitions and free its native memory.
+     */
+    public void dropIndex(Index index) {
+        for (int i = 0; i < partitions.length; i++) {
+            synchronized (partitions[i]) {
+                partitions[i].map.dropIndex(index.indexes[i]);
+            }
+        }
+    }
+
+    /**
+     * Call visitor for each entry of the map. Partitions are visited in parallel, each with its own bean given by
+     * beanSupplier, so visitor must be thread-safe. A partition is locked while it is visited.
+     */
+    public void forEach(final Supplier<V> beanSupplier, final DirectMapVisitor<K, V> visitor) {
+        runOnPartitions(new PartitionTask<K, V>() {
+            @Override
+            public void run(Partition<K, V> partition) {
+                V bean = beanSupplier.get();
+                synchronized (partition) {
+                    partition.map.forEachInAddressOrder(bean, visitor);
+                }
+            }
+        });
+    }
+
+    // run task on each partition in the pool and wait for all of them, rethrowing the first exception
+    private void runOnPartitions(final PartitionTask<K, V> task) {
+        ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[partitions.length];
+        for (int i = 0; i < partitions.length; i++) {
+            final Partition<K, V> partition = partitions[i];
+            tasks[i] = pool.submit(new Runnable() {
+                @Override
+                public void run() {
+                    task.run(partition);
+                }
+            });
+        }
+
+        RuntimeException exception = null;
+        for (ForkJoinTask<?> t : tasks) {
+            try {
+                t.join();
+            } catch (RuntimeException e) {
+                if (exception == null) exception = e;
+            }
+        }
+
+        if (exception != null) throw exception;
+    }
+}
@@ -0,0 +1,539 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectView;
+import com.granveaud.directobjects.NativeMemory;
+
+import java.util.Arrays;
+
+/**
+ * A sorted map with long keys (timestamps, ids...) which stores both its structure and its values in native memory.
+ *
+ * The map is a B+tree: internal nodes contain separator keys and children addresses, leaves contain keys and the
+ * addresses of the serialized values and are linked together for range scans. Removing a key doesn't rebalance
+ * the tree: leaves may become empty and are skipped by scans.
+ *
+ * Node layout: int leaf flag, int count, long next leaf, long previous leaf, ORDER keys, ORDER + 1 values or children.
+ *
+ * This class is not thread-safe.
+ */
+public class DirectSortedMap<V extends DirectObject> {
+
+    /**
+     * Position in the map, used for floor/ceiling searches and range iterations without allocation.
+     * A cursor is invalidated when the map is modified.
+     */
+    public class Cursor {
+        private long leaf;
+        private int index;
+
+        private Cursor() {
+        }
+
+        public boolean seekFirst() {
+            long node = root;
+            while (!isLeaf(node)) {
+                node = getValue(node, 0);
+            }
+            return moveTo(node, 0);
+        }
+
+        /**
+         * Move to the smallest key greater than or equal to key.
+         */
+        public boolean seekCeiling(long key) {
+            long node = findLeaf(key);
+            return moveTo(node, lowerBound(node, key));
+        }
+
+        /**
+         * Move to the greatest key less than or equal to key.
+         */
+        public boolean seekFloor(long key) {
+            long node = findLeaf(key);
+            return moveBackTo(node, upperBound(node, key) - 1);
+        }
+
+        public boolean next() {
+            return leaf != 0 && moveTo(leaf, index + 1);
+        }
+
+        public boolean previous() {
+            return leaf != 0 && moveBackTo(leaf, index - 1);
+        }
+
+        public boolean isValid() {
+            return leaf != 0;
+        }
+
+        public long getKey() {
+            checkValid();
+            return getKeyAt(leaf, index);
+        }
+
+        public void populateBean(V bean) {
+            checkValid();
+            view.moveTo(getValue(leaf, index)).populateBean(bean, DirectObjectContext.getThreadContext());
+        }
+
+        private void checkValid() {
+            if (leaf == 0) {
+                throw new IllegalStateException("Cursor is not positioned on an entry");
+            }
+        }
+
+        // move to first entry at or after (node, i), skipping empty leaves
+        private boolean moveTo(long node, int i) {
+            while (node != 0 && i >= getCount(node)) {
+                node = getNext(node);
+                i = 0;
+            }
+            leaf = node;
+            index = i;
+            return node != 0;
+        }
+
+        // move to last entry at or before (node, i), skipping empty leaves
+        private boolean moveBackTo(long node, int i) {
+            while (node != 0 && i < 0) {
+                node = getPrevious(node);
+                if (node != 0) i = getCount(node) - 1;
+            }
+            leaf = node;
+            index = i;
+            return node != 0;
+        }
+    }
+
+    /**
+     * Build the map from entries sorted by strictly increasing keys. Leaves and internal nodes are filled
+     * completely and written sequentially, which is much faster than successive puts.
+     */
+    public class BulkLoader {
+        private final DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        private long leaf;
+        private long lastKey;
+
+        // current internal node of each level and its minimum key, level 0 is the parent of leaves
+        private long[] levelNodes = new long[8];
+        private long[] levelMinKeys = new long[8];
+        private boolean[] levelPushed = new boolean[8];
+        private int levelCount;
+
+        private BulkLoader() {
+            if (size != 0) {
+                throw new IllegalStateException("Bulk loading requires an empty map");
+            }
+
+            // start from a single empty leaf
+            clear();
+            leaf = root;
+        }
+
+        public void add(long key, V value) {
+            if (size > 0 && key <= lastKey) {
+                throw new IllegalArgumentException("Keys must be strictly increasing: " + key + " after " + lastKey);
+            }
+
+            int count = getCount(leaf);
+            if (count == ORDER) {
+                long newLeaf = allocateNode(true);
+                setNext(leaf, newLeaf);
+                setPrevious(newLeaf, leaf);
+
+                if (levelCount == 0) {
+                    addChild(0, leaf, getKeyAt(leaf, 0));
+                }
+                addChild(0, newLeaf, key);
+
+                leaf = newLeaf;
+                count = 0;
+            }
+
+            setKey(leaf, count, key);
+            setValue(leaf, count, createRecord(value, doContext));
+            setCount(leaf, count + 1);
+
+            lastKey = key;
+            size++;
+        }
+
+        private void addChild(int level, long child, long minKey) {
+            if (level == levelCount) {
+                if (level == levelNodes.length) {
+                    levelNodes = Arrays.copyOf(levelNodes, level * 2);
+                    levelMinKeys = Arrays.copyOf(levelMinKeys, level * 2);
+                    levelPushed = Arrays.copyOf(levelPushed, level * 2);
+                }
+                levelCount++;
+                startNode(level, child, minKey);
+                return;
+            }
+
+            long node = levelNodes[level];
+            int count = getCount(node);
+            if (count == ORDER) {
+                // node is full: push it and the new node to the parent level
+                if (!levelPushed[level]) {
+                    addChild(level + 1, node, levelMinKeys[level]);
+                    levelPushed[level] = true;
+                }
+
+                startNode(level, child, minKey);
+                addChild(level + 1, levelNodes[level], minKey);
+                levelPushed[level] = true;
+            } else {
+                setKey(node, count, minKey);
+                setValue(node, count + 1, child);
+                setCount(node, count + 1);
+            }
+        }
+
+        private void startNode(int level, long child, long minKey) {
+            long node = allocateNode(false);
+            setValue(node, 0, child);
+            levelNodes[level] = node;
+            levelMinKeys[level] = minKey;
+            levelPushed[level] = false;
+        }
+
+        public void finish() {
+            if (levelCount > 0) {
+                root = levelNodes[levelCount - 1];
+            }
+        }
+    }
+
+    private static final int ORDER = 64;
+
+    private static final int LEAF_OFFSET = 0;
+    private static final int COUNT_OFFSET = 4;
+    private static final int NEXT_OFFSET = 8;
+    private static final int PREVIOUS_OFFSET = 16;
+    private static final int KEYS_OFFSET = 24;
+    private static final int VALUES_OFFSET = KEYS_OFFSET + 8 * ORDER;
+    private static final int NODE_SIZE = VALUES_OFFSET + 8 * (ORDER + 1);
+
+    private long root;
+    private int size;
+
+    // result of a node split during insert
+    private long splitKey;
+    private long splitNode;
+
+    private final DirectObjectView view = new DirectObjectView();
+
+    public DirectSortedMap() {
+        root = allocateNode(true);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Create a loader to fill an empty map from sorted input. finish() must be called at the end.
+     */
+    public BulkLoader bulkLoader() {
+        return new BulkLoader();
+    }
+
+    public boolean get(long key, V value) {
+        long leaf = findLeaf(key);
+        int i = lowerBound(leaf, key);
+        if (i == getCount(leaf) || getKeyAt(leaf, i) != key) return false;
+
+        view.moveTo(getValue(leaf, i)).populateBean(value, DirectObjectContext.getThreadContext());
+        return true;
+    }
+
+    public void put(long key, V value) {
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        if (insert(root, key, value, doContext)) {
+            // root was split
+            long newRoot = allocateNode(false);
+            setKey(newRoot, 0, splitKey);
+            setValue(newRoot, 0, root);
+            setValue(newRoot, 1, splitNode);
+            setCount(newRoot, 1);
+            root = newRoot;
+        }
+    }
+
+    public boolean remove(long key) {
+        long leaf = findLeaf(key);
+        int count = getCount(leaf);
+        int i = lowerBound(leaf, key);
+        if (i == count || getKeyAt(leaf, i) != key) return false;
+
+        NativeMemory.free(getValue(leaf, i));
+
+        shift(leaf, KEYS_OFFSET, i + 1, count, -1);
+        shift(leaf, VALUES_OFFSET, i + 1, count, -1);
+        setCount(leaf, count - 1);
+        size--;
+
+        return true;
+    }
+
+    /**
+     * Call visitor for each entry with from <= key < to, by increasing key. The bean is reused for all entries.
+     */
+    public void forEachInRange(long from, long to, V bean, DirectSortedMapVisitor<V> visitor) {
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        long leaf = findLeaf(from);
+        int i = lowerBound(leaf, from);
+        while (leaf != 0) {
+            int count = getCount(leaf);
+            for (; i < count; i++) {
+                long key = getKeyAt(leaf, i);
+                if (key >= to) return;
+
+                view.moveTo(getValue(leaf, i)).populateBean(bean, doContext);
+                visitor.visit(key, bean);
+            }
+
+            leaf = getNext(leaf);
+            i = 0;
+        }
+    }
+
+    public void clear() {
+        freeNode(root);
+        root = allocateNode(true);
+        size = 0;
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        // free all nodes and values
+        if (root != 0) {
+            freeNode(root);
+            root = 0;
+        }
+    }
+
+    private void freeNode(long node) {
+        int count = getCount(node);
+        if (isLeaf(node)) {
+            for (int i = 0; i < count; i++) {
+                NativeMemory.free(getValue(node, i));
+            }
+        } else {
+            for (int i = 0; i <= count; i++) {
+                freeNode(getValue(node, i));
+            }
+        }
+        NativeMemory.free(node);
+    }
+
+    // insert in subtree, return true if node was split (splitKey and splitNode are set)
+    private boolean insert(long node, long key, V value, DirectObjectContext doContext) {
+        int count = getCount(node);
+
+        if (isLeaf(node)) {
+            int i = lowerBound(node, key);
+            if (i < count && getKeyAt(node, i) == key) {
+                setValue(node, i, updateRecord(getValue(node, i), value, doContext));
+                return false;
+            }
+
+            long record = createRecord(value, doContext);
+            size++;
+
+            if (count < ORDER) {
+                insertAt(node, i, key, record, count);
+                return false;
+            }
+
+            // split leaf in two halves
+            long right = allocateNode(true);
+            int half = ORDER / 2;
+            NativeMemory.copyMemory(node + KEYS_OFFSET + 8 * half, right + KEYS_OFFSET, 8 * (ORDER - half));
+            NativeMemory.copyMemory(node + VALUES_OFFSET + 8 * half, right + VALUES_OFFSET, 8 * (ORDER - half));
+            setCount(node, half);
+            setCount(right, ORDER - half);
+
+            long next = getNext(node);
+            setNext(right, next);
+            setPrevious(right, node);
+            if (next != 0) setPrevious(next, right);
+            setNext(node, right);
+
+            if (i <= half) {
+                insertAt(node, i, key, record, half);
+            } else {
+                insertAt(right, i - half, key, record, ORDER - half);
+            }
+
+            splitKey = getKeyAt(right, 0);
+            splitNode = right;
+            return true;
+        }
+
+        int c = upperBound(node, key);
+        if (!insert(getValue(node, c), key, value, doContext)) return false;
+
+        // child was split: insert separator and new child
+        long childKey = splitKey;
+        long childNode = splitNode;
+
+        if (count < ORDER) {
+            insertChildAt(node, c, childKey, childNode, count);
+            return false;
+        }
+
+        // split internal node, the middle key moves up
+        long right = allocateNode(false);
+        int mid = ORDER / 2;
+        long midKey = getKeyAt(node, mid);
+        NativeMemory.copyMemory(node + KEYS_OFFSET + 8 * (mid + 1), right + KEYS_OFFSET, 8 * (ORDER - mid - 1));
+        NativeMemory.copyMemory(node + VALUES_OFFSET + 8 * (mid + 1), right + VALUES_OFFSET, 8 * (ORDER - mid));
+        setCount(node, mid);
+        setCount(right, ORDER - mid - 1);
+
+        if (c <= mid) {
+            insertChildAt(node, c, childKey, childNode, mid);
+        } else {
+            insertChildAt(right, c - mid - 1, childKey, childNode, ORDER - mid - 1);
+        }
+
+        splitKey = midKey;
+        splitNode = right;
+        return true;
+    }
+
+    private void insertAt(long leaf, int i, long key, long record, int count) {
+        shift(leaf, KEYS_OFFSET, i, count, 1);
+        shift(leaf, VALUES_OFFSET, i, count, 1);
+        setKey(leaf, i, key);
+        setValue(leaf, i, record);
+        setCount(leaf, count + 1);
+    }
+
+    // insert key at index i and child at index i + 1
+    private void insertChildAt(long node, int i, long key, long child, int count) {
+        shift(node, KEYS_OFFSET, i, count, 1);
+        shift(node, VALUES_OFFSET, i + 1, count + 1, 1);
+        setKey(node, i, key);
+        setValue(node, i + 1, child);
+        setCount(node, count + 1);
+    }
+
+    // move the longs [from, to[ of an array by delta positions
+    private static void shift(long node, int arrayOffset, int from, int to, int delta) {
+        if (from < to) {
+            long address = node + arrayOffset + 8 * from;
+            NativeMemory.copyMemory(address, address + 8 * delta, 8 * (to - from));
+        }
+    }
+
+    private long findLeaf(long key) {
+        long node = root;
+        while (!isLeaf(node)) {
+            node = getValue(node, upperBound(node, key));
+        }
+        return node;
+    }
+
+    // index of first key >= key
+    private static int lowerBound(long node, long key) {
+        int lo = 0, hi = getCount(node);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getKeyAt(node, mid) < key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // index of first key > key
+    private static int upperBound(long node, long key) {
+        int lo = 0, hi = getCount(node);
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (getKeyAt(node, mid) <= key) lo = mid + 1;
+            else hi = mid;
+        }
+        return lo;
+    }
+
+    // serialize value to a new size-prefixed memory block
+    private long createRecord(V value, DirectObjectContext doContext) {
+        int objSize = value.getSerializedSize(doContext);
+        long address = NativeMemory.allocate(objSize + 4);
+        NativeMemory.putInt(address, objSize);
+
+        view.moveTo(address).updateFromBean(value, doContext);
+        return address;
+    }
+
+    private long updateRecord(long address, V value, DirectObjectContext doContext) {
+        if (value.getSerializedSize(doContext) != NativeMemory.getInt(address)) {
+            NativeMemory.free(address);
+            return createRecord(value, doContext);
+        }
+
+        view.moveTo(address).updateFromBean(value, doContext);
+        return address;
+    }
+
+    private static long allocateNode(boolean leaf) {
+        long node = NativeMemory.allocate(NODE_SIZE);
+        NativeMemory.setMemory(node, NODE_SIZE, (byte) 0);
+        NativeMemory.putInt(node + LEAF_OFFSET, leaf ? 1 : 0);
+        return node;
+    }
+
+    private static boolean isLeaf(long node) {
+        return NativeMemory.getInt(node + LEAF_OFFSET) != 0;
+    }
+
+    private static int getCount(long node) {
+        return NativeMemory.getInt(node + COUNT_OFFSET);
+    }
+
+    private static void setCount(long node, int count) {
+        NativeMemory.putInt(node + COUNT_OFFSET, count);
+    }
+
+    private static long getNext(long node) {
+        return NativeMemory.getLong(node + NEXT_OFFSET);
+    }
+
+    private static void setNext(long node, long next) {
+        NativeMemory.putLong(node + NEXT_OFFSET, next);
+    }
+
+    private static long getPrevious(long node) {
+        return NativeMemory.getLong(node + PREVIOUS_OFFSET);
+    }
+
+    private static void setPrevious(long node, long previous) {
+        NativeMemory.putLong(node + PREVIOUS_OFFSET, previous);
+    }
+
+    private static long getKeyAt(long node, int i) {
+        return NativeMemory.getLong(node + KEYS_OFFSET + 8 * i);
+    }
+
+    private static void setKey(long node, int i, long key) {
+        NativeMemory.putLong(node + KEYS_OFFSET + 8 * i, key);
+    }
+
+    private static long getValue(long node, int i) {
+        return NativeMemory.getLong(node + VALUES_OFFSET + 8 * i);
+    }
+
+    private static void setValue(long node, int i, long value) {
+        NativeMemory.putLong(node + VALUES_OFFSET + 8 * i, value);
+    }
+}
@@ -0,0 +1,12 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObject;
+
+/**
+ * Callback used to iterate over the entries of a DirectSortedMap.
+ *
+ * The value bean is reused between calls: copy the values you need to keep.
+ */
+public interface DirectSortedMapVisitor<V extends DirectObject> {
+    void visit(long key, V value);
+}
@@ -0,0 +1,381 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectPointer;
+import com.granveaud.directobjects.DirectObjectView;
+import com.granveaud.directobjects.NativeMemory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A map which keeps its hot values in native memory and spills cold values to an append-only file, in the format of
+ * DirectObjectPointer.write(FileChannel).
+ *
+ * Each entry has an access frequency, incremented by get and put. All frequencies are halved each time the map has
+ * been accessed size() times, so that they count recent accesses only. When the values in memory exceed the memory
+ * budget, a CLOCK hand sweeps the hot entries, halving their frequency, and demotes the first entry whose frequency
+ * is 0: its value is written to the file (unless it is already there) and freed. A cold value read by get is promoted
+ * back to memory when its frequency reaches the promotion threshold.
+ *
+ * Values updated or removed leave dead records in the file, see getFileGarbageSize. When the dead records exceed
+ * maxGarbageRatio of the file, the live records are moved to the beginning of the file and the file is truncated.
+ * The file is a scratch file: it is truncated when the map is created.
+ *
+ * This class is not thread-safe.
+ */
+public class DirectTieredMap<K, V extends DirectObject> {
+    private static final int MAX_FREQUENCY = 15;
+    private static final int MIN_DECAY_PERIOD = 16;
+    private static final double DEFAULT_MAX_GARBAGE_RATIO = 0.5;
+
+    private static final Comparator<Entry> FILE_POSITION_COMPARATOR = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry e1, Entry e2) {
+            return Long.compare(e1.filePosition, e2.filePosition);
+        }
+    };
+
+    private static class Entry {
+        // value in memory, or null
+        DirectObjectPointer pointer;
+
+        // position of the value in the file, or -1 when the file is not up to date
+        long filePosition = -1;
+        int fileSize;
+
+        int frequency;
+        // decay epoch of frequency
+        int epoch;
+
+        // index in the list of hot entries
+        int hotIndex = -1;
+    }
+
+    private final Map<K, Entry> entries = new HashMap<K, Entry>();
+    private final List<Entry> hotEntries = new ArrayList<Entry>();
+    private int clockHand;
+
+    // frequencies are halved when the epoch changes
+    private int epoch;
+    private int epochAccessCount;
+
+    private final long memoryBudget;
+    private final int promotionThreshold;
+    private long memorySize;
+
+    private final RandomAccessFile raf;
+    private final FileChannel fc;
+    private long fileSize;
+    private long fileGarbageSize;
+    private final double maxGarbageRatio;
+
+    // buffer where records are read (cold reads, compaction), and its registered address
+    private ByteBuffer readBuffer;
+    private long readBufferAddress;
+
+    /**
+     * @param memoryBudget maximum size of the values in native memory
+     * @param promotionThreshold number of recent accesses after which a cold value is promoted to memory
+     * @param file spill file
+     */
+    public DirectTieredMap(long memoryBudget, int promotionThreshold, File file) throws IOException {
+        this(memoryBudget, promotionThreshold, file, DEFAULT_MAX_GARBAGE_RATIO);
+    }
+
+    /**
+     * @param maxGarbageRatio ratio of dead records in the file above which the file is compacted
+     */
+    public DirectTieredMap(long memoryBudget, int promotionThreshold, File file, double maxGarbageRatio) throws IOException {
+        if (promotionThreshold < 1 || promotionThreshold > MAX_FREQUENCY) {
+            throw new IllegalArgumentException("Promotion threshold must be between 1 and " + MAX_FREQUENCY);
+        }
+        if (maxGarbageRatio <= 0 || maxGarbageRatio > 1) {
+            throw new IllegalArgumentException("Invalid max garbage ratio " + maxGarbageRatio);
+        }
+
+        this.memoryBudget = memoryBudget;
+        this.promotionThreshold = promotionThreshold;
+        this.maxGarbageRatio = maxGarbageRatio;
+
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        fc = raf.getChannel();
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of values in native memory
+     */
+    public int getHotCount() {
+        return hotEntries.size();
+    }
+
+    /**
+     * @return true if the value of key is in native memory
+     */
+    public boolean isHot(Object key) {
+        Entry entry = entries.get(key);
+        return entry != null && entry.pointer != null;
+    }
+
+    /**
+     * @return size of the values in native memory
+     */
+    public long getMemorySize() {
+        return memorySize;
+    }
+
+    public long getFileSize() {
+        return fileSize;
+    }
+
+    /**
+     * @return size of the dead records in the file
+     */
+    public long getFileGarbageSize() {
+        return fileGarbageSize;
+    }
+
+    /**
+     * Move the live records to the beginning of the file and truncate it.
+     */
+    public void compactFile() throws IOException {
+        List<Entry> live = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (entry.filePosition >= 0) live.add(entry);
+        }
+        Collections.sort(live, FILE_POSITION_COMPARATOR);
+
+        // records only move towards the beginning of the file, so a record is read before it can be overwritten
+        long position = 0;
+        for (Entry entry : live) {
+            if (entry.filePosition != position) {
+                readFileRecord(entry);
+                readBuffer.flip();
+                while (readBuffer.hasRemaining()) {
+                    fc.write(readBuffer, position + readBuffer.position());
+                }
+                entry.filePosition = position;
+            }
+            position += entry.fileSize;
+        }
+
+        fc.truncate(position);
+        fileSize = position;
+        fileGarbageSize = 0;
+    }
+
+    public void put(K key, V value) throws IOException {
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            entries.put(key, entry);
+        }
+        touch(entry);
+
+        // the record in the file is not up to date anymore
+        discardFileRecord(entry);
+
+        if (entry.pointer != null) {
+            memorySize -= entry.pointer.getObjectSize() + 4;
+            entry.pointer.updateFromBean(value, doContext);
+        } else {
+            entry.pointer = new DirectObjectPointer.Builder().fromBean(value).withContext(doContext).build();
+            addHot(entry);
+        }
+        memorySize += entry.pointer.getObjectSize() + 4;
+
+        evict(entry);
+    }
+
+    /**
+     * Load the value of key in the bean, reading it from the file if it is cold.
+     */
+    public boolean get(K key, V value) throws IOException {
+        Entry entry = entries.get(key);
+        if (entry == null) return false;
+
+        touch(entry);
+
+        if (entry.pointer != null) {
+            entry.pointer.populateBean(value);
+            return true;
+        }
+
+        // read in place in the reused buffer
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+        readFileRecord(entry);
+        DirectObjectView.getThreadView().moveTo(readBufferAddress).populateBean(value, doContext);
+
+        if (entry.frequency >= promotionThreshold) {
+            // promote: the record stays valid in the file, so demoting the entry again doesn't write it
+            entry.pointer = new DirectObjectPointer.Builder().fromBean(value).withContext(doContext).build();
+            addHot(entry);
+            memorySize += entry.pointer.getObjectSize() + 4;
+            evict(entry);
+        }
+
+        return true;
+    }
+
+    public boolean remove(Object key) {
+        Entry entry = entries.remove(key);
+        if (entry == null) return false;
+
+        discardFileRecord(entry);
+        if (entry.pointer != null) {
+            removeHot(entry);
+            memorySize -= entry.pointer.getObjectSize() + 4;
+            entry.pointer.free();
+            entry.pointer = null;
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove all entries and truncate the file.
+     */
+    public void clear() throws IOException {
+        for (Entry entry : hotEntries) {
+            entry.pointer.free();
+        }
+        hotEntries.clear();
+        entries.clear();
+        clockHand = 0;
+        memorySize = 0;
+
+        fc.truncate(0);
+        fileSize = fileGarbageSize = 0;
+    }
+
+    /**
+     * Free native memory and close the file.
+     */
+    public void close() throws IOException {
+        clear();
+        raf.close();
+
+        if (readBuffer != null) {
+            NativeMemory.releaseAddress(readBufferAddress);
+            readBuffer = null;
+        }
+    }
+
+    private void touch(Entry entry) {
+        if (++epochAccessCount >= Math.max(entries.size(), MIN_DECAY_PERIOD)) {
+            epoch++;
+            epochAccessCount = 0;
+        }
+
+        decay(entry);
+        if (entry.frequency < MAX_FREQUENCY) entry.frequency++;
+    }
+
+    // halve the frequency once per epoch elapsed since the last decay
+    private void decay(Entry entry) {
+        int elapsed = epoch - entry.epoch;
+        if (elapsed != 0) {
+            entry.frequency = elapsed < 32 ? entry.frequency >> elapsed : 0;
+            entry.epoch = epoch;
+        }
+    }
+
+    private void addHot(Entry entry) {
+        entry.hotIndex = hotEntries.size();
+        hotEntries.add(entry);
+    }
+
+    // swap with the last hot entry
+    private void removeHot(Entry entry) {
+        Entry last = hotEntries.remove(hotEntries.size() - 1);
+        if (last != entry) {
+            last.hotIndex = entry.hotIndex;
+            hotEntries.set(entry.hotIndex, last);
+        }
+        entry.hotIndex = -1;
+    }
+
+    // demote entries until the memory budget is respected, the entry being accessed is kept
+    private void evict(Entry current) throws IOException {
+        while (memorySize > memoryBudget && hotEntries.size() > 1) {
+            if (clockHand >= hotEntries.size()) clockHand = 0;
+
+            Entry entry = hotEntries.get(clockHand);
+            decay(entry);
+            if (entry.frequency > 0 || entry == current) {
+                entry.frequency >>= 1;
+                clockHand++;
+            } else {
+                // the last entry is moved at clockHand, which is checked next
+                demote(entry);
+            }
+        }
+    }
+
+    private void demote(Entry entry) throws IOException {
+        if (entry.filePosition < 0) {
+            writeFileRecord(entry);
+        }
+
+        removeHot(entry);
+        memorySize -= entry.pointer.getObjectSize() + 4;
+        entry.pointer.free();
+        entry.pointer = null;
+    }
+
+    private void writeFileRecord(Entry entry) throws IOException {
+        if (fileGarbageSize > fileSize * maxGarbageRatio) compactFile();
+
+        fc.position(fileSize);
+        entry.pointer.write(fc);
+
+        entry.filePosition = fileSize;
+        entry.fileSize = entry.pointer.getObjectSize() + 4;
+        fileSize += entry.fileSize;
+    }
+
+    // read the record of entry at the beginning of readBuffer
+    private void readFileRecord(Entry entry) throws IOException {
+        if (readBuffer == null || readBuffer.capacity() < entry.fileSize) {
+            if (readBuffer != null) NativeMemory.releaseAddress(readBufferAddress);
+            readBuffer = ByteBuffer.allocateDirect(Math.max(entry.fileSize, 4096));
+            readBufferAddress = NativeMemory.getAddress(readBuffer);
+        }
+
+        readBuffer.clear().limit(entry.fileSize);
+        while (readBuffer.hasRemaining()) {
+            if (fc.read(readBuffer, entry.filePosition + readBuffer.position()) < 0) {
+                throw new IOException("Unexpected end of file at " + (entry.filePosition + readBuffer.position()));
+            }
+        }
+
+        int objSize = NativeMemory.getInt(readBufferAddress);
+        if (objSize != entry.fileSize - 4) {
+            throw new IOException("Invalid object size " + objSize + " at " + entry.filePosition);
+        }
+    }
+
+    private void discardFileRecord(Entry entry) {
+        if (entry.filePosition >= 0) {
+            fileGarbageSize += entry.fileSize;
+            entry.filePosition = -1;
+        }
+    }
+}
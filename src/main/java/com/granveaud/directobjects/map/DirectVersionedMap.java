@@ -0,0 +1,271 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.DirectAllocator;
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectView;
+import com.granveaud.directobjects.NativeMemory;
+
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A map whose values are never updated in place, so that readers can scan a consistent snapshot while writers keep
+ * updating the map (multi-version concurrency control).
+ *
+ * Each write creates a new version of the value, tagged with a new epoch, and links it to the previous version.
+ * A snapshot reads the newest versions whose epoch is not greater than its own epoch. A superseded version is freed
+ * when no open snapshot is older than the version which replaced it, so snapshots must be closed.
+ *
+ * Writes (put, remove, get) are synchronized. Each Snapshot must be used by a single thread, but snapshots can be
+ * opened and read from any thread without blocking writers.
+ */
+public class DirectVersionedMap<K, V extends DirectObject> {
+
+    private static class Version {
+        final long address; // 0 for a removed value
+        final long epoch;
+        volatile Version previous;
+
+        Version(long address, long epoch, Version previous) {
+            this.address = address;
+            this.epoch = epoch;
+            this.previous = previous;
+        }
+    }
+
+    // version superseded by next at next.epoch
+    private static class RetiredVersion {
+        final Object key;
+        final Version next;
+
+        RetiredVersion(Object key, Version next) {
+            this.key = key;
+            this.next = next;
+        }
+    }
+
+    /**
+     * Consistent view of the map at the time it was opened.
+     */
+    public class Snapshot implements Closeable {
+        private final long epoch;
+        private final DirectObjectContext doContext = new DirectObjectContext();
+        private final DirectObjectView view = new DirectObjectView();
+        private boolean closed;
+
+        private Snapshot(long epoch) {
+            this.epoch = epoch;
+        }
+
+        public long getEpoch() {
+            return epoch;
+        }
+
+        public boolean get(K key, V value) {
+            checkOpen();
+
+            long address = getAddress(versions.get(key));
+            if (address == 0) return false;
+
+            view.moveTo(address).populateBean(value, doContext);
+            return true;
+        }
+
+        /**
+         * Call visitor for each entry of the snapshot. The same bean is reused for all entries.
+         */
+        public void forEach(V bean, DirectMapVisitor<K, V> visitor) {
+            checkOpen();
+
+            for (Map.Entry<K, Version> entry : versions.entrySet()) {
+                long address = getAddress(entry.getValue());
+                if (address != 0) {
+                    view.moveTo(address).populateBean(bean, doContext);
+                    visitor.visit(entry.getKey(), bean);
+                }
+            }
+        }
+
+        // address of the version visible in the snapshot
+        private long getAddress(Version version) {
+            while (version != null && version.epoch > epoch) {
+                version = version.previous;
+            }
+            return version != null ? version.address : 0;
+        }
+
+        private void checkOpen() {
+            if (closed) {
+                throw new IllegalStateException("Snapshot is closed");
+            }
+        }
+
+        /**
+         * Release the versions kept for this snapshot.
+         */
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+
+            synchronized (openSnapshots) {
+                int count = openSnapshots.get(epoch);
+                if (count == 1) {
+                    openSnapshots.remove(epoch);
+                } else {
+                    openSnapshots.put(epoch, count - 1);
+                }
+            }
+
+            synchronized (DirectVersionedMap.this) {
+                reclaim();
+            }
+        }
+    }
+
+    private final ConcurrentHashMap<K, Version> versions = new ConcurrentHashMap<K, Version>();
+    private final DirectAllocator allocator;
+
+    // epoch of the last write, published after the version
+    private volatile long epoch;
+
+    // number of open snapshots by epoch
+    private final TreeMap<Long, Integer> openSnapshots = new TreeMap<Long, Integer>();
+
+    // versions waiting for older snapshots to be closed, by increasing epoch
+    private final ArrayDeque<RetiredVersion> retiredVersions = new ArrayDeque<RetiredVersion>();
+
+    private final DirectObjectView view = new DirectObjectView();
+    private int size;
+
+    public DirectVersionedMap() {
+        this(DirectAllocator.NATIVE);
+    }
+
+    public DirectVersionedMap(DirectAllocator allocator) {
+        this.allocator = allocator;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return number of superseded versions not freed yet
+     */
+    public synchronized int getRetiredCount() {
+        return retiredVersions.size();
+    }
+
+    public synchronized void put(K key, V value) {
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        // copy on write: the new version is serialized in a new block
+        int objSize = value.getSerializedSize(doContext);
+        long address = allocator.allocate(objSize + 4);
+        NativeMemory.putInt(address, objSize);
+        view.moveTo(address).updateFromBean(value, doContext);
+
+        Version previous = versions.get(key);
+        if (previous == null || previous.address == 0) size++;
+
+        write(key, address, previous);
+    }
+
+    /**
+     * Load the last version of the value of key in the bean.
+     */
+    public synchronized boolean get(K key, V value) {
+        Version version = versions.get(key);
+        if (version == null || version.address == 0) return false;
+
+        view.moveTo(version.address).populateBean(value);
+        return true;
+    }
+
+    public synchronized boolean remove(K key) {
+        Version previous = versions.get(key);
+        if (previous == null || previous.address == 0) return false;
+
+        size--;
+        write(key, 0, previous);
+        return true;
+    }
+
+    /**
+     * Open a snapshot of the current state of the map. It must be closed.
+     */
+    public Snapshot openSnapshot() {
+        synchronized (openSnapshots) {
+            long snapshotEpoch = epoch;
+            Integer count = openSnapshots.get(snapshotEpoch);
+            openSnapshots.put(snapshotEpoch, count != null ? count + 1 : 1);
+
+            return new Snapshot(snapshotEpoch);
+        }
+    }
+
+    /**
+     * Remove all entries. There must be no open snapshot.
+     */
+    public synchronized void clear() {
+        // no snapshot can be opened while versions are freed
+        synchronized (openSnapshots) {
+            if (!openSnapshots.isEmpty()) {
+                throw new IllegalStateException("Cannot clear a map with open snapshots");
+            }
+
+            for (Version version : versions.values()) {
+                for (Version v = version; v != null; v = v.previous) {
+                    if (v.address != 0) allocator.free(v.address);
+                }
+            }
+            versions.clear();
+            retiredVersions.clear();
+            size = 0;
+        }
+    }
+
+    private void write(K key, long address, Version previous) {
+        long newEpoch = epoch + 1;
+        Version version = new Version(address, newEpoch, previous);
+
+        // publish the version before the epoch, so that a snapshot of newEpoch sees it
+        versions.put(key, version);
+        epoch = newEpoch;
+
+        if (previous != null) {
+            retiredVersions.addLast(new RetiredVersion(key, version));
+        }
+
+        reclaim();
+    }
+
+    // free the versions which can't be seen by open snapshots anymore
+    private void reclaim() {
+        long minEpoch;
+        synchronized (openSnapshots) {
+            minEpoch = openSnapshots.isEmpty() ? Long.MAX_VALUE : openSnapshots.firstKey();
+        }
+
+        while (!retiredVersions.isEmpty() && retiredVersions.peekFirst().next.epoch <= minEpoch) {
+            RetiredVersion retired = retiredVersions.pollFirst();
+            Version next = retired.next;
+
+            Version old = next.previous;
+            next.previous = null;
+            if (old != null && old.address != 0) {
+                allocator.free(old.address);
+            }
+
+            // the key was removed and no snapshot can see it anymore
+            if (next.address == 0) {
+                versions.remove(retired.key, next);
+            }
+        }
+    }
+}
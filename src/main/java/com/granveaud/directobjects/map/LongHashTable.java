@@ -0,0 +1,173 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.NativeMemory;
+
+/**
+ * Open addressing hash table stored in native memory, with long keys and a fixed number of long values per slot.
+ * Linear probing is used and removed slots are filled by shifting back the following slots, so there are no
+ * tombstones.
+ *
+ * Slot addresses returned by find/insert are only valid until the next insert or remove.
+ *
+ * This class is not thread-safe.
+ */
+public class LongHashTable {
+    private static final int USED_OFFSET = 0;
+    private static final int KEY_OFFSET = 8;
+    private static final int VALUES_OFFSET = 16;
+
+    private final int slotSize;
+
+    private long table;
+    private int capacity;
+    private int mask;
+    private int size;
+
+    public LongHashTable(int valueCount, int initialCapacity) {
+        this.slotSize = VALUES_OFFSET + 8 * valueCount;
+
+        capacity = 16;
+        while (capacity < initialCapacity) {
+            capacity <<= 1;
+        }
+        table = allocateTable(capacity);
+        mask = capacity - 1;
+    }
+
+    private long allocateTable(int capacity) {
+        long address = NativeMemory.allocate((long) capacity * slotSize);
+        NativeMemory.setMemory(address, (long) capacity * slotSize, (byte) 0);
+        return address;
+    }
+
+    private static int hash(long key) {
+        // murmur3 finalizer
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        key *= 0xc4ceb9fe1a85ec53L;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    private long slot(int index) {
+        return table + (long) index * slotSize;
+    }
+
+    private static boolean isUsed(long slot) {
+        return NativeMemory.getLong(slot + USED_OFFSET) != 0;
+    }
+
+    private static long getKey(long slot) {
+        return NativeMemory.getLong(slot + KEY_OFFSET);
+    }
+
+    public static long getValue(long slot, int i) {
+        return NativeMemory.getLong(slot + VALUES_OFFSET + 8 * i);
+    }
+
+    public static void setValue(long slot, int i, long value) {
+        NativeMemory.putLong(slot + VALUES_OFFSET + 8 * i, value);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return address of the slot of key or 0 if not found
+     */
+    public long find(long key) {
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            long s = slot(i);
+            if (!isUsed(s)) return 0;
+            if (getKey(s) == key) return s;
+        }
+    }
+
+    /**
+     * Insert a key which is not in the table. Values of the new slot are set to 0.
+     *
+     * @return address of the new slot
+     */
+    public long insert(long key) {
+        if ((size + 1) * 4L > capacity * 3L) {
+            resize(capacity * 2);
+        }
+
+        for (int i = hash(key) & mask; ; i = (i + 1) & mask) {
+            long s = slot(i);
+            if (!isUsed(s)) {
+                NativeMemory.putLong(s + USED_OFFSET, 1);
+                NativeMemory.putLong(s + KEY_OFFSET, key);
+                size++;
+                return s;
+            }
+        }
+    }
+
+    public boolean remove(long key) {
+        int i = hash(key) & mask;
+        while (true) {
+            long s = slot(i);
+            if (!isUsed(s)) return false;
+            if (getKey(s) == key) break;
+            i = (i + 1) & mask;
+        }
+
+        // shift back following slots which are not at their home position
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            long sj = slot(j);
+            if (!isUsed(sj)) break;
+
+            int k = hash(getKey(sj)) & mask;
+            if ((j > i && (k <= i || k > j)) || (j < i && (k <= i && k > j))) {
+                NativeMemory.copyMemory(sj, slot(i), slotSize);
+                i = j;
+            }
+        }
+
+        NativeMemory.setMemory(slot(i), slotSize, (byte) 0);
+        size--;
+
+        return true;
+    }
+
+    private void resize(int newCapacity) {
+        long oldTable = table;
+        int oldCapacity = capacity;
+
+        table = allocateTable(newCapacity);
+        capacity = newCapacity;
+        mask = newCapacity - 1;
+
+        for (int i = 0; i < oldCapacity; i++) {
+            long s = oldTable + (long) i * slotSize;
+            if (!isUsed(s)) continue;
+
+            for (int j = hash(getKey(s)) & mask; ; j = (j + 1) & mask) {
+                long d = slot(j);
+                if (!isUsed(d)) {
+                    NativeMemory.copyMemory(s, d, slotSize);
+                    break;
+                }
+            }
+        }
+
+        NativeMemory.free(oldTable);
+    }
+
+    public void clear() {
+        NativeMemory.setMemory(table, (long) capacity * slotSize, (byte) 0);
+        size = 0;
+    }
+
+    public void free() {
+        if (table != 0) {
+            NativeMemory.free(table);
+            table = 0;
+        }
+    }
+}
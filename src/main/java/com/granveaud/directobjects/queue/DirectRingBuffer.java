@@ -0,0 +1,275 @@
+package com.granveaud.directobjects.queue;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectView;
+import com.granveaud.directobjects.NativeMemory;
+
+/**
+ * Bounded queue of DirectObjects for producer-consumer pipelines. Objects are serialized directly into a ring of
+ * fixed-size slots pre-allocated in native memory, so passing an object to another thread doesn't allocate.
+ *
+ * Producers claim a sequence, serialize the object in the corresponding slot and publish it. Claims are lock-free:
+ * with ProducerType.MULTI the claim counter is updated with a CAS, with ProducerType.SINGLE a plain ordered write is
+ * enough. There must be a single consumer thread, which reads objects by batches.
+ *
+ * Memory layout:
+ * - header: claim sequence, consumer sequence (each on its own cache line)
+ * - slots: long published sequence + 1, int object size (-1 for an aborted publish), serialized object
+ */
+public class DirectRingBuffer<V extends DirectObject> {
+
+    public enum ProducerType {
+        SINGLE, MULTI
+    }
+
+    private static final int CACHE_LINE = 64;
+    private static final int CLAIM_OFFSET = 0;
+    private static final int CONSUMER_OFFSET = CACHE_LINE;
+    private static final int HEADER_SIZE = 2 * CACHE_LINE;
+
+    // slot layout
+    private static final int PUBLISHED_OFFSET = 0;
+    private static final int OBJECT_OFFSET = 8;
+
+    private final ProducerType producerType;
+    private final int capacity;
+    private final int mask;
+    private final int maxObjectSize;
+    private final int slotSize;
+
+    private long address;
+    private final boolean ownsMemory;
+
+    private final DirectObjectView consumerView = new DirectObjectView();
+
+    /**
+     * @param capacity      number of slots, must be a power of 2
+     * @param maxObjectSize maximum serialized size of an object
+     */
+    public DirectRingBuffer(int capacity, int maxObjectSize, ProducerType producerType) {
+        this(0, capacity, maxObjectSize, producerType);
+    }
+
+    /**
+     * Create a ring buffer in memory managed by the caller (for example a memory mapped file). The memory must be
+     * at least getMemorySize(capacity, maxObjectSize) bytes and must be zeroed before its first use.
+     */
+    protected DirectRingBuffer(long address, int capacity, int maxObjectSize, ProducerType producerType) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("capacity must be a power of 2: " + capacity);
+        }
+
+        this.producerType = producerType;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.maxObjectSize = maxObjectSize;
+        this.slotSize = getSlotSize(maxObjectSize);
+
+        if (address == 0) {
+            long memorySize = getMemorySize(capacity, maxObjectSize);
+            this.address = NativeMemory.allocate(memorySize);
+            NativeMemory.setMemory(this.address, memorySize, (byte) 0);
+            this.ownsMemory = true;
+        } else {
+            this.address = address;
+            this.ownsMemory = false;
+        }
+    }
+
+    protected static long getMemorySize(int capacity, int maxObjectSize) {
+        return HEADER_SIZE + (long) capacity * getSlotSize(maxObjectSize);
+    }
+
+    private static int getSlotSize(int maxObjectSize) {
+        // align slots on 8 bytes for the published sequence
+        return (OBJECT_OFFSET + 4 + maxObjectSize + 7) & ~7;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getMaxObjectSize() {
+        return maxObjectSize;
+    }
+
+    /**
+     * @return approximate number of objects waiting to be consumed
+     */
+    public int size() {
+        long claimed = NativeMemory.getLongVolatile(address + CLAIM_OFFSET);
+        long consumed = NativeMemory.getLongVolatile(address + CONSUMER_OFFSET);
+        return (int) (claimed - consumed);
+    }
+
+    /**
+     * Free native memory. Memory provided by the caller is not freed but the ring can't be used anymore.
+     */
+    public void free() {
+        if (address != 0) {
+            if (ownsMemory) NativeMemory.free(address);
+            address = 0;
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        free();
+    }
+
+    /**
+     * Claim the next sequence, waiting for the consumer if the ring is full.
+     */
+    public long claim() {
+        long sequence;
+        while ((sequence = tryClaim()) < 0) {
+            Thread.yield();
+        }
+        return sequence;
+    }
+
+    /**
+     * Claim the next sequence without waiting.
+     *
+     * @return claimed sequence or -1 if the ring is full
+     */
+    public long tryClaim() {
+        long claimAddress = address + CLAIM_OFFSET;
+
+        while (true) {
+            long current = NativeMemory.getLongVolatile(claimAddress);
+            if (current - NativeMemory.getLongVolatile(address + CONSUMER_OFFSET) >= capacity) {
+                return -1;
+            }
+
+            if (producerType == ProducerType.SINGLE) {
+                NativeMemory.putOrderedLong(claimAddress, current + 1);
+                return current;
+            }
+
+            if (NativeMemory.compareAndSwapLong(claimAddress, current, current + 1)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Serialize value in the slot of a claimed sequence and make it visible to the consumer. Every claimed
+     * sequence must be published: if value is too large or can't be serialized, the slot is published as empty
+     * (and skipped by the consumer) before throwing an exception.
+     */
+    public void publish(long sequence, V value) {
+        int objSize;
+        try {
+            objSize = value.getSerializedSize(DirectObjectContext.getThreadContext());
+        } catch (RuntimeException e) {
+            publishEmpty(sequence);
+            throw e;
+        }
+
+        publish(sequence, value, objSize);
+    }
+
+    private void publish(long sequence, V value, int objSize) {
+        long slot = getSlotAddress(sequence);
+
+        if (objSize > maxObjectSize) {
+            publishEmpty(sequence);
+            throw new IllegalArgumentException("Object size " + objSize + " exceeds maximum size " + maxObjectSize);
+        }
+
+        try {
+            NativeMemory.putInt(slot + OBJECT_OFFSET, objSize);
+            DirectObjectView.getThreadView().moveTo(slot + OBJECT_OFFSET).updateFromBean(value, DirectObjectContext.getThreadContext());
+        } catch (RuntimeException e) {
+            publishEmpty(sequence);
+            throw e;
+        }
+
+        NativeMemory.putOrderedLong(slot + PUBLISHED_OFFSET, sequence + 1);
+    }
+
+    // otherwise the consumer would wait for this sequence forever
+    private void publishEmpty(long sequence) {
+        long slot = getSlotAddress(sequence);
+        NativeMemory.putInt(slot + OBJECT_OFFSET, -1);
+        NativeMemory.putOrderedLong(slot + PUBLISHED_OFFSET, sequence + 1);
+    }
+
+    /**
+     * Add value, waiting for the consumer if the ring is full.
+     */
+    public void put(V value) {
+        int objSize = checkSize(value);
+        publish(claim(), value, objSize);
+    }
+
+    /**
+     * Add value if the ring is not full.
+     *
+     * @return false if the ring is full
+     */
+    public boolean offer(V value) {
+        int objSize = checkSize(value);
+
+        long sequence = tryClaim();
+        if (sequence < 0) return false;
+
+        publish(sequence, value, objSize);
+        return true;
+    }
+
+    private int checkSize(V value) {
+        int objSize = value.getSerializedSize(DirectObjectContext.getThreadContext());
+        if (objSize > maxObjectSize) {
+            throw new IllegalArgumentException("Object size " + objSize + " exceeds maximum size " + maxObjectSize);
+        }
+        return objSize;
+    }
+
+    /**
+     * Load the next published object in bean.
+     *
+     * @return false if no object is available
+     */
+    public boolean poll(V bean) {
+        return poll(bean, null, 1) == 1;
+    }
+
+    /**
+     * Consume up to maxCount published objects. Each object is loaded in bean and passed to consumer. Slots are
+     * released at the end of the batch. Must be called from a single consumer thread.
+     *
+     * @return number of consumed objects
+     */
+    public int poll(V bean, DirectRingBufferConsumer<V> consumer, int maxCount) {
+        long consumerAddress = address + CONSUMER_OFFSET;
+        long sequence = NativeMemory.getLong(consumerAddress);
+
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+
+        int count = 0;
+        while (count < maxCount) {
+            long slot = getSlotAddress(sequence);
+            if (NativeMemory.getLongVolatile(slot + PUBLISHED_OFFSET) != sequence + 1) break;
+
+            if (NativeMemory.getInt(slot + OBJECT_OFFSET) >= 0) {
+                consumerView.moveTo(slot + OBJECT_OFFSET).populateBean(bean, doContext);
+                if (consumer != null) consumer.consume(bean);
+                count++;
+            }
+
+            sequence++;
+        }
+
+        // release slots
+        NativeMemory.putOrderedLong(consumerAddress, sequence);
+
+        return count;
+    }
+
+    private long getSlotAddress(long sequence) {
+        return address + HEADER_SIZE + (sequence & mask) * slotSize;
+    }
+}
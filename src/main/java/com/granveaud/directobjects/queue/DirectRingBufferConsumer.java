@@ -0,0 +1,12 @@
+package com.granveaud.directobjects.queue;
+
+import com.granveaud.directobjects.DirectObject;
+
+/**
+ * Callback receiving the objects consumed from a DirectRingBuffer.
+ *
+ * The bean is reused between calls: copy the values you need to keep.
+ */
+public interface DirectRingBufferConsumer<V extends DirectObject> {
+    void consume(V value);
+}
@@ -0,0 +1,134 @@
+package com.granveaud.directobjects.queue;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.NativeMemory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * DirectRingBuffer stored in a memory mapped file, to exchange objects between processes on the same host.
+ * Put the file on a memory filesystem (/dev/shm on Linux) so it is never written to disk.
+ *
+ * One process creates the file, the others open it. Claim and published sequences are updated with atomic
+ * operations on the mapped memory, so ProducerType.MULTI supports producers in several processes. There must be
+ * a single consumer. The producer type is stored in the file so that all processes claim sequences the same way.
+ *
+ * File layout: long magic, int version, int capacity, int maxObjectSize, int producer type (ordinal), padding up to
+ * 64 bytes, ring memory.
+ */
+public class DirectSharedRingBuffer<V extends DirectObject> extends DirectRingBuffer<V> {
+    private static final long MAGIC = 0x444f5242L; // "DORB"
+    private static final int VERSION = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 8;
+    private static final int CAPACITY_OFFSET = 12;
+    private static final int MAX_OBJECT_SIZE_OFFSET = 16;
+    private static final int PRODUCER_TYPE_OFFSET = 20;
+    private static final int FILE_HEADER_SIZE = 64;
+
+    // keep a reference to the mapping: it is unmapped when the buffer is garbage collected
+    private MappedByteBuffer mappedByteBuffer;
+    private final long mappedAddress;
+
+    private DirectSharedRingBuffer(MappedByteBuffer mappedByteBuffer, long mappedAddress, int capacity, int maxObjectSize, ProducerType producerType) {
+        super(mappedAddress + FILE_HEADER_SIZE, capacity, maxObjectSize, producerType);
+        this.mappedByteBuffer = mappedByteBuffer;
+        this.mappedAddress = mappedAddress;
+    }
+
+    /**
+     * Create (or reset) the shared file. Must be done before other processes open it.
+     */
+    public static <V extends DirectObject> DirectSharedRingBuffer<V> create(File file, int capacity, int maxObjectSize, ProducerType producerType) throws IOException {
+        long fileSize = FILE_HEADER_SIZE + getMemorySize(capacity, maxObjectSize);
+
+        MappedByteBuffer map = map(file, fileSize);
+        long address = NativeMemory.getAddress(map);
+
+        NativeMemory.setMemory(address, fileSize, (byte) 0);
+        NativeMemory.putInt(address + VERSION_OFFSET, VERSION);
+        NativeMemory.putInt(address + CAPACITY_OFFSET, capacity);
+        NativeMemory.putInt(address + MAX_OBJECT_SIZE_OFFSET, maxObjectSize);
+        NativeMemory.putInt(address + PRODUCER_TYPE_OFFSET, producerType.ordinal());
+
+        DirectSharedRingBuffer<V> ring = new DirectSharedRingBuffer<V>(map, address, capacity, maxObjectSize, producerType);
+
+        // magic is written last: the file is ready
+        NativeMemory.putLongVolatile(address + MAGIC_OFFSET, MAGIC);
+
+        return ring;
+    }
+
+    /**
+     * Open a shared file created by another process, with the producer type given at creation.
+     */
+    public static <V extends DirectObject> DirectSharedRingBuffer<V> open(File file) throws IOException {
+        return open(file, null);
+    }
+
+    /**
+     * Open a shared file created by another process. producerType must be the type given at creation.
+     */
+    public static <V extends DirectObject> DirectSharedRingBuffer<V> open(File file, ProducerType producerType) throws IOException {
+        if (file.length() < FILE_HEADER_SIZE) {
+            throw new IllegalArgumentException("Not a ring buffer file: " + file);
+        }
+
+        MappedByteBuffer map = map(file, file.length());
+        long address = NativeMemory.getAddress(map);
+
+        // the address is registered by getAddress: release it if the file can't be used
+        try {
+            if (NativeMemory.getLongVolatile(address + MAGIC_OFFSET) != MAGIC) {
+                throw new IllegalArgumentException("Not a ring buffer file or not initialized: " + file);
+            }
+            if (NativeMemory.getInt(address + VERSION_OFFSET) != VERSION) {
+                throw new IllegalArgumentException("Unsupported ring buffer version " + NativeMemory.getInt(address + VERSION_OFFSET));
+            }
+
+            int capacity = NativeMemory.getInt(address + CAPACITY_OFFSET);
+            int maxObjectSize = NativeMemory.getInt(address + MAX_OBJECT_SIZE_OFFSET);
+            if (FILE_HEADER_SIZE + getMemorySize(capacity, maxObjectSize) > file.length()) {
+                throw new IllegalArgumentException("Truncated ring buffer file: " + file);
+            }
+
+            int ordinal = NativeMemory.getInt(address + PRODUCER_TYPE_OFFSET);
+            if (ordinal < 0 || ordinal >= ProducerType.values().length) {
+                throw new IllegalArgumentException("Invalid producer type " + ordinal + " in ring buffer file: " + file);
+            }
+            ProducerType fileProducerType = ProducerType.values()[ordinal];
+            if (producerType != null && producerType != fileProducerType) {
+                throw new IllegalArgumentException("Ring buffer was created with producer type " + fileProducerType + ", not " + producerType);
+            }
+
+            return new DirectSharedRingBuffer<V>(map, address, capacity, maxObjectSize, fileProducerType);
+        } catch (RuntimeException e) {
+            NativeMemory.releaseAddress(address);
+            throw e;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long size) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            // the mapping stays valid after the channel is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Stop using the mapping. It is released when this object is garbage collected.
+     */
+    public void close() {
+        free();
+        NativeMemory.releaseAddress(mappedAddress);
+        mappedByteBuffer = null;
+    }
+}
@@ -0,0 +1,566 @@
+package com.granveaud.directobjects.store;
+
+import com.granveaud.directobjects.DirectBloomFilter;
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectView;
+import com.granveaud.directobjects.NativeMemory;
+import com.granveaud.directobjects.map.LongHashTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Durable store of DirectObjects keyed by a long id. Objects are appended to fixed-size memory mapped segment
+ * files, so writes are sequential, and an index in native memory maps each key to the address of its record, so
+ * reads are a single access to the mapping.
+ *
+ * Updates and removals make older records obsolete: compact() copies the live records of sparse segments to the
+ * current segment and deletes them. It works by small steps and can run in a background thread. Removal records are
+ * live while an older segment exists, since it may contain a record of the removed key.
+ *
+ * Segment layout: long write position, records. Record layout (aligned on 8 bytes): long key, then the
+ * size-prefixed object as written by DirectObjectPointer.write (size -1 for a removal).
+ *
+ * An optional Bloom filter of the keys (see createBloomFilter) answers most lookups of absent keys without probing
+ * the index. It is rebuilt by compact to forget removed keys, and can be saved with DirectBloomFilter.write then
+ * attached again with attachBloomFilter.
+ */
+public class DirectLogStore<V extends DirectObject> {
+    private static final Logger LOGGER = Logger.getLogger(DirectLogStore.class.getName());
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final int SEGMENT_HEADER_SIZE = 8;
+    private static final int KEY_OFFSET = 0;
+    private static final int OBJECT_OFFSET = 8;
+
+    // index values
+    private static final int RECORD_ADDRESS = 0;
+    private static final int SEGMENT_ID = 1;
+
+    // number of records copied by compaction while holding the lock
+    private static final int COMPACTION_STEP = 1000;
+
+    private static class Segment {
+        final int id;
+        final File file;
+        MappedByteBuffer map;
+        final long address;
+        long writePosition;
+        // live records, including removal records
+        long liveBytes;
+        long removalBytes;
+
+        Segment(int id, File file, MappedByteBuffer map) {
+            this.id = id;
+            this.file = file;
+            this.map = map;
+            this.address = NativeMemory.getAddress(map);
+        }
+    }
+
+    private final File directory;
+    private final int segmentSize;
+
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final Map<Integer, Segment> segmentsById = new HashMap<Integer, Segment>();
+    private Segment activeSegment;
+
+    private final LongHashTable index = new LongHashTable(2, 1024);
+
+    // filter of the keys in the index, or null
+    private DirectBloomFilter bloomFilter;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private boolean closed;
+
+    // compactions are serialized: two compactions could copy and delete the same segment
+    private final Object compactionLock = new Object();
+    private volatile Thread compactionThread;
+
+    /**
+     * Open the store in directory, loading existing segments.
+     *
+     * @param segmentSize size of segment files
+     */
+    public DirectLogStore(File directory, int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create directory " + directory);
+        }
+
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = directory.listFiles();
+        List<Integer> ids = new ArrayList<Integer>();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    ids.add(Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+
+        Integer[] sortedIds = ids.toArray(new Integer[ids.size()]);
+        Arrays.sort(sortedIds);
+
+        // replay segments in order
+        for (int id : sortedIds) {
+            Segment segment = openSegment(id);
+
+            long position = SEGMENT_HEADER_SIZE;
+            while (position < segment.writePosition) {
+                long recordAddress = segment.address + position;
+                long key = NativeMemory.getLong(recordAddress + KEY_OFFSET);
+
+                removeFromIndex(key);
+                if (NativeMemory.getInt(recordAddress + OBJECT_OFFSET) >= 0) {
+                    addToIndex(key, recordAddress, segment);
+                } else {
+                    addRemoval(recordAddress, segment);
+                }
+
+                position += getRecordLength(recordAddress);
+            }
+
+            activeSegment = segment;
+        }
+
+        if (activeSegment == null) {
+            activeSegment = openSegment(1);
+        }
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        File file = new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer map;
+        try {
+            // the mapping stays valid after the channel is closed
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+
+        Segment segment = new Segment(id, file, map);
+        segment.writePosition = NativeMemory.getLong(segment.address);
+        if (segment.writePosition < SEGMENT_HEADER_SIZE) {
+            // new segment
+            segment.writePosition = SEGMENT_HEADER_SIZE;
+            NativeMemory.putLong(segment.address, SEGMENT_HEADER_SIZE);
+        }
+
+        segments.add(segment);
+        segmentsById.put(id, segment);
+
+        return segment;
+    }
+
+    private static long getRecordLength(long recordAddress) {
+        int objSize = NativeMemory.getInt(recordAddress + OBJECT_OFFSET);
+        return (OBJECT_OFFSET + 4 + Math.max(objSize, 0) + 7) & ~7L;
+    }
+
+    private void addToIndex(long key, long recordAddress, Segment segment) {
+        long slot = index.insert(key);
+        LongHashTable.setValue(slot, RECORD_ADDRESS, recordAddress);
+        LongHashTable.setValue(slot, SEGMENT_ID, segment.id);
+
+        segment.liveBytes += getRecordLength(recordAddress);
+    }
+
+    private static void addRemoval(long recordAddress, Segment segment) {
+        long length = getRecordLength(recordAddress);
+        segment.liveBytes += length;
+        segment.removalBytes += length;
+    }
+
+    private boolean removeFromIndex(long key) {
+        long slot = index.find(key);
+        if (slot == 0) return false;
+
+        Segment segment = segmentsById.get((int) LongHashTable.getValue(slot, SEGMENT_ID));
+        segment.liveBytes -= getRecordLength(LongHashTable.getValue(slot, RECORD_ADDRESS));
+
+        index.remove(key);
+        return true;
+    }
+
+    // reserve space for a record in the active segment, rolling to a new segment if needed
+    private long appendRecord(long key, int objSize) throws IOException {
+        long length = (OBJECT_OFFSET + 4 + Math.max(objSize, 0) + 7) & ~7L;
+        if (SEGMENT_HEADER_SIZE + length > segmentSize) {
+            throw new IllegalArgumentException("Object size " + objSize + " exceeds segment size " + segmentSize);
+        }
+
+        if (activeSegment.writePosition + length > segmentSize) {
+            activeSegment = openSegment(activeSegment.id + 1);
+        }
+
+        long recordAddress = activeSegment.address + activeSegment.writePosition;
+        NativeMemory.putLong(recordAddress + KEY_OFFSET, key);
+        NativeMemory.putInt(recordAddress + OBJECT_OFFSET, objSize);
+
+        return recordAddress;
+    }
+
+    private void commitRecord(long recordAddress) {
+        activeSegment.writePosition += getRecordLength(recordAddress);
+        NativeMemory.putOrderedLong(activeSegment.address, activeSegment.writePosition);
+    }
+
+    private void commitRemoval(long key) throws IOException {
+        long recordAddress = appendRecord(key, -1);
+        commitRecord(recordAddress);
+        addRemoval(recordAddress, activeSegment);
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return index.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public void put(long key, V value) throws IOException {
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+        int objSize = value.getSerializedSize(doContext);
+
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+
+            long recordAddress = appendRecord(key, objSize);
+            DirectObjectView.getThreadView().moveTo(recordAddress + OBJECT_OFFSET).updateFromBean(value, doContext);
+            commitRecord(recordAddress);
+
+            removeFromIndex(key);
+            addToIndex(key, recordAddress, activeSegment);
+
+            if (bloomFilter != null) bloomFilter.add(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean get(long key, V value) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            if (bloomFilter != null && !bloomFilter.mightContain(key)) return false;
+
+            long slot = index.find(key);
+            if (slot == 0) return false;
+
+            long recordAddress = LongHashTable.getValue(slot, RECORD_ADDRESS);
+            DirectObjectView.getThreadView().moveTo(recordAddress + OBJECT_OFFSET).populateBean(value, DirectObjectContext.getThreadContext());
+
+            return true;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public boolean remove(long key) throws IOException {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            if (bloomFilter != null && !bloomFilter.mightContain(key)) return false;
+            if (!removeFromIndex(key)) return false;
+
+            // write a removal record so the key is not restored when the store is reopened
+            commitRemoval(key);
+
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Create a Bloom filter of the keys of the store, maintained on each put and rebuilt by compact.
+     */
+    public void createBloomFilter(long expectedInsertions, double falsePositiveRate) {
+        DirectBloomFilter filter = new DirectBloomFilter(expectedInsertions, falsePositiveRate);
+        try {
+            attachBloomFilter(filter);
+        } catch (IllegalStateException e) {
+            filter.free();
+            throw e;
+        }
+    }
+
+    /**
+     * Use filter, for example read with DirectBloomFilter.read, as the Bloom filter of the store. The keys of the
+     * store are added to it, so it doesn't need to be up to date. The filter is freed by the store.
+     */
+    public void attachBloomFilter(DirectBloomFilter filter) {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            fillBloomFilter(filter);
+
+            if (bloomFilter != null && bloomFilter != filter) bloomFilter.free();
+            bloomFilter = filter;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the Bloom filter or null. It can be saved with write while the store is open. It is freed by close,
+     * then its methods throw IllegalStateException.
+     */
+    public DirectBloomFilter getBloomFilter() {
+        lock.readLock().lock();
+        try {
+            return bloomFilter;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // add the keys of the live records
+    private void fillBloomFilter(DirectBloomFilter filter) {
+        for (Segment segment : segments) {
+            long position = SEGMENT_HEADER_SIZE;
+            while (position < segment.writePosition) {
+                long recordAddress = segment.address + position;
+                long key = NativeMemory.getLong(recordAddress + KEY_OFFSET);
+
+                long slot = index.find(key);
+                if (slot != 0 && LongHashTable.getValue(slot, RECORD_ADDRESS) == recordAddress) {
+                    filter.add(key);
+                }
+
+                position += getRecordLength(recordAddress);
+            }
+        }
+    }
+
+    // refill the Bloom filter with the current keys, a compaction may end after close
+    private void rebuildBloomFilter() {
+        lock.writeLock().lock();
+        try {
+            if (closed || bloomFilter == null) return;
+
+            bloomFilter.clear();
+            fillBloomFilter(bloomFilter);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void checkOpen() {
+        if (closed) throw new IllegalStateException("Store " + directory + " is closed");
+    }
+
+    /**
+     * Force segments content to the storage device.
+     */
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            for (Segment segment : segments) {
+                segment.map.force();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Compact the segments (except the active one) whose live records use less than maxLiveRatio of their space.
+     * The lock is released every few records so other operations are not blocked for long. Concurrent calls are
+     * run one after the other. The store must not be closed.
+     *
+     * @return number of deleted segments
+     */
+    public int compact(double maxLiveRatio) throws IOException {
+        synchronized (compactionLock) {
+            return compactSegments(maxLiveRatio);
+        }
+    }
+
+    private int compactSegments(double maxLiveRatio) throws IOException {
+        int count = 0;
+
+        // segments created during compaction are not compacted
+        int lastId;
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            lastId = activeSegment.id;
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        while (true) {
+            Segment segment = null;
+
+            lock.readLock().lock();
+            try {
+                for (Segment s : segments) {
+                    // the removal records of the oldest segment are dropped by its compaction
+                    long liveBytes = s == segments.get(0) ? s.liveBytes - s.removalBytes : s.liveBytes;
+                    if (s.id < lastId && liveBytes <= maxLiveRatio * (s.writePosition - SEGMENT_HEADER_SIZE)) {
+                        segment = s;
+                        break;
+                    }
+                }
+            } finally {
+                lock.readLock().unlock();
+            }
+
+            if (segment == null) {
+                if (count > 0) rebuildBloomFilter();
+                return count;
+            }
+
+            compactSegment(segment);
+            count++;
+        }
+    }
+
+    private void compactSegment(Segment segment) throws IOException {
+        long position = SEGMENT_HEADER_SIZE;
+
+        while (true) {
+            lock.writeLock().lock();
+            try {
+                // the segment may have been deleted while the lock was released
+                if (!segments.contains(segment)) return;
+
+                for (int i = 0; i < COMPACTION_STEP && position < segment.writePosition; i++) {
+                    long recordAddress = segment.address + position;
+                    long length = getRecordLength(recordAddress);
+                    long key = NativeMemory.getLong(recordAddress + KEY_OFFSET);
+                    int objSize = NativeMemory.getInt(recordAddress + OBJECT_OFFSET);
+
+                    if (objSize >= 0) {
+                        // copy record if it is still the current value of key
+                        long slot = index.find(key);
+                        if (slot != 0 && LongHashTable.getValue(slot, RECORD_ADDRESS) == recordAddress) {
+                            long newAddress = appendRecord(key, objSize);
+                            NativeMemory.copyMemory(recordAddress, newAddress, length);
+                            commitRecord(newAddress);
+
+                            removeFromIndex(key);
+                            addToIndex(key, newAddress, activeSegment);
+                        }
+                    } else if (segments.get(0) != segment && index.find(key) == 0) {
+                        // removal records must be kept while older segments may contain the key
+                        commitRemoval(key);
+                    }
+
+                    position += length;
+                }
+
+                if (position >= segment.writePosition) {
+                    // the copies must be on the storage device before the records are deleted
+                    for (Segment s : segments) {
+                        if (s.id > segment.id) s.map.force();
+                    }
+
+                    segments.remove(segment);
+                    segmentsById.remove(segment.id);
+                    NativeMemory.releaseAddress(segment.address);
+                    segment.map = null;
+                    if (!segment.file.delete()) {
+                        throw new IOException("Cannot delete segment " + segment.file);
+                    }
+                    return;
+                }
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Start a daemon thread which calls compact(maxLiveRatio) every intervalMillis.
+     */
+    public void startBackgroundCompaction(final long intervalMillis, final double maxLiveRatio) {
+        Thread thread = new Thread("DirectLogStore compaction " + directory) {
+            @Override
+            public void run() {
+                while (compactionThread == this) {
+                    try {
+                        compact(maxLiveRatio);
+                        Thread.sleep(intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    } catch (IOException e) {
+                        // try again at the next interval
+                        LOGGER.log(Level.SEVERE, "Compaction of " + directory + " failed", e);
+                        try {
+                            Thread.sleep(intervalMillis);
+                        } catch (InterruptedException e2) {
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+
+        compactionThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Stop background compaction, flush segments and free the index. The store can't be used anymore: put, get,
+     * remove and compact throw IllegalStateException.
+     */
+    public void close() throws InterruptedException {
+        Thread thread = compactionThread;
+        compactionThread = null;
+        if (thread != null) {
+            thread.interrupt();
+            thread.join();
+        }
+
+        flush();
+
+        lock.writeLock().lock();
+        try {
+            if (closed) return;
+            closed = true;
+
+            index.free();
+            if (bloomFilter != null) {
+                bloomFilter.free();
+                bloomFilter = null;
+            }
+            for (Segment segment : segments) {
+                NativeMemory.releaseAddress(segment.address);
+            }
+            segments.clear();
+            segmentsById.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
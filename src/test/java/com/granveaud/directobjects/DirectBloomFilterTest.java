@@ -0,0 +1,215 @@
+package com.granveaud.directobjects;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.beans.Bean2;
+import com.granveaud.directobjects.store.DirectLogStore;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectBloomFilterTest {
+    final static private int BENCH_WARMUP = 3;
+    final static private int BENCH_LOOPS = 10;
+
+    @Test
+    public void test1() throws Exception {
+        DirectBloomFilter filter = new DirectBloomFilter(100000, 0.01);
+        assertEquals(7, filter.getHashCount());
+        assertEquals(0, filter.getBitCount() % 512);
+
+        Random random = new Random(0);
+        Set<Long> keys = new HashSet<Long>();
+        while (keys.size() < 100000) {
+            keys.add(random.nextLong());
+        }
+        for (long key : keys) {
+            filter.add(key);
+        }
+
+        // no false negative
+        for (long key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+
+        // false positive rate close to the target (blocking costs a little)
+        int falsePositives = 0;
+        for (int i = 0; i < 100000; i++) {
+            long key = random.nextLong();
+            if (!keys.contains(key) && filter.mightContain(key)) falsePositives++;
+        }
+        assertTrue("false positives: " + falsePositives, falsePositives < 2000);
+
+        // snapshot
+        File file = File.createTempFile("directobjecttest", null);
+        FileChannel fc = new FileOutputStream(file).getChannel();
+        filter.write(fc);
+        fc.close();
+
+        fc = new FileInputStream(file).getChannel();
+        DirectBloomFilter filter2 = DirectBloomFilter.read(fc);
+        fc.close();
+        assertEquals(filter.getBitCount(), filter2.getBitCount());
+        assertEquals(filter.getHashCount(), filter2.getHashCount());
+        for (long key : keys) {
+            assertTrue(filter2.mightContain(key));
+        }
+
+        filter.clear();
+        assertFalse(filter.mightContain(keys.iterator().next()));
+
+        filter.free();
+        filter2.free();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test2() throws Exception {
+        // concurrent adds don't lose bits
+        final DirectBloomFilter filter = new DirectBloomFilter(100000, 0.01);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < 100000; i += 4) {
+                        filter.add(i);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(filter.mightContain(i));
+        }
+        filter.free();
+    }
+
+    @Test
+    public void test3() throws Exception {
+        // corrupt snapshots are rejected before allocating
+        DirectBloomFilter filter = new DirectBloomFilter(1000, 0.01);
+        File file = File.createTempFile("directobjecttest", null);
+        FileChannel fc = new FileOutputStream(file).getChannel();
+        filter.write(fc);
+        fc.close();
+        filter.free();
+
+        // hash count 0, hash count 17, huge block count
+        checkCorruptHeader(file, 4, ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(0));
+        checkCorruptHeader(file, 4, ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(17));
+        checkCorruptHeader(file, 8, ByteBuffer.allocate(8).order(ByteOrder.nativeOrder()).putLong(1L << 40));
+
+        // a freed filter can't be used
+        try {
+            filter.mightContain(1);
+            fail();
+        } catch (IllegalStateException e) {
+            // ok
+        }
+
+        assertTrue(file.delete());
+    }
+
+    private void checkCorruptHeader(File file, long position, ByteBuffer value) throws Exception {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        ByteBuffer old = ByteBuffer.allocate(value.capacity());
+        raf.getChannel().read(old, position);
+        value.flip();
+        raf.getChannel().write(value, position);
+
+        FileChannel fc = new FileInputStream(file).getChannel();
+        try {
+            DirectBloomFilter.read(fc);
+            fail();
+        } catch (IOException e) {
+            // ok
+        } finally {
+            fc.close();
+        }
+
+        old.flip();
+        raf.getChannel().write(old, position);
+        raf.close();
+    }
+
+    // lookups of absent keys in a store with and without a filter
+    @Test
+    public void bench() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram histo1 = metrics.histogram("get missing without filter");
+        Histogram histo2 = metrics.histogram("get missing with filter");
+
+        File dir1 = createTempDir();
+        File dir2 = createTempDir();
+        DirectLogStore<Bean2> store1 = new DirectLogStore<Bean2>(dir1, 16 << 20);
+        DirectLogStore<Bean2> store2 = new DirectLogStore<Bean2>(dir2, 16 << 20);
+        Bean2 b = new Bean2();
+        for (long i = 0; i < 1000000; i++) {
+            b.setId((int) i);
+            store1.put(i, b);
+            store2.put(i, b);
+        }
+        store2.createBloomFilter(1000000, 0.01);
+
+        for (int loop = -BENCH_WARMUP; loop < BENCH_LOOPS; loop++) {
+            long time0 = System.nanoTime();
+            for (long i = 0; i < 1000000; i++) {
+                store1.get(i + 10000000, b);
+            }
+            long time1 = System.nanoTime();
+            for (long i = 0; i < 1000000; i++) {
+                store2.get(i + 10000000, b);
+            }
+            long time2 = System.nanoTime();
+
+            if (loop >= 0) {
+                histo1.update((time1 - time0) / 1000000);
+                histo2.update((time2 - time1) / 1000000);
+            }
+        }
+
+        MetricsUtils.displayHistoResults("get missing without filter", histo1, "ns/op");
+        MetricsUtils.displayHistoResults("get missing with filter", histo2, "ns/op");
+
+        store1.close();
+        store2.close();
+        deleteDir(dir1);
+        deleteDir(dir2);
+    }
+
+    private File createTempDir() throws IOException {
+        File dir = File.createTempFile("directbloomfiltertest", null);
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private void deleteDir(File dir) {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}
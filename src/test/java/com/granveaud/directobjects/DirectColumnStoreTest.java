@@ -0,0 +1,193 @@
+package com.granveaud.directobjects;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.beans.Bean7;
+import com.granveaud.directobjects.beans.Bean8;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectColumnStoreTest {
+    final static private int BENCH_WARMUP = 3;
+    final static private int BENCH_LOOPS = 10;
+
+    private static Bean7 createBean(int i) {
+        Bean7 b = new Bean7();
+        b.setFlag(i % 2 == 0);
+        b.setPrice(i * 0.5);
+        b.setCount((short) i);
+        b.setId(i);
+        b.setTimestamp(1000000000000L + i);
+        b.setCode((char) ('a' + i % 26));
+        b.setName(i % 10 == 0 ? null : "name" + i);
+        return b;
+    }
+
+    @Test
+    public void test1() {
+        // small capacity to test growth
+        DirectColumnStore<Bean7> store = new DirectColumnStore<Bean7>(Bean7.LAYOUT, 16);
+
+        long sumId = 0, sumTimestamp = 0;
+        double sumPrice = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i, store.add(createBean(i)));
+            sumId += i;
+            sumTimestamp += 1000000000000L + i;
+            sumPrice += i * 0.5;
+        }
+        assertEquals(10000, store.size());
+
+        // rows are rebuilt with their variable length fields
+        Bean7 b = new Bean7();
+        for (int i = 0; i < 10000; i++) {
+            store.get(i, b);
+            assertEquals(i % 2 == 0, b.isFlag());
+            assertEquals(i * 0.5, b.getPrice(), 0);
+            assertEquals((short) i, b.getCount());
+            assertEquals(i, b.getId());
+            assertEquals(1000000000000L + i, b.getTimestamp());
+            assertEquals((char) ('a' + i % 26), b.getCode());
+            assertEquals(i % 10 == 0 ? null : "name" + i, b.getName());
+        }
+
+        // single values
+        assertEquals(123, store.getInt(123, Bean7.ID));
+        assertEquals(61.5, store.getDouble(123, Bean7.PRICE), 0);
+        assertEquals(false, store.getBoolean(123, Bean7.FLAG));
+        assertEquals((short) 123, store.getShort(123, Bean7.COUNT));
+        assertEquals('t', store.getChar(123, Bean7.CODE));
+
+        // aggregates
+        assertEquals(sumId, store.sumInt(Bean7.ID));
+        assertEquals(sumTimestamp, store.sumLong(Bean7.TIMESTAMP));
+        assertEquals(sumPrice, store.sumDouble(Bean7.PRICE), 1e-6);
+
+        // bulk reads
+        double[] prices = new double[100];
+        store.readDoubles(Bean7.PRICE, 500, prices, 0, 100);
+        for (int i = 0; i < 100; i++) {
+            assertEquals((500 + i) * 0.5, prices[i], 0);
+        }
+        int[] ids = new int[10];
+        store.readInts(Bean7.ID, 9990, ids, 0, 10);
+        assertEquals(9999, ids[9]);
+
+        store.clear();
+        assertEquals(0, store.size());
+        store.add(createBean(42));
+        store.get(0, b);
+        assertEquals("name42", b.getName());
+
+        store.free();
+    }
+
+    @Test
+    public void test2() {
+        DirectColumnStore<Bean7> store = new DirectColumnStore<Bean7>(Bean7.LAYOUT);
+        store.add(createBean(1));
+
+        try {
+            store.sumLong(Bean7.ID);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ok, ID is an int field
+        }
+
+        try {
+            store.getInt(1, Bean7.ID);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // ok
+        }
+
+        try {
+            store.readDoubles(Bean7.PRICE, 0, new double[2], 0, 2);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // ok
+        }
+
+        store.free();
+    }
+
+    @Test
+    public void test3() {
+        // the layout block is after the version
+        DirectColumnStore<Bean8> store = new DirectColumnStore<Bean8>(Bean7.LAYOUT, 16);
+
+        long sumId = 0;
+        for (int i = 0; i < 100; i++) {
+            Bean8 b = new Bean8();
+            b.setId(i);
+            b.setPrice(i * 0.5);
+            b.setCode((char) ('a' + i % 26));
+            b.setName("name" + i);
+            store.add(b);
+            sumId += i;
+        }
+
+        assertEquals(sumId, store.sumInt(Bean7.ID));
+        assertEquals(11.5, store.getDouble(23, Bean7.PRICE), 0);
+
+        Bean8 b = new Bean8();
+        for (int i = 0; i < 100; i++) {
+            store.get(i, b);
+            assertEquals(i, b.getId());
+            assertEquals(i * 0.5, b.getPrice(), 0);
+            assertEquals((char) ('a' + i % 26), b.getCode());
+            assertEquals("name" + i, b.getName());
+        }
+
+        store.free();
+    }
+
+    // sum of one field with rows in a DirectMap and in columns
+    @Test
+    public void bench() {
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram histo1 = metrics.histogram("row scan");
+        Histogram histo2 = metrics.histogram("column scan");
+
+        int count = 1000000;
+        DirectColumnStore<Bean7> store = new DirectColumnStore<Bean7>(Bean7.LAYOUT, count);
+        DirectObjectPointer[] rows = new DirectObjectPointer[count];
+        for (int i = 0; i < count; i++) {
+            Bean7 b = createBean(i);
+            store.add(b);
+            rows[i] = new DirectObjectPointer.Builder().fromBean(b).build();
+        }
+
+        Bean7 b = new Bean7();
+        DirectObjectContext doContext = DirectObjectContext.getThreadContext();
+        for (int loop = -BENCH_WARMUP; loop < BENCH_LOOPS; loop++) {
+            long time0 = System.nanoTime();
+            double sum1 = 0;
+            for (DirectObjectPointer p : rows) {
+                p.populateBean(b, doContext);
+                sum1 += b.getPrice();
+            }
+            long time1 = System.nanoTime();
+            double sum2 = store.sumDouble(Bean7.PRICE);
+            long time2 = System.nanoTime();
+
+            assertEquals(sum1, sum2, 1e-3);
+            if (loop >= 0) {
+                histo1.update((time1 - time0) * 1000 / count);
+                histo2.update((time2 - time1) * 1000 / count);
+            }
+        }
+
+        MetricsUtils.displayHistoResults("row scan", histo1, "ps/row");
+        MetricsUtils.displayHistoResults("column scan", histo2, "ps/row");
+        assertTrue(store.size() == count);
+
+        for (DirectObjectPointer p : rows) {
+            p.free();
+        }
+        store.free();
+    }
+}
@@ -0,0 +1,374 @@
+package com.granveaud.directobjects;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.beans.Bean1;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectObjectAsyncFileTest {
+    final static private int BENCH_WARMUP = 3;
+    final static private int BENCH_LOOPS = 10;
+
+    private static AsynchronousFileChannel open(File file) throws IOException {
+        return AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static DirectObjectPointer createPointer(int i, int strLength) {
+        Bean1 b = new Bean1();
+        b.setStr1(Integer.toString(i));
+        StringBuilder sb = new StringBuilder();
+        for (int j = 0; j < strLength; j++) {
+            sb.append((char) ('a' + j % 26));
+        }
+        b.setStr2(sb.toString());
+
+        return new DirectObjectPointer.Builder().fromBean(b).build();
+    }
+
+    @Test
+    public void test1() throws Exception {
+        File file = File.createTempFile("directobjecttest", null);
+        DirectObjectAsyncFile asyncFile = new DirectObjectAsyncFile(open(file), 1024, 2);
+
+        // small records are coalesced, records larger than the batch are written alone
+        List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < 1000; i++) {
+            DirectObjectPointer p = createPointer(i, i % 100 == 0 ? 1000 : 10);
+            futures.add(asyncFile.write(p));
+            p.free();
+        }
+        asyncFile.flush().get();
+
+        long position = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(futures.get(i).isDone());
+            assertEquals(position, futures.get(i).get().longValue());
+
+            DirectObjectPointer p = asyncFile.read(position).get();
+            Bean1 b = new Bean1();
+            p.populateBean(b);
+            assertEquals(Integer.toString(i), b.getStr1());
+            assertEquals(i % 100 == 0 ? 1000 : 10, b.getStr2().length());
+
+            position += p.getObjectSize() + 4;
+            p.free();
+        }
+        assertEquals(position, asyncFile.getEndPosition());
+        asyncFile.close();
+
+        // same format as DirectObjectPointer.write(FileChannel)
+        FileChannel fc = new FileInputStream(file).getChannel();
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromFileChannel(fc).build();
+        Bean1 b = new Bean1();
+        p.populateBean(b);
+        assertEquals("0", b.getStr1());
+        p.free();
+        fc.close();
+
+        // records are appended to an existing file
+        asyncFile = new DirectObjectAsyncFile(open(file), 1024, 2);
+        assertEquals(position, asyncFile.getEndPosition());
+        p = createPointer(1000, 10);
+        assertEquals(position, asyncFile.write(p).get().longValue());
+        p.free();
+        asyncFile.close();
+
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test2() throws Exception {
+        // concurrent writers with a single batch in flight
+        File file = File.createTempFile("directobjecttest", null);
+        final DirectObjectAsyncFile asyncFile = new DirectObjectAsyncFile(open(file), 256, 1);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < 4000; i += 4) {
+                        DirectObjectPointer p = createPointer(i, 20);
+                        asyncFile.write(p);
+                        p.free();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        asyncFile.close();
+
+        // all records are in the file
+        boolean[] found = new boolean[4000];
+        FileChannel fc = new FileInputStream(file).getChannel();
+        Bean1 b = new Bean1();
+        while (fc.position() < fc.size()) {
+            DirectObjectPointer p = new DirectObjectPointer.Builder().fromFileChannel(fc).build();
+            p.populateBean(b);
+            found[Integer.parseInt(b.getStr1())] = true;
+            p.free();
+        }
+        fc.close();
+
+        for (boolean f : found) {
+            assertTrue(f);
+        }
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test3() throws Exception {
+        // concurrent writers and flushes never exceed maxInFlight writes
+        File file = File.createTempFile("directobjecttest", null);
+        final CountingChannel channel = new CountingChannel(open(file));
+        final DirectObjectAsyncFile asyncFile = new DirectObjectAsyncFile(channel, 256, 2);
+
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < 4000; i += 4) {
+                        DirectObjectPointer p = createPointer(i, 20);
+                        asyncFile.write(p);
+                        p.free();
+                        if (i % 3 == 0) asyncFile.flush();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        asyncFile.close();
+
+        assertTrue(channel.maxWriting.get() <= 2);
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test4() throws Exception {
+        // each record is written by the continuation of the previous one, on a thread of the channel
+        File file = File.createTempFile("directobjecttest", null);
+        final DirectObjectAsyncFile asyncFile = new DirectObjectAsyncFile(open(file), 256, 1);
+
+        final CompletableFuture<Void> last = new CompletableFuture<Void>();
+        final AtomicInteger count = new AtomicInteger();
+        Runnable writeNext = new Runnable() {
+            @Override
+            public void run() {
+                int i = count.getAndIncrement();
+                if (i == 100) {
+                    last.complete(null);
+                    return;
+                }
+
+                DirectObjectPointer p = createPointer(i, 20);
+                asyncFile.write(p).thenRun(this);
+                p.free();
+                asyncFile.flush();
+            }
+        };
+        writeNext.run();
+
+        last.get(10, TimeUnit.SECONDS);
+        asyncFile.close();
+        assertTrue(file.delete());
+
+        // a write failing at once fails the record and doesn't block flush
+        file = File.createTempFile("directobjecttest", null);
+        DirectObjectAsyncFile readOnlyFile = new DirectObjectAsyncFile(
+                AsynchronousFileChannel.open(file.toPath(), StandardOpenOption.READ), 256, 1);
+        DirectObjectPointer p = createPointer(0, 20);
+        CompletableFuture<Long> future = readOnlyFile.write(p);
+        try {
+            readOnlyFile.flush().get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            // expected
+        }
+        assertTrue(future.isCompletedExceptionally());
+
+        // the error is reported by all following flushes and by close
+        readOnlyFile.write(p);
+        p.free();
+        try {
+            readOnlyFile.flush().join();
+            fail();
+        } catch (CompletionException e) {
+            // expected
+        }
+        try {
+            readOnlyFile.close();
+            fail();
+        } catch (IOException e) {
+            // expected
+        }
+        assertTrue(file.delete());
+    }
+
+    // slow channel recording the maximum number of concurrent writes
+    private static class CountingChannel extends AsynchronousFileChannel {
+        private final AsynchronousFileChannel channel;
+        private final AtomicInteger writing = new AtomicInteger();
+        private final AtomicInteger maxWriting = new AtomicInteger();
+
+        CountingChannel(AsynchronousFileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public <A> void write(ByteBuffer src, long position, A attachment, final CompletionHandler<Integer, ? super A> handler) {
+            int count = writing.incrementAndGet();
+            while (true) {
+                int max = maxWriting.get();
+                if (count <= max || maxWriting.compareAndSet(max, count)) break;
+            }
+
+            channel.write(src, position, attachment, new CompletionHandler<Integer, A>() {
+                @Override
+                public void completed(Integer result, A a) {
+                    // slow disk: writes overlap
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    writing.decrementAndGet();
+                    handler.completed(result, a);
+                }
+
+                @Override
+                public void failed(Throwable e, A a) {
+                    writing.decrementAndGet();
+                    handler.failed(e, a);
+                }
+            });
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public AsynchronousFileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public <A> void lock(long position, long size, boolean shared, A attachment, CompletionHandler<FileLock, ? super A> handler) {
+            channel.lock(position, size, shared, attachment, handler);
+        }
+
+        @Override
+        public Future<FileLock> lock(long position, long size, boolean shared) {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        public <A> void read(ByteBuffer dst, long position, A attachment, CompletionHandler<Integer, ? super A> handler) {
+            channel.read(dst, position, attachment, handler);
+        }
+
+        @Override
+        public Future<Integer> read(ByteBuffer dst, long position) {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public Future<Integer> write(ByteBuffer src, long position) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    // latency of the calling thread for a synchronous write and an asynchronous write
+    @Test
+    public void bench() throws Exception {
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram histo1 = metrics.histogram("sync write");
+        Histogram histo2 = metrics.histogram("async write");
+
+        DirectObjectPointer p = createPointer(0, 100);
+        File file = File.createTempFile("directobjecttest", null);
+
+        for (int loop = -BENCH_WARMUP; loop < BENCH_LOOPS; loop++) {
+            FileChannel fc = new FileOutputStream(file).getChannel();
+            long time0 = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                p.write(fc);
+            }
+            long time1 = System.nanoTime();
+            fc.close();
+
+            DirectObjectAsyncFile asyncFile = new DirectObjectAsyncFile(open(file), 1 << 16, 4);
+            long time2 = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                asyncFile.write(p);
+            }
+            long time3 = System.nanoTime();
+            asyncFile.close();
+
+            if (loop >= 0) {
+                histo1.update((time1 - time0) / 100000);
+                histo2.update((time3 - time2) / 100000);
+            }
+        }
+
+        MetricsUtils.displayHistoResults("sync write", histo1, "ns/op");
+        MetricsUtils.displayHistoResults("async write", histo2, "ns/op");
+
+        p.free();
+        assertTrue(file.delete());
+    }
+}
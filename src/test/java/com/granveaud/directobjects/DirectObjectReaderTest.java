@@ -0,0 +1,247 @@
+package com.granveaud.directobjects;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.beans.Bean1;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectObjectReaderTest {
+    final static private int BENCH_WARMUP = 3;
+    final static private int BENCH_LOOPS = 10;
+
+    private static Bean1 createBean(int i) {
+        Bean1 b = new Bean1();
+        b.setStr1(Integer.toString(i));
+
+        // some records are larger than the read buffer of the tests
+        StringBuilder sb = new StringBuilder();
+        int length = i % 1000 == 0 ? 5000 : i % 50;
+        for (int j = 0; j < length; j++) {
+            sb.append((char) ('a' + j % 26));
+        }
+        b.setStr2(sb.toString());
+        return b;
+    }
+
+    private static File writeFile(int count, ByteOrder byteOrder) throws IOException {
+        File file = File.createTempFile("directobjecttest", null);
+        FileChannel fc = new FileOutputStream(file).getChannel();
+        for (int i = 0; i < count; i++) {
+            DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(createBean(i)).withByteOrder(byteOrder).build();
+            p.write(fc, byteOrder);
+            p.free();
+        }
+        fc.close();
+        return file;
+    }
+
+    private static void checkBean(int i, Bean1 b) {
+        assertEquals(Integer.toString(i), b.getStr1());
+        assertEquals(createBean(i).getStr2(), b.getStr2());
+    }
+
+    @Test
+    public void test1() throws IOException {
+        File file = writeFile(10000, ByteOrder.nativeOrder());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel fc = raf.getChannel();
+
+        // small buffer to test refills and records larger than the buffer
+        DirectObjectReader reader = new DirectObjectReader(fc, 0, fc.size(), 1024, ByteOrder.nativeOrder());
+        Bean1 b = new Bean1();
+        long position = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(reader.next());
+            assertEquals(position, reader.getRecordPosition());
+            reader.populateBean(b);
+            checkBean(i, b);
+            position += reader.getObjectSize() + 4;
+        }
+        assertFalse(reader.next());
+        assertEquals(fc.size(), position);
+        reader.close();
+
+        // mapping, read in place
+        MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        reader = new DirectObjectReader(map);
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(reader.next());
+            reader.populateBean(b);
+            checkBean(i, b);
+        }
+        assertFalse(reader.next());
+        assertEquals(0, map.position());
+        reader.close();
+
+        // truncated file
+        reader = new DirectObjectReader(fc, 0, fc.size() - 1, 1024, ByteOrder.nativeOrder());
+        try {
+            while (reader.next()) {
+                reader.populateBean(b);
+            }
+            fail();
+        } catch (IOException e) {
+            // ok
+        }
+        reader.close();
+
+        raf.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test2() throws IOException {
+        // records in the other byte order
+        ByteOrder byteOrder = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        File file = writeFile(3000, byteOrder);
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel fc = raf.getChannel();
+
+        DirectObjectReader reader = new DirectObjectReader(fc, 0, fc.size(), 1024, byteOrder);
+        Bean1 b = new Bean1();
+        for (int i = 0; i < 3000; i++) {
+            assertTrue(reader.next());
+            reader.populateBean(b);
+            checkBean(i, b);
+        }
+        assertFalse(reader.next());
+        reader.close();
+
+        MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        reader = new DirectObjectReader(map, byteOrder);
+        for (int i = 0; i < 3000; i++) {
+            assertTrue(reader.next());
+            reader.populateBean(b);
+            checkBean(i, b);
+        }
+        assertFalse(reader.next());
+        reader.close();
+
+        raf.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test3() throws Exception {
+        File file = writeFile(10000, ByteOrder.nativeOrder());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel fc = raf.getChannel();
+
+        DirectObjectReader reader = new DirectObjectReader(fc, 0, fc.size(), 1024, ByteOrder.nativeOrder());
+        checkSplit(reader.split(4));
+        reader.close();
+
+        MappedByteBuffer map = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+        reader = new DirectObjectReader(map);
+
+        // records before the current position are not in the parts
+        for (int i = 0; i < 10; i++) {
+            reader.next();
+        }
+        DirectObjectReader[] parts = reader.split(3);
+        assertEquals(3, parts.length);
+        assertTrue(parts[0].next());
+        Bean1 b = new Bean1();
+        parts[0].populateBean(b);
+        checkBean(10, b);
+        for (DirectObjectReader part : parts) {
+            part.close();
+        }
+        reader.close();
+
+        raf.close();
+        assertTrue(file.delete());
+    }
+
+    // read the parts in parallel and check that each record is read once
+    private void checkSplit(final DirectObjectReader[] parts) throws InterruptedException {
+        final AtomicInteger[] counts = new AtomicInteger[10000];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = new AtomicInteger();
+        }
+
+        Thread[] threads = new Thread[parts.length];
+        for (int t = 0; t < threads.length; t++) {
+            final DirectObjectReader part = parts[t];
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Bean1 b = new Bean1();
+                    try {
+                        while (part.next()) {
+                            part.populateBean(b);
+                            counts[Integer.parseInt(b.getStr1())].incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    part.close();
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        for (AtomicInteger count : counts) {
+            assertEquals(1, count.get());
+        }
+    }
+
+    // scan of a file with one pointer per record and with a reader
+    @Test
+    public void bench() throws IOException {
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram histo1 = metrics.histogram("fromFileChannel");
+        Histogram histo2 = metrics.histogram("reader");
+
+        File file = writeFile(100000, ByteOrder.nativeOrder());
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel fc = raf.getChannel();
+        Bean1 b = new Bean1();
+
+        for (int loop = -BENCH_WARMUP; loop < BENCH_LOOPS; loop++) {
+            long time0 = System.nanoTime();
+            fc.position(0);
+            while (fc.position() < fc.size()) {
+                DirectObjectPointer p = new DirectObjectPointer.Builder().fromFileChannel(fc).build();
+                p.populateBean(b);
+                p.free();
+            }
+            long time1 = System.nanoTime();
+
+            DirectObjectReader reader = new DirectObjectReader(fc);
+            while (reader.next()) {
+                reader.populateBean(b);
+            }
+            reader.close();
+            long time2 = System.nanoTime();
+
+            if (loop >= 0) {
+                histo1.update((time1 - time0) / 100000);
+                histo2.update((time2 - time1) / 100000);
+            }
+        }
+
+        MetricsUtils.displayHistoResults("fromFileChannel", histo1, "ns/record");
+        MetricsUtils.displayHistoResults("reader", histo2, "ns/record");
+
+        raf.close();
+        assertTrue(file.delete());
+    }
+}
@@ -3,6 +3,14 @@ package com.granveaud.directobjects;
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
 import com.granveaud.directobjects.beans.Bean1;
+import com.granveaud.directobjects.beans.Bean2;
+import com.granveaud.directobjects.beans.Bean3;
+import com.granveaud.directobjects.beans.Bean4;
+import com.granveaud.directobjects.beans.Bean5;
+import com.granveaud.directobjects.beans.Bean6;
+import com.granveaud.directobjects.beans.Bean6V1;
+import com.granveaud.directobjects.beans.Bean7;
+import com.granveaud.directobjects.DirectObjectPointer.Builder;
 import org.junit.Test;
 
 import java.io.*;
@@ -11,10 +19,16 @@ import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DirectObjectTest {
     final static private int BENCH_WARMUP = 5;
@@ -150,6 +164,593 @@ public class DirectObjectTest {
         assertEquals(b1.getStr3(), b2.getStr3());
     }
 
+    @Test
+    public void test5() {
+        // variable length encodings: check extreme values and sizes
+        int[] ints = {0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        long[] longs = {0, 1, -1, 63, -64, 64, Long.MAX_VALUE, Long.MIN_VALUE, 1L << 35};
+
+        DirectObjectContext checkedContext = new DirectObjectContext();
+        checkedContext.setMode(DirectObjectContext.Mode.CHECKED);
+
+        for (int i : ints) {
+            for (long l : longs) {
+                Bean3 b1 = new Bean3();
+                b1.setCounter(i);
+                b1.setOffset(l);
+                b1.setTimestamps(new long[]{1380000000000L, 1380000000010L, 1380000000005L, 0, Long.MAX_VALUE, Long.MIN_VALUE});
+
+                // checked context fails if getSerializedSize is wrong
+                DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(b1).withContext(checkedContext).build();
+
+                Bean3 b2 = new Bean3();
+                p.populateBean(b2, checkedContext);
+                p.free();
+
+                assertEquals(b1.getCounter(), b2.getCounter());
+                assertEquals(b1.getOffset(), b2.getOffset());
+                assertArrayEquals(b1.getTimestamps(), b2.getTimestamps());
+            }
+        }
+
+        // small values use 1 byte
+        DirectObjectContext doContext = new DirectObjectContext();
+        assertEquals(1, doContext.getVarIntLength(127));
+        assertEquals(5, doContext.getVarIntLength(-1));
+        assertEquals(1, doContext.getSignedVarLongLength(-64));
+        assertEquals(10, doContext.getVarLongLength(-1));
+        assertEquals(1 + 6 + 1 + 1, doContext.getDeltaLongsLength(new long[]{1380000000000L, 1380000000010L, 1380000000005L}));
+    }
+
+    @Test
+    public void test6() {
+        // primitives, arrays and nested objects
+        Bean4 b1 = new Bean4();
+        b1.setFlag(true);
+        b1.setRatio(0.5f);
+        b1.setAmount(1234.5678);
+        b1.setInts(new int[]{1, -2, Integer.MAX_VALUE});
+        b1.setLongs(new long[]{Long.MIN_VALUE, 0, 42});
+        b1.setFloats(new float[]{1.5f, Float.NaN});
+        b1.setDoubles(null);
+
+        Bean2 child = new Bean2();
+        child.setId(7);
+        child.setValue(77);
+        b1.setChild(child);
+
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(b1).build();
+
+        Bean4 b2 = new Bean4();
+        p.populateBean(b2);
+
+        assertEquals(b1.isFlag(), b2.isFlag());
+        assertEquals(b1.getRatio(), b2.getRatio(), 0f);
+        assertEquals(b1.getAmount(), b2.getAmount(), 0.0);
+        assertArrayEquals(b1.getInts(), b2.getInts());
+        assertArrayEquals(b1.getLongs(), b2.getLongs());
+        assertArrayEquals(b1.getFloats(), b2.getFloats(), 0f);
+        assertEquals(null, b2.getDoubles());
+        assertEquals(7, b2.getChild().getId());
+        assertEquals(77, b2.getChild().getValue());
+        assertEquals(null, b2.getChild2());
+
+        // read an array in an existing array
+        DirectObjectContext doContext = new DirectObjectContext(p);
+        doContext.getBoolean();
+        doContext.getFloat();
+        doContext.getDouble();
+        int[] ints = new int[10];
+        assertEquals(3, doContext.getInts(ints, 1));
+        assertEquals(Integer.MAX_VALUE, ints[3]);
+
+        // read arrays in place
+        doContext = new DirectObjectContext(p);
+        doContext.getBoolean();
+        doContext.getFloat();
+        doContext.getDouble();
+        DirectListView view = new DirectListView();
+        doContext.getIntsView(view);
+        assertEquals(3, view.size());
+        assertEquals(-2, view.getInt(1));
+        assertEquals(16, view.getLength());
+        doContext.getLongsView(view);
+        assertEquals(Long.MIN_VALUE, view.getLong(0));
+        assertEquals(42, view.getLong(2));
+        doContext.getFloats();
+        doContext.getDoublesView(view);
+        assertTrue(view.isNull());
+        assertEquals(0, view.size());
+        Bean2 child3 = new Bean2();
+        assertTrue(doContext.getObject(child3));
+        assertEquals(7, child3.getId());
+
+        p.free();
+    }
+
+    @Test
+    public void test7() {
+        // embedded collections
+        Bean5 b1 = new Bean5();
+        b1.setTags(Arrays.asList("a", "\u00e9t\u00e9", null, "\u4e2d\u6587"));
+
+        Map<String, Long> counters = new HashMap<String, Long>();
+        for (int i = 0; i < 100; i++) {
+            counters.put("counter" + i, (long) i * 1000);
+        }
+        b1.setCounters(counters);
+
+        Map<String, String> attributes = new HashMap<String, String>();
+        attributes.put("\u00e9", "e acute");
+        attributes.put("z", null);
+        attributes.put("", "empty");
+        b1.setAttributes(attributes);
+
+        Bean2 child = new Bean2();
+        child.setId(3);
+        child.setValue(33);
+        b1.setChildren(Arrays.asList(child, null));
+
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(b1).build();
+
+        Bean5 b2 = new Bean5();
+        p.populateBean(b2);
+
+        assertEquals(b1.getTags(), b2.getTags());
+        assertEquals(b1.getCounters(), b2.getCounters());
+        assertEquals(b1.getAttributes(), b2.getAttributes());
+        assertEquals(2, b2.getChildren().size());
+        assertEquals(33, b2.getChildren().get(0).getValue());
+        assertEquals(null, b2.getChildren().get(1));
+
+        // lazy access
+        DirectObjectContext doContext = new DirectObjectContext(p);
+        DirectListView tags = doContext.getListView(new DirectListView());
+        assertEquals(4, tags.size());
+        assertEquals("\u4e2d\u6587", tags.getString(3));
+        assertEquals(null, tags.getString(2));
+
+        DirectMapView map = doContext.getMapView(new DirectMapView());
+        assertEquals(100, map.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i * 1000L, map.getLong("counter" + i, -1));
+        }
+        assertEquals(-1, map.getLong("counter100", -1));
+        assertEquals(-1, map.getLong("counte", -1));
+
+        map = doContext.getMapView(map);
+        assertEquals("e acute", map.getString("\u00e9"));
+        assertEquals("empty", map.getString(""));
+        assertTrue(map.containsKey("z"));
+        assertEquals(null, map.getString("z"));
+        assertFalse(map.containsKey("y"));
+
+        DirectListView children = doContext.getListView(new DirectListView());
+        Bean2 b = new Bean2();
+        assertTrue(children.getObject(0, b));
+        assertEquals(3, b.getId());
+        assertFalse(children.getObject(1, b));
+
+        // null counters are rejected
+        counters.put("counter0", null);
+        try {
+            new DirectObjectPointer.Builder().fromBean(b1).build();
+            fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        p.free();
+
+        // a corrupt element count is detected in checked mode
+        DirectObjectContext checked = new DirectObjectContext();
+        checked.setMode(DirectObjectContext.Mode.CHECKED);
+        p = new DirectObjectPointer.Builder().fromBean(new DirectObject() {
+            public void serialize(DirectObjectContext doContext) {
+                doContext.putInt(1000000);
+            }
+
+            public void unserialize(DirectObjectContext doContext) {
+            }
+
+            public int getSerializedSize(DirectObjectContext doContext) {
+                return 4;
+            }
+        }).build();
+        try {
+            p.populateBean(new Bean5(), checked);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+        p.free();
+    }
+
+    @Test
+    public void test8() {
+        // read a record written by an older version of the bean
+        Bean6V1 old = new Bean6V1();
+        old.setId(1);
+        old.setName("old");
+
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(old).build();
+
+        Bean6 b = new Bean6();
+        p.populateBean(b);
+        assertEquals(1, b.getId());
+        assertEquals("old", b.getName());
+        assertEquals(-1, b.getScore());
+
+        // upgrade the record
+        b.setScore(10);
+        p.updateFromBean(b);
+
+        // read a record written by a newer version: appended fields are skipped
+        p.populateBean(old);
+        assertEquals(1, old.getId());
+        assertEquals("old", old.getName());
+
+        // same for nested objects
+        final List<Bean6> list = new ArrayList<Bean6>();
+        for (int i = 0; i < 2; i++) {
+            Bean6 nested = new Bean6();
+            nested.setId(i);
+            nested.setName("nested" + i);
+            list.add(nested);
+        }
+
+        DirectObjectPointer p2 = new DirectObjectPointer.Builder().fromBean(new DirectObject() {
+            public void serialize(DirectObjectContext doContext) {
+                doContext.putObjectList(list);
+            }
+
+            public void unserialize(DirectObjectContext doContext) {
+            }
+
+            public int getSerializedSize(DirectObjectContext doContext) {
+                return doContext.getObjectListLength(list);
+            }
+        }).build();
+
+        DirectListView view = new DirectObjectContext(p2).getListView(new DirectListView());
+        for (int i = 0; i < 2; i++) {
+            view.getObject(i, old);
+            assertEquals(i, old.getId());
+            assertEquals("nested" + i, old.getName());
+        }
+
+        p.free();
+        p2.free();
+    }
+
+    @Test
+    public void test9() throws IOException {
+        // write in the non-native byte order
+        ByteOrder order = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+        Bean2 b1 = new Bean2();
+        b1.setValue(0x0102030405060708L);
+        b1.setId(0x0a0b0c0d);
+
+        Bean4 b3 = new Bean4();
+        b3.setRatio(1.5f);
+        b3.setAmount(-2.25);
+        b3.setInts(new int[]{1, 2, 3});
+        b3.setLongs(new long[]{-1, Long.MAX_VALUE});
+        b3.setFloats(new float[]{0.1f});
+        b3.setDoubles(new double[]{Math.PI, Math.E});
+        b3.setChild(b1);
+
+        Bean5 b5 = new Bean5();
+        b5.setTags(Arrays.asList("x", "y"));
+        b5.setCounters(new HashMap<String, Long>());
+        b5.getCounters().put("k1", 1L);
+        b5.getCounters().put("k2", 2L);
+
+        DirectObjectContext doContext = new DirectObjectContext(order);
+        DirectObjectPointer p1 = new DirectObjectPointer.Builder().fromBean(b1).withContext(doContext).build();
+        DirectObjectPointer p3 = new DirectObjectPointer.Builder().fromBean(b3).withContext(doContext).build();
+        DirectObjectPointer p5 = new DirectObjectPointer.Builder().fromBean(b5).withContext(doContext).build();
+
+        File file = File.createTempFile("directobjecttest", null);
+        FileChannel fc = new FileOutputStream(file).getChannel();
+        p1.write(fc, order);
+        p3.write(fc, order);
+        p5.write(fc, order);
+        fc.close();
+
+        // check file content
+        ByteBuffer buffer = ByteBuffer.allocate(16).order(order);
+        fc = new FileInputStream(file).getChannel();
+        fc.read(buffer);
+        assertEquals(12, buffer.getInt(0));
+        assertEquals(0x0102030405060708L, buffer.getLong(4));
+        assertEquals(0x0a0b0c0d, buffer.getInt(12));
+
+        // reload
+        fc.position(0);
+        Builder builder = new DirectObjectPointer.Builder().fromFileChannel(fc).withByteOrder(order);
+        DirectObjectPointer p2 = builder.build();
+        DirectObjectPointer p4 = builder.build();
+        DirectObjectPointer p6 = builder.build();
+        fc.close();
+        file.delete();
+
+        assertEquals(12, p2.getObjectSize());
+
+        Bean2 b2 = new Bean2();
+        p2.populateBean(b2, doContext);
+        assertEquals(b1.getValue(), b2.getValue());
+        assertEquals(b1.getId(), b2.getId());
+
+        Bean4 b4 = new Bean4();
+        p4.populateBean(b4, doContext);
+        assertEquals(b3.getRatio(), b4.getRatio(), 0f);
+        assertEquals(b3.getAmount(), b4.getAmount(), 0.0);
+        assertArrayEquals(b3.getInts(), b4.getInts());
+        assertArrayEquals(b3.getLongs(), b4.getLongs());
+        assertArrayEquals(b3.getFloats(), b4.getFloats(), 0f);
+        assertArrayEquals(b3.getDoubles(), b4.getDoubles(), 0.0);
+        assertEquals(b1.getValue(), b4.getChild().getValue());
+
+        Bean5 b6 = new Bean5();
+        p6.populateBean(b6, doContext);
+        assertEquals(b5.getTags(), b6.getTags());
+        assertEquals(b5.getCounters(), b6.getCounters());
+
+        DirectObjectContext viewContext = new DirectObjectContext(p6);
+        viewContext.setByteOrder(order);
+        viewContext.getListView(new DirectListView());
+        assertEquals(2, viewContext.getMapView(new DirectMapView()).getLong("k2", -1));
+
+        // mapped buffer in its default order (big endian)
+        file = File.createTempFile("directobjecttest", null);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, 2 * (p1.getObjectSize() + 4));
+        p1.write(map, order);
+        p1.write(map, order);
+        map.position(0);
+        builder = new DirectObjectPointer.Builder().fromMappedByteBuffer(map).withByteOrder(order);
+        builder.build().free();
+        DirectObjectPointer p7 = builder.build();
+        raf.close();
+        file.delete();
+
+        p7.populateBean(b2, doContext);
+        assertEquals(b1.getValue(), b2.getValue());
+        assertEquals(b1.getId(), b2.getId());
+
+        p1.free();
+        p2.free();
+        p3.free();
+        p4.free();
+        p5.free();
+        p6.free();
+        p7.free();
+    }
+
+    // bean whose getSerializedSize is wrong
+    private static class BadBean implements DirectObject {
+        int declaredSize;
+        int writtenSize;
+
+        BadBean(int declaredSize, int writtenSize) {
+            this.declaredSize = declaredSize;
+            this.writtenSize = writtenSize;
+        }
+
+        public void serialize(DirectObjectContext doContext) {
+            for (int i = 0; i < writtenSize; i++) {
+                doContext.putByte((byte) i);
+            }
+        }
+
+        public void unserialize(DirectObjectContext doContext) {
+            for (int i = 0; i < writtenSize; i++) {
+                doContext.getByte();
+            }
+        }
+
+        public int getSerializedSize(DirectObjectContext doContext) {
+            return declaredSize;
+        }
+    }
+
+    @Test
+    public void test10() {
+        DirectObjectContext checked = new DirectObjectContext();
+        checked.setMode(DirectObjectContext.Mode.CHECKED);
+        DirectObjectContext unchecked = new DirectObjectContext();
+        unchecked.setMode(DirectObjectContext.Mode.UNCHECKED);
+
+        // overrun is detected before writing
+        try {
+            new DirectObjectPointer.Builder().fromBean(new BadBean(4, 5)).withContext(checked).build();
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        // unused space
+        try {
+            new DirectObjectPointer.Builder().fromBean(new BadBean(4, 3)).withContext(checked).build();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(new BadBean(4, 3)).withContext(unchecked).build();
+
+        // the block of a failed build is freed
+        DirectRegion region = new DirectRegion.Builder().withChunkSize(2 << 20).build();
+        try {
+            new DirectObjectPointer.Builder().fromBean(new BadBean(4, 3)).withContext(checked).withAllocator(region).build();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals(0, region.getAllocatedSize());
+        }
+        region.close();
+
+        // an overrun is still reported in unchecked mode, after the write
+        try {
+            new DirectObjectPointer.Builder().fromBean(new BadBean(4, 5)).withContext(unchecked).build();
+            fail();
+        } catch (RuntimeException e) {
+            // expected
+        }
+
+        // read overrun
+        try {
+            p.populateBean(new BadBean(4, 5), checked);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        // reading less is allowed
+        p.populateBean(new BadBean(4, 2), checked);
+
+        // a read overrun is reported in unchecked mode, after the read
+        try {
+            p.populateBean(new BadBean(4, 5), unchecked);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        p.populateBean(new BadBean(4, 2), unchecked);
+
+        // nested object overrun
+        Bean4 parent = new Bean4();
+        parent.setChild(new Bean2());
+        p.updateFromBean(parent, checked);
+        try {
+            p.updateFromBean(new DirectObject() {
+                public void serialize(DirectObjectContext doContext) {
+                    doContext.putObject(new BadBean(2, 3));
+                    doContext.putInt(0);
+                }
+
+                public void unserialize(DirectObjectContext doContext) {
+                }
+
+                public int getSerializedSize(DirectObjectContext doContext) {
+                    return 4 + 2 + 4;
+                }
+            }, checked);
+            fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+
+        p.free();
+    }
+
+    @Test
+    public void test11() {
+        // fields are reordered without padding, 8-byte fields are aligned
+        DirectLayout layout = Bean7.LAYOUT;
+        assertEquals(1 + 8 + 2 + 4 + 8 + 2, layout.getSize());
+        assertEquals(0, layout.getOffset(Bean7.ID));
+        assertEquals(4, layout.getOffset(Bean7.PRICE));
+        assertEquals(12, layout.getOffset(Bean7.TIMESTAMP));
+
+        Bean7 b1 = new Bean7();
+        b1.setFlag(true);
+        b1.setPrice(12.5);
+        b1.setCount((short) -3);
+        b1.setId(77);
+        b1.setTimestamp(1380000000000L);
+        b1.setCode('z');
+        b1.setName("layout");
+
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.LITTLE_ENDIAN, ByteOrder.BIG_ENDIAN}) {
+            DirectObjectContext doContext = new DirectObjectContext(order);
+            doContext.setMode(DirectObjectContext.Mode.CHECKED);
+
+            DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(b1).withContext(doContext).build();
+            if ((p.getAddress() & 7) == 0) {
+                assertEquals(0, (p.getAddress() + 4 + layout.getOffset(Bean7.TIMESTAMP)) & 7);
+            }
+
+            Bean7 b2 = new Bean7();
+            p.populateBean(b2, doContext);
+            assertEquals(b1.isFlag(), b2.isFlag());
+            assertEquals(b1.getPrice(), b2.getPrice(), 0.0);
+            assertEquals(b1.getCount(), b2.getCount());
+            assertEquals(b1.getId(), b2.getId());
+            assertEquals(b1.getTimestamp(), b2.getTimestamp());
+            assertEquals(b1.getCode(), b2.getCode());
+            assertEquals(b1.getName(), b2.getName());
+
+            p.free();
+        }
+
+        // alignLong and alignPositionLong agree at the start of an object
+        DirectObjectContext doContext = new DirectObjectContext();
+        doContext.setMode(DirectObjectContext.Mode.CHECKED);
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(new DirectObject() {
+            public void serialize(DirectObjectContext doContext) {
+                doContext.putByte((byte) 1);
+                doContext.alignLong();
+                doContext.putLong(2);
+            }
+
+            public void unserialize(DirectObjectContext doContext) {
+            }
+
+            public int getSerializedSize(DirectObjectContext doContext) {
+                return doContext.alignPositionLong(1) + 8;
+            }
+        }).withContext(doContext).build();
+        p.free();
+    }
+
+    // bean with a nested BadBean followed by a byte
+    private static class ParentBean implements DirectObject {
+        BadBean child;
+
+        ParentBean(BadBean child) {
+            this.child = child;
+        }
+
+        public void serialize(DirectObjectContext doContext) {
+            doContext.putObject(child);
+            doContext.putByte((byte) 42);
+        }
+
+        public void unserialize(DirectObjectContext doContext) {
+            doContext.getObject(child);
+            assertEquals(42, doContext.getByte());
+        }
+
+        public int getSerializedSize(DirectObjectContext doContext) {
+            return doContext.getObjectLength(child) + 1;
+        }
+    }
+
+    @Test
+    public void test12() {
+        // the parent has the declared size, only the nested object overruns: detected in unchecked mode too
+        DirectObjectContext unchecked = new DirectObjectContext();
+        unchecked.setMode(DirectObjectContext.Mode.UNCHECKED);
+
+        try {
+            new DirectObjectPointer.Builder().fromBean(new ParentBean(new BadBean(2, 3))).withContext(unchecked).build();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(new ParentBean(new BadBean(2, 2))).withContext(unchecked).build();
+        p.populateBean(new ParentBean(new BadBean(2, 1)), unchecked);
+        try {
+            p.populateBean(new ParentBean(new BadBean(2, 3)), unchecked);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        p.free();
+    }
+
     @Test
     public void bench() throws IOException {
         MetricRegistry metrics = new MetricRegistry();
@@ -185,6 +786,54 @@ public class DirectObjectTest {
         MetricsUtils.displayHistoResults("bench5", histo5, "ms");
     }
 
+    @Test
+    public void benchByteOrder() {
+        ByteOrder swapped = ByteOrder.nativeOrder() == ByteOrder.BIG_ENDIAN ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+        MetricRegistry metrics = new MetricRegistry();
+
+        for (ByteOrder order : new ByteOrder[]{ByteOrder.nativeOrder(), swapped}) {
+            Histogram histo1 = metrics.histogram("primitives " + order);
+            Histogram histo2 = metrics.histogram("arrays " + order);
+            for (int i = -BENCH_WARMUP; i < BENCH_LOOPS; i++) {
+                benchByteOrder(order, false, 100000, i >= 0 ? histo1 : null);
+                benchByteOrder(order, true, 1000, i >= 0 ? histo2 : null);
+            }
+            MetricsUtils.displayHistoResults("primitives " + order, histo1, "ns/op");
+            MetricsUtils.displayHistoResults("arrays " + order, histo2, "ns/op");
+        }
+    }
+
+    // bench serializing and unserializing a bean in a byte order
+    private void benchByteOrder(ByteOrder order, boolean arrays, int count, Histogram histo) {
+        DirectObjectContext doContext = new DirectObjectContext(order);
+
+        DirectObject b;
+        if (arrays) {
+            Bean4 b4 = new Bean4();
+            b4.setInts(new int[1000]);
+            b4.setLongs(new long[1000]);
+            b4.setDoubles(new double[1000]);
+            b = b4;
+        } else {
+            Bean2 b2 = new Bean2();
+            b2.setValue(123456789L);
+            b2.setId(42);
+            b = b2;
+        }
+
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(b).withContext(doContext).build();
+
+        long time0 = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            p.updateFromBean(b, doContext);
+            p.populateBean(b, doContext);
+        }
+        long dtime = System.nanoTime() - time0;
+        if (histo != null) histo.update(dtime / count);
+
+        p.free();
+    }
+
     // bench serializing a bean to native memory
     private void bench1(int count, Histogram histo) {
         String str1 = getStringAllCodes();
@@ -0,0 +1,160 @@
+package com.granveaud.directobjects;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.beans.Bean1;
+import com.granveaud.directobjects.beans.Bean2;
+import com.granveaud.directobjects.map.DirectMap;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DirectRegionTest {
+    final static private int BENCH_WARMUP = 3;
+    final static private int BENCH_LOOPS = 10;
+
+    @Test
+    public void test1() {
+        DirectRegion region = new DirectRegion.Builder().withChunkSize(2 << 20).withPreTouch(true).build();
+
+        // blocks are rounded to their class and aligned on 8 bytes
+        long a1 = region.allocate(20);
+        long a2 = region.allocate(100);
+        assertEquals(24, region.getCapacity(a1));
+        assertEquals(104, region.getCapacity(a2));
+        assertEquals(0, a1 & 7);
+        assertEquals(2 << 20, region.getReservedSize());
+        assertEquals(32 + 112, region.getAllocatedSize());
+
+        // realloc in the same class keeps the block, otherwise content is copied
+        NativeMemory.putLong(a1, 123456789L);
+        assertEquals(a1, region.reallocate(a1, 24));
+        long a3 = region.reallocate(a1, 1000);
+        assertTrue(a3 != a1);
+        assertEquals(123456789L, NativeMemory.getLong(a3));
+
+        // freed blocks are reused
+        assertEquals(a1, region.allocate(16));
+
+        // large blocks get their own chunk
+        long a4 = region.allocate(3 << 20);
+        NativeMemory.putLong(a4 + (3 << 20) - 8, 42);
+        assertEquals(42, NativeMemory.getLong(a4 + (3 << 20) - 8));
+        assertEquals((2 << 20) + (4 << 20), region.getReservedSize());
+
+        region.free(a2);
+        region.free(a3);
+        region.free(a4);
+        region.free(a1);
+        assertEquals(0, region.getAllocatedSize());
+
+        region.close();
+        assertEquals(0, region.getReservedSize());
+    }
+
+    @Test
+    public void test2() throws IOException {
+        // anonymous chunks then chunks mapped from files (use a hugetlbfs mount in production)
+        File dir = File.createTempFile("directregion", "");
+        assertTrue(dir.delete() && dir.mkdir());
+
+        DirectRegion[] regions = {
+                new DirectRegion.Builder().withChunkSize(1 << 16).withAlignment(4096).build(),
+                new DirectRegion.Builder().withChunkSize(1 << 16).withAlignment(4096).withDirectory(dir).build()
+        };
+
+        for (DirectRegion region : regions) {
+            DirectMap<Integer, Bean1> map = new DirectMap<Integer, Bean1>(region);
+
+            Bean1 b = new Bean1();
+            for (int i = 0; i < 10000; i++) {
+                b.setStr1(Integer.toString(i));
+                b.setStr2("abc");
+                map.put(i, b);
+            }
+
+            // values grow and move to another class
+            for (int i = 0; i < 10000; i += 2) {
+                b.setStr1(Integer.toString(i));
+                b.setStr2("abcdefghijklmnopqrstuvwxyz");
+                map.put(i, b);
+            }
+
+            for (int i = 0; i < 10000; i++) {
+                assertTrue(map.get(i, b));
+                assertEquals(Integer.toString(i), b.getStr1());
+                assertEquals(i % 2 == 0 ? "abcdefghijklmnopqrstuvwxyz" : "abc", b.getStr2());
+            }
+            assertTrue(region.getReservedSize() > 1 << 16);
+
+            map.clear();
+            assertEquals(0, region.getAllocatedSize());
+            region.close();
+        }
+
+        assertEquals(0, dir.list().length);
+        assertTrue(dir.delete());
+    }
+
+    @Test
+    public void bench() {
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram histo1 = metrics.histogram("native get");
+        Histogram histo2 = metrics.histogram("region get");
+
+        int count = 1000000;
+        DirectRegion region = new DirectRegion.Builder().withPreTouch(true).build();
+
+        DirectMap<Integer, Bean2> map1 = createMap(count, new DirectMap<Integer, Bean2>());
+        DirectMap<Integer, Bean2> map2 = createMap(count, new DirectMap<Integer, Bean2>(region));
+
+        Integer[] keys = new Integer[count];
+        Random random = new Random(0);
+        for (int i = 0; i < count; i++) {
+            keys[i] = random.nextInt(count);
+        }
+
+        for (int i = -BENCH_WARMUP; i < BENCH_LOOPS; i++) {
+            benchGet(map1, keys, i >= 0 ? histo1 : null);
+            benchGet(map2, keys, i >= 0 ? histo2 : null);
+        }
+
+        MetricsUtils.displayHistoResults("native get", histo1, "ns/op");
+        MetricsUtils.displayHistoResults("region get", histo2, "ns/op");
+
+        map1.clear();
+        map2.clear();
+        region.close();
+    }
+
+    private DirectMap<Integer, Bean2> createMap(int count, DirectMap<Integer, Bean2> map) {
+        Bean2 b = new Bean2();
+        for (int i = 0; i < count; i++) {
+            b.setId(i);
+            b.setValue(i * 10L);
+            map.put(i, b);
+        }
+        return map;
+    }
+
+    // bench random lookups
+    private void benchGet(DirectMap<Integer, Bean2> map, Integer[] keys, Histogram histo) {
+        Bean2 b = new Bean2();
+
+        long time0 = System.nanoTime();
+        long sum = 0;
+        for (Integer key : keys) {
+            map.get(key, b);
+            sum += b.getValue();
+        }
+        long dtime = System.nanoTime() - time0;
+        if (histo != null) histo.update(dtime / keys.length);
+
+        assertTrue(sum > 0);
+    }
+}
@@ -0,0 +1,190 @@
+package com.granveaud.directobjects;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MemoryAccessTest {
+    final static private int BENCH_WARMUP = 5;
+    final static private int BENCH_LOOPS = 20;
+
+    private MemoryAccess[] getBackends() {
+        return new MemoryAccess[]{new UnsafeMemoryAccess(), new ByteBufferMemoryAccess()};
+    }
+
+    @Test
+    public void test1() {
+        for (MemoryAccess memory : getBackends()) {
+            long address = memory.allocate(64);
+            memory.setMemory(address, 64, (byte) 0);
+
+            memory.putByte(address, (byte) -1);
+            memory.putShort(address + 2, (short) -2);
+            memory.putChar(address + 4, 'c');
+            memory.putInt(address + 8, 123456789);
+            memory.putLong(address + 16, Long.MIN_VALUE);
+            memory.putFloat(address + 24, 1.5f);
+            memory.putDouble(address + 32, Math.PI);
+
+            assertEquals(-1, memory.getByte(address));
+            assertEquals(-2, memory.getShort(address + 2));
+            assertEquals('c', memory.getChar(address + 4));
+            assertEquals(123456789, memory.getInt(address + 8));
+            assertEquals(Long.MIN_VALUE, memory.getLong(address + 16));
+            assertEquals(1.5f, memory.getFloat(address + 24), 0f);
+            assertEquals(Math.PI, memory.getDouble(address + 32), 0.0);
+
+            // atomic operations
+            memory.putLongVolatile(address + 40, 1);
+            assertTrue(memory.compareAndSwapLong(address + 40, 1, 2));
+            assertFalse(memory.compareAndSwapLong(address + 40, 1, 3));
+            assertEquals(2, memory.getLongVolatile(address + 40));
+
+            // arrays
+            int[] ints = {1, 2, 3, 4};
+            memory.putInts(address + 48, ints, 1, 3);
+            int[] ints2 = new int[4];
+            memory.getInts(address + 48, ints2, 0, 3);
+            assertArrayEquals(new int[]{2, 3, 4, 0}, ints2);
+
+            // reallocate keeps content
+            address = memory.reallocate(address, 128);
+            assertEquals(123456789, memory.getInt(address + 8));
+
+            long address2 = memory.allocate(64);
+            memory.copyMemory(address, address2, 64);
+            assertEquals(Long.MIN_VALUE, memory.getLong(address2 + 16));
+
+            // wrap and buffer address
+            ByteBuffer buffer = memory.wrap(address + 8, 4).order(ByteOrder.nativeOrder());
+            assertEquals(4, buffer.remaining());
+            assertEquals(123456789, buffer.getInt(0));
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(16).order(ByteOrder.nativeOrder());
+            direct.putLong(8, 42);
+            long directAddress = memory.getAddress(direct);
+            assertEquals(42, memory.getLong(directAddress + 8));
+            memory.releaseAddress(directAddress);
+
+            memory.free(address);
+            memory.free(address2);
+        }
+    }
+
+    @Test
+    public void test2() {
+        // objects with the selected backend
+        DirectObjectContext doContext = new DirectObjectContext();
+        doContext.setMode(DirectObjectContext.Mode.CHECKED);
+
+        long[] values = new long[100];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 31L;
+        }
+
+        final long[] array = values;
+        DirectObject bean = new DirectObject() {
+            public void serialize(DirectObjectContext doContext) {
+                doContext.putLongs(array);
+                doContext.putString("\u00e9t\u00e9");
+            }
+
+            public void unserialize(DirectObjectContext doContext) {
+                assertArrayEquals(array, doContext.getLongs());
+                assertEquals("\u00e9t\u00e9", doContext.getString());
+            }
+
+            public int getSerializedSize(DirectObjectContext doContext) {
+                return doContext.getLongsLength(array) + doContext.getStringLength("\u00e9t\u00e9");
+            }
+        };
+
+        DirectObjectPointer p = new DirectObjectPointer.Builder().fromBean(bean).withContext(doContext).build();
+        p.populateBean(bean, doContext);
+        p.free();
+    }
+
+    @Test
+    public void bench() {
+        MetricRegistry metrics = new MetricRegistry();
+
+        // baseline: direct calls to Unsafe
+        Histogram histo0 = metrics.histogram("Unsafe int");
+        for (int i = -BENCH_WARMUP; i < BENCH_LOOPS; i++) {
+            benchIntsUnsafe(1000000, i >= 0 ? histo0 : null);
+        }
+        MetricsUtils.displayHistoResults("Unsafe int", histo0, "ps/op");
+
+        for (MemoryAccess memory : getBackends()) {
+            String name = memory.getClass().getSimpleName();
+
+            Histogram histo1 = metrics.histogram(name + " int");
+            Histogram histo2 = metrics.histogram(name + " long[]");
+            for (int i = -BENCH_WARMUP; i < BENCH_LOOPS; i++) {
+                benchInts(memory, 1000000, i >= 0 ? histo1 : null);
+                benchLongArrays(memory, 10000, i >= 0 ? histo2 : null);
+            }
+            MetricsUtils.displayHistoResults(name + " int", histo1, "ps/op");
+            MetricsUtils.displayHistoResults(name + " long[]", histo2, "ns/op");
+        }
+    }
+
+    // bench writing and reading ints
+    private void benchInts(MemoryAccess memory, int count, Histogram histo) {
+        long address = memory.allocate(4096);
+
+        long time0 = System.nanoTime();
+        int sum = 0;
+        for (int i = 0; i < count; i++) {
+            long a = address + ((i & 1023) << 2);
+            memory.putInt(a, i);
+            sum += memory.getInt(a);
+        }
+        long dtime = System.nanoTime() - time0;
+        if (histo != null) histo.update(dtime * 1000 / count);
+
+        memory.free(address);
+        assertTrue(sum != 1);
+    }
+
+    private void benchIntsUnsafe(int count, Histogram histo) {
+        long address = Utils.UNSAFE.allocateMemory(4096);
+
+        long time0 = System.nanoTime();
+        int sum = 0;
+        for (int i = 0; i < count; i++) {
+            long a = address + ((i & 1023) << 2);
+            Utils.UNSAFE.putInt(a, i);
+            sum += Utils.UNSAFE.getInt(a);
+        }
+        long dtime = System.nanoTime() - time0;
+        if (histo != null) histo.update(dtime * 1000 / count);
+
+        Utils.UNSAFE.freeMemory(address);
+        assertTrue(sum != 1);
+    }
+
+    // bench copying arrays of 128 longs
+    private void benchLongArrays(MemoryAccess memory, int count, Histogram histo) {
+        long address = memory.allocate(1024);
+        long[] values = new long[128];
+
+        long time0 = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            memory.putLongs(address, values, 0, values.length);
+            memory.getLongs(address, values, 0, values.length);
+        }
+        long dtime = System.nanoTime() - time0;
+        if (histo != null) histo.update(dtime / count);
+
+        memory.free(address);
+    }
+}
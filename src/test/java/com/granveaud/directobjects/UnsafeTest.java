@@ -2,10 +2,11 @@ package com.granveaud.directobjects;
 
 import com.codahale.metrics.Histogram;
 import com.codahale.metrics.MetricRegistry;
+import org.junit.Assume;
 import org.junit.Test;
 import sun.misc.Unsafe;
-import sun.nio.ch.DirectBuffer;
 
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
@@ -20,8 +21,19 @@ public class UnsafeTest {
         }
     }
 
+    // raw address of a direct buffer: NativeMemory.getAddress returns an encoded address with other backends
+    private static long getRawAddress(ByteBuffer bb) {
+        try {
+            return Utils.UNSAFE.getLong(bb, Utils.UNSAFE.objectFieldOffset(Buffer.class.getDeclaredField("address")));
+        } catch (NoSuchFieldException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     @Test
     public void bench() {
+        Assume.assumeTrue(Utils.UNSAFE != null);
+
         int bufferLength = 10 * 1024 * 1024;
 
         ByteBuffer bb1 = ByteBuffer.allocateDirect(bufferLength).order(ByteOrder.nativeOrder());
@@ -107,8 +119,8 @@ public class UnsafeTest {
         bb1.clear();
         bb2.clear();
 
-        long src = ((DirectBuffer) bb1).address() + shift;
-        long dest = ((DirectBuffer) bb2).address() + shift;
+        long src = getRawAddress(bb1) + shift;
+        long dest = getRawAddress(bb2) + shift;
 
         long time0 = System.nanoTime();
         int n = count;
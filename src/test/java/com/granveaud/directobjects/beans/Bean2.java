@@ -0,0 +1,42 @@
+package com.granveaud.directobjects.beans;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+
+public class Bean2 implements DirectObject {
+    private long value;
+    private int id;
+
+    public long getValue() {
+        return value;
+    }
+
+    public void setValue(long value) {
+        this.value = value;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    @Override
+    public void serialize(DirectObjectContext doContext) {
+        doContext.putLong(value);
+        doContext.putInt(id);
+    }
+
+    @Override
+    public void unserialize(DirectObjectContext doContext) {
+        value = doContext.getLong();
+        id = doContext.getInt();
+    }
+
+    @Override
+    public int getSerializedSize(DirectObjectContext doContext) {
+        return 8 + 4;
+    }
+}
@@ -0,0 +1,55 @@
+package com.granveaud.directobjects.beans;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+
+public class Bean3 implements DirectObject {
+    private int counter;
+    private long offset;
+    private long[] timestamps;
+
+    public int getCounter() {
+        return counter;
+    }
+
+    public void setCounter(int counter) {
+        this.counter = counter;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(long offset) {
+        this.offset = offset;
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    public void setTimestamps(long[] timestamps) {
+        this.timestamps = timestamps;
+    }
+
+    @Override
+    public void serialize(DirectObjectContext doContext) {
+        doContext.putVarInt(counter);
+        doContext.putSignedVarLong(offset);
+        doContext.putDeltaLongs(timestamps);
+    }
+
+    @Override
+    public void unserialize(DirectObjectContext doContext) {
+        counter = doContext.getVarInt();
+        offset = doContext.getSignedVarLong();
+        timestamps = doContext.getDeltaLongs();
+    }
+
+    @Override
+    public int getSerializedSize(DirectObjectContext doContext) {
+        return doContext.getVarIntLength(counter)
+                + doContext.getSignedVarLongLength(offset)
+                + doContext.getDeltaLongsLength(timestamps);
+    }
+}
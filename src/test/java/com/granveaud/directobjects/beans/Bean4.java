@@ -0,0 +1,129 @@
+package com.granveaud.directobjects.beans;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+
+public class Bean4 implements DirectObject {
+    private boolean flag;
+    private float ratio;
+    private double amount;
+    private int[] ints;
+    private long[] longs;
+    private float[] floats;
+    private double[] doubles;
+    private Bean2 child;
+    private Bean2 child2;
+
+    public boolean isFlag() {
+        return flag;
+    }
+
+    public void setFlag(boolean flag) {
+        this.flag = flag;
+    }
+
+    public float getRatio() {
+        return ratio;
+    }
+
+    public void setRatio(float ratio) {
+        this.ratio = ratio;
+    }
+
+    public double getAmount() {
+        return amount;
+    }
+
+    public void setAmount(double amount) {
+        this.amount = amount;
+    }
+
+    public int[] getInts() {
+        return ints;
+    }
+
+    public void setInts(int[] ints) {
+        this.ints = ints;
+    }
+
+    public long[] getLongs() {
+        return longs;
+    }
+
+    public void setLongs(long[] longs) {
+        this.longs = longs;
+    }
+
+    public float[] getFloats() {
+        return floats;
+    }
+
+    public void setFloats(float[] floats) {
+        this.floats = floats;
+    }
+
+    public double[] getDoubles() {
+        return doubles;
+    }
+
+    public void setDoubles(double[] doubles) {
+        this.doubles = doubles;
+    }
+
+    public Bean2 getChild() {
+        return child;
+    }
+
+    public void setChild(Bean2 child) {
+        this.child = child;
+    }
+
+    public Bean2 getChild2() {
+        return child2;
+    }
+
+    public void setChild2(Bean2 child2) {
+        this.child2 = child2;
+    }
+
+    @Override
+    public void serialize(DirectObjectContext doContext) {
+        doContext.putBoolean(flag);
+        doContext.putFloat(ratio);
+        doContext.putDouble(amount);
+        doContext.putInts(ints);
+        doContext.putLongs(longs);
+        doContext.putFloats(floats);
+        doContext.putDoubles(doubles);
+        doContext.putObject(child);
+        doContext.putObject(child2);
+    }
+
+    @Override
+    public void unserialize(DirectObjectContext doContext) {
+        flag = doContext.getBoolean();
+        ratio = doContext.getFloat();
+        amount = doContext.getDouble();
+        ints = doContext.getInts();
+        longs = doContext.getLongs();
+        floats = doContext.getFloats();
+        doubles = doContext.getDoubles();
+
+        if (child == null) child = new Bean2();
+        if (!doContext.getObject(child)) child = null;
+
+        if (child2 == null) child2 = new Bean2();
+        if (!doContext.getObject(child2)) child2 = null;
+    }
+
+    @Override
+    public int getSerializedSize(DirectObjectContext doContext) {
+        return 1 + 4 + 8
+                + doContext.getIntsLength(ints)
+                + doContext.getLongsLength(longs)
+                + doContext.getFloatsLength(floats)
+                + doContext.getDoublesLength(doubles)
+                + doContext.getObjectLength(child)
+                + doContext.getObjectLength(child2);
+    }
+}
@@ -0,0 +1,84 @@
+package com.granveaud.directobjects.beans;
+
+import com.granveaud.directobjects.DirectListView;
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+public class Bean5 implements DirectObject {
+    private List<String> tags;
+    private Map<String, Long> counters;
+    private Map<String, String> attributes;
+    private List<Bean2> children;
+
+    private final DirectListView listView = new DirectListView();
+
+    public List<String> getTags() {
+        return tags;
+    }
+
+    public void setTags(List<String> tags) {
+        this.tags = tags;
+    }
+
+    public Map<String, Long> getCounters() {
+        return counters;
+    }
+
+    public void setCounters(Map<String, Long> counters) {
+        this.counters = counters;
+    }
+
+    public Map<String, String> getAttributes() {
+        return attributes;
+    }
+
+    public void setAttributes(Map<String, String> attributes) {
+        this.attributes = attributes;
+    }
+
+    public List<Bean2> getChildren() {
+        return children;
+    }
+
+    public void setChildren(List<Bean2> children) {
+        this.children = children;
+    }
+
+    @Override
+    public void serialize(DirectObjectContext doContext) {
+        doContext.putStringList(tags);
+        doContext.putStringLongMap(counters);
+        doContext.putStringStringMap(attributes);
+        doContext.putObjectList(children);
+    }
+
+    @Override
+    public void unserialize(DirectObjectContext doContext) {
+        tags = doContext.getStringList();
+        counters = doContext.getStringLongMap();
+        attributes = doContext.getStringStringMap();
+
+        doContext.getListView(listView);
+        if (listView.isNull()) {
+            children = null;
+        } else {
+            children = new ArrayList<Bean2>(listView.size());
+            for (int i = 0; i < listView.size(); i++) {
+                Bean2 child = new Bean2();
+                children.add(listView.getObject(i, child) ? child : null);
+            }
+        }
+    }
+
+    @Override
+    public int getSerializedSize(DirectObjectContext doContext) {
+        return doContext.getStringListLength(tags)
+                + doContext.getStringLongMapLength(counters)
+                + doContext.getStringStringMapLength(attributes)
+                + doContext.getObjectListLength(children);
+    }
+}
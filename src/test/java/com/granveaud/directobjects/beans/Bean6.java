@@ -0,0 +1,60 @@
+package com.granveaud.directobjects.beans;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+
+/**
+ * Second version of Bean6V1: score was added.
+ */
+public class Bean6 implements DirectObject {
+    private static final int VERSION = 2;
+
+    private int id;
+    private String name;
+    private long score;
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getScore() {
+        return score;
+    }
+
+    public void setScore(long score) {
+        this.score = score;
+    }
+
+    @Override
+    public void serialize(DirectObjectContext doContext) {
+        doContext.putVersion(VERSION);
+        doContext.putInt(id);
+        doContext.putString(name);
+        doContext.putLong(score);
+    }
+
+    @Override
+    public void unserialize(DirectObjectContext doContext) {
+        int version = doContext.getVersion();
+        id = doContext.getInt();
+        name = doContext.getString();
+        score = version >= 2 ? doContext.getLong() : -1;
+    }
+
+    @Override
+    public int getSerializedSize(DirectObjectContext doContext) {
+        return doContext.getVersionLength(VERSION) + 4 + doContext.getStringLength(name) + 8;
+    }
+}
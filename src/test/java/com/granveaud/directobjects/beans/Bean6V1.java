@@ -0,0 +1,47 @@
+package com.granveaud.directobjects.beans;
+
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+
+/**
+ * First version of Bean6.
+ */
+public class Bean6V1 implements DirectObject {
+    private int id;
+    private String name;
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void serialize(DirectObjectContext doContext) {
+        doContext.putVersion(1);
+        doContext.putInt(id);
+        doContext.putString(name);
+    }
+
+    @Override
+    public void unserialize(DirectObjectContext doContext) {
+        doContext.getVersion();
+        id = doContext.getInt();
+        name = doContext.getString();
+    }
+
+    @Override
+    public int getSerializedSize(DirectObjectContext doContext) {
+        return doContext.getVersionLength(1) + 4 + doContext.getStringLength(name);
+    }
+}
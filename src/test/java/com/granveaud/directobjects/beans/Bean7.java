@@ -0,0 +1,111 @@
+package com.granveaud.directobjects.beans;
+
+import com.granveaud.directobjects.DirectLayout;
+import com.granveaud.directobjects.DirectObject;
+import com.granveaud.directobjects.DirectObjectContext;
+
+public class Bean7 implements DirectObject {
+    private static final DirectLayout.Builder BUILDER = new DirectLayout.Builder();
+    public static final int FLAG = BUILDER.addBoolean("flag");
+    public static final int PRICE = BUILDER.addDouble("price");
+    public static final int COUNT = BUILDER.addShort("count");
+    public static final int ID = BUILDER.addInt("id");
+    public static final int TIMESTAMP = BUILDER.addLong("timestamp");
+    public static final int CODE = BUILDER.addChar("code");
+    public static final DirectLayout LAYOUT = BUILDER.build();
+
+    private boolean flag;
+    private double price;
+    private short count;
+    private int id;
+    private long timestamp;
+    private char code;
+    private String name;
+
+    public boolean isFlag() {
+        return flag;
+    }
+
+    public void setFlag(boolean flag) {
+        this.flag = flag;
+    }
+
+    public double getPrice() {
+        return price;
+    }
+
+    public void setPrice(double price) {
+        this.price = price;
+    }
+
+    public short getCount() {
+        return count;
+    }
+
+    public void setCount(short count) {
+        this.count = count;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public void setId(int id) {
+        this.id = id;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    public char getCode() {
+        return code;
+    }
+
+    public void setCode(char code) {
+        this.code = code;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    @Override
+    public void serialize(DirectObjectContext doContext) {
+        doContext.startLayout(LAYOUT);
+        doContext.putBooleanField(FLAG, flag);
+        doContext.putDoubleField(PRICE, price);
+        doContext.putShortField(COUNT, count);
+        doContext.putIntField(ID, id);
+        doContext.putLongField(TIMESTAMP, timestamp);
+        doContext.putCharField(CODE, code);
+
+        doContext.putString(name);
+    }
+
+    @Override
+    public void unserialize(DirectObjectContext doContext) {
+        doContext.startLayout(LAYOUT);
+        flag = doContext.getBooleanField(FLAG);
+        price = doContext.getDoubleField(PRICE);
+        count = doContext.getShortField(COUNT);
+        id = doContext.getIntField(ID);
+        timestamp = doContext.getLongField(TIMESTAMP);
+        code = doContext.getCharField(CODE);
+
+        name = doContext.getString();
+    }
+
+    @Override
+    public int getSerializedSize(DirectObjectContext doContext) {
+        return doContext.getLayoutLength(LAYOUT) + doContext.getStringLength(name);
+    }
+}
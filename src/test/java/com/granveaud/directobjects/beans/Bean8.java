@@ -0,0 +1,27 @@
+package com.granveaud.directobjects.beans;
+
+import com.granveaud.directobjects.DirectObjectContext;
+
+/**
+ * Bean7 with a schema version written before the layout block.
+ */
+public class Bean8 extends Bean7 {
+    private static final int VERSION = 1;
+
+    @Override
+    public void serialize(DirectObjectContext doContext) {
+        doContext.putVersion(VERSION);
+        super.serialize(doContext);
+    }
+
+    @Override
+    public void unserialize(DirectObjectContext doContext) {
+        doContext.getVersion();
+        super.unserialize(doContext);
+    }
+
+    @Override
+    public int getSerializedSize(DirectObjectContext doContext) {
+        return doContext.getVersionLength(VERSION) + super.getSerializedSize(doContext);
+    }
+}
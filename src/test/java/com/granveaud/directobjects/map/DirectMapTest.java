@@ -1,13 +1,35 @@
 package com.granveaud.directobjects.map;
 
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectPointer;
+import com.granveaud.directobjects.DirectRegion;
+import com.granveaud.directobjects.MetricsUtils;
 import com.granveaud.directobjects.beans.Bean1;
+import com.granveaud.directobjects.beans.Bean2;
 import com.granveaud.directobjects.map.DirectMap;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.stream.StreamSupport;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class DirectMapTest {
+    final static private int BENCH_WARMUP = 5;
+    final static private int BENCH_LOOPS = 10;
+
     @Test
     public void test1() {
         DirectMap<Integer, Bean1> map = new DirectMap<Integer, Bean1>();
@@ -49,4 +71,298 @@ public class DirectMapTest {
 
         assertTrue(map.size() == 0);
     }
+
+    @Test
+    public void test2() {
+        DirectMap<Integer, Bean2> map = createMap2(1000);
+
+        // reallocate even keys in reverse order so that address order differs from hash order
+        Bean2 b = new Bean2();
+        for (int i = 998; i >= 0; i -= 2) {
+            map.remove(i);
+        }
+        for (int i = 998; i >= 0; i -= 2) {
+            b.setId(i);
+            b.setValue(i * 10L);
+            map.put(i, b);
+        }
+
+        // iterate in hash order then in address order
+        final Set<Integer> keys1 = new HashSet<Integer>();
+        map.forEach(new Bean2(), new DirectMapVisitor<Integer, Bean2>() {
+            @Override
+            public void visit(Integer key, Bean2 value) {
+                assertEquals(key.intValue(), value.getId());
+                assertEquals(key * 10L, value.getValue());
+                keys1.add(key);
+            }
+        });
+        assertEquals(1000, keys1.size());
+
+        // address of each value, found through the ids of the values
+        final Map<Integer, Long> addresses = new HashMap<Integer, Long>();
+        Bean2 b2 = new Bean2();
+        for (DirectObjectPointer pointer : map.getPointers()) {
+            pointer.populateBean(b2);
+            addresses.put(b2.getId(), pointer.getAddress());
+        }
+
+        final Set<Integer> keys2 = new HashSet<Integer>();
+        final long[] previousAddress = {0};
+        map.forEachInAddressOrder(new Bean2(), new DirectMapVisitor<Integer, Bean2>() {
+            @Override
+            public void visit(Integer key, Bean2 value) {
+                assertEquals(key.intValue(), value.getId());
+                keys2.add(key);
+
+                long address = addresses.get(key);
+                assertTrue(address > previousAddress[0]);
+                previousAddress[0] = address;
+            }
+        });
+        assertEquals(keys1, keys2);
+
+        map.clear();
+    }
+
+    @Test
+    public void test3() {
+        DirectMap<Integer, Bean2> map = createMap2(100000);
+
+        // parallel sum over all values
+        long sum = StreamSupport.stream(map.spliterator(new Supplier<Bean2>() {
+            @Override
+            public Bean2 get() {
+                return new Bean2();
+            }
+        }), true).mapToLong(b -> b.getValue()).sum();
+
+        assertEquals(10L * (100000L * 99999L / 2), sum);
+
+        map.clear();
+    }
+
+    @Test
+    public void test4() {
+        DirectMap<Integer, Bean2> map = new DirectMap<Integer, Bean2>();
+
+        // batch insert
+        Integer[] keys = new Integer[500];
+        Bean2[] values = new Bean2[500];
+        for (int i = 0; i < 500; i++) {
+            keys[i] = i * 2;
+            values[i] = new Bean2();
+            values[i].setId(i * 2);
+            values[i].setValue(i);
+        }
+        map.putAll(keys, values);
+        assertEquals(500, map.size());
+
+        // batch get with some missing keys
+        Integer[] keys2 = new Integer[1000];
+        for (int i = 0; i < 1000; i++) {
+            keys2[i] = 999 - i;
+        }
+
+        final Set<Integer> found = new HashSet<Integer>();
+        int count = map.getAll(keys2, new Bean2(), new DirectMapVisitor<Integer, Bean2>() {
+            @Override
+            public void visit(Integer key, Bean2 value) {
+                assertEquals(key.intValue(), value.getId());
+                assertEquals(key / 2, value.getValue());
+                found.add(key);
+            }
+        });
+
+        assertEquals(500, count);
+        assertEquals(500, found.size());
+
+        map.clear();
+    }
+
+    @Test
+    public void test5() {
+        DirectMap<Integer, Bean2> map = createMap2(1000);
+
+        // index on id % 10 without unserializing beans
+        DirectIndex index = map.createIndex(new DirectIndexKeyExtractor() {
+            @Override
+            public long extract(DirectObjectContext doContext) {
+                doContext.getLong();
+                return doContext.getInt() % 10;
+            }
+        });
+        assertEquals(1000, index.size());
+        assertEquals(100, index.count(3));
+
+        // update: move id 3 to group 4, remove id 13
+        Bean2 b = new Bean2();
+        b.setId(4);
+        map.put(3, b);
+        map.remove(13);
+        assertEquals(98, index.count(3));
+        assertEquals(101, index.count(4));
+
+        final Bean2 b2 = new Bean2();
+        final Set<Integer> ids = new HashSet<Integer>();
+        int count = index.lookup(3, new DirectIndexVisitor() {
+            @Override
+            public void visit(DirectObjectPointer pointer) {
+                pointer.populateBean(b2);
+                assertEquals(3, b2.getId() % 10);
+                ids.add(b2.getId());
+            }
+        });
+        assertEquals(98, count);
+        assertEquals(98, ids.size());
+        assertTrue(!ids.contains(3) && !ids.contains(13));
+
+        // a failed update removes the entry, which may be partly written, from the map and the index
+        try {
+            map.put(23, new Bean2() {
+                @Override
+                public void serialize(DirectObjectContext doContext) {
+                    throw new IllegalStateException("serialize failed");
+                }
+            });
+            fail();
+        } catch (IllegalStateException e) {
+            // ok
+        }
+        assertEquals(1000 - 2, index.size());
+        assertEquals(1000 - 2, map.size());
+        assertEquals(97, index.count(3));
+        assertFalse(map.get(23, b2));
+
+        map.clear();
+        assertEquals(0, index.size());
+        assertEquals(0, index.lookup(4, null));
+
+        assertTrue(map.dropIndex(index));
+    }
+
+    @Test
+    public void test6() {
+        DirectRegion region1 = new DirectRegion.Builder().withChunkSize(1 << 20).withAlignment(4096).build();
+        DirectMap<Integer, Bean2> map = new DirectMap<Integer, Bean2>(region1);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 100000; i++) {
+            b.setId(i);
+            b.setValue(i * 10L);
+            map.put(i, b);
+        }
+
+        DirectIndex index = map.createIndex(new DirectIndexKeyExtractor() {
+            @Override
+            public long extract(DirectObjectContext doContext) {
+                doContext.getLong();
+                return doContext.getInt() % 10;
+            }
+        });
+
+        // fragment the region: keep 1 value out of 10
+        for (int i = 0; i < 100000; i++) {
+            if (i % 10 != 0) map.remove(i);
+        }
+
+        DirectRegion region2 = new DirectRegion.Builder().withChunkSize(1 << 16).withAlignment(4096).build();
+        DirectMapCompactor<Integer, Bean2> compactor = map.compactor(region2);
+
+        // modify the map between steps
+        int steps = 0;
+        int next = 100000;
+        while (!compactor.step(10000)) {
+            b.setId(next);
+            b.setValue(next * 10L);
+            map.put(next, b);
+            map.remove(steps * 10);
+            next += 10;
+            steps++;
+        }
+        assertTrue(compactor.isDone());
+        assertTrue(steps > 0);
+
+        assertEquals(0, region1.getAllocatedSize());
+        assertTrue(region2.getReservedSize() < region1.getReservedSize() / 4);
+        region1.close();
+
+        assertEquals(10000, map.size());
+        assertEquals(10000, index.size());
+        assertEquals(10000, index.count(0));
+        for (int i = steps * 10; i < next; i += 10) {
+            assertTrue(map.get(i, b));
+            assertEquals(i, b.getId());
+            assertEquals(i * 10L, b.getValue());
+        }
+
+        map.clear();
+        assertEquals(0, region2.getAllocatedSize());
+        region2.close();
+    }
+
+    // bench get/put of existing keys and check they don't allocate heap memory
+    @Test
+    public void benchAllocation() {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(threadBean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+
+        int count = 1000;
+        DirectMap<Integer, Bean2> map = createMap2(count);
+
+        // box keys before measuring
+        Integer[] keys = new Integer[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = i;
+        }
+
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram timeHisto = metrics.histogram("get+put time");
+        Histogram bytesHisto = metrics.histogram("get+put allocation");
+
+        Bean2 b = new Bean2();
+        long threadId = Thread.currentThread().getId();
+        for (int loop = -BENCH_WARMUP; loop < BENCH_LOOPS; loop++) {
+            long bytes0 = sunThreadBean.getThreadAllocatedBytes(threadId);
+            long time0 = System.nanoTime();
+
+            for (Integer key : keys) {
+                map.get(key, b);
+                b.setValue(b.getValue() + 1);
+                map.put(key, b);
+            }
+
+            long dtime = System.nanoTime() - time0;
+            long dbytes = sunThreadBean.getThreadAllocatedBytes(threadId) - bytes0;
+
+            if (loop >= 0) {
+                timeHisto.update(dtime / count);
+                bytesHisto.update(dbytes / count);
+
+                // the smallest object is 16 bytes: an allocation in get or put makes this at least 16, while the few
+                // bytes allocated by the measurement itself round down to 0
+                assertEquals("allocated " + dbytes + " bytes for " + count + " get+put", 0, dbytes / count);
+            }
+        }
+
+        MetricsUtils.displayHistoResults("get+put", timeHisto, "ns/op");
+        MetricsUtils.displayHistoResults("get+put allocation", bytesHisto, "bytes/op");
+
+        map.clear();
+    }
+
+    private DirectMap<Integer, Bean2> createMap2(int count) {
+        DirectMap<Integer, Bean2> map = new DirectMap<Integer, Bean2>();
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < count; i++) {
+            b.setId(i);
+            b.setValue(i * 10L);
+
+            map.put(i, b);
+        }
+
+        return map;
+    }
 }
@@ -0,0 +1,209 @@
+package com.granveaud.directobjects.map;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.DirectObjectPointer;
+import com.granveaud.directobjects.DirectRegion;
+import com.granveaud.directobjects.MetricsUtils;
+import com.granveaud.directobjects.beans.Bean2;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectPartitionedMapTest {
+    final static private int BENCH_LOOPS = 5;
+
+    private static final Supplier<Bean2> BEAN_SUPPLIER = new Supplier<Bean2>() {
+        @Override
+        public Bean2 get() {
+            return new Bean2();
+        }
+    };
+
+    @Test
+    public void test1() {
+        DirectPartitionedMap<Integer, Bean2> map = new DirectPartitionedMap<Integer, Bean2>(6, new DirectRegion.Builder().withChunkSize(1 << 20), ForkJoinPool.commonPool());
+        assertEquals(8, map.getPartitionCount());
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 10000; i++) {
+            b.setId(i);
+            b.setValue(i * 10L);
+            map.put(i, b);
+        }
+        assertEquals(10000, map.size());
+
+        // keys are spread over all partitions
+        int[] counts = new int[map.getPartitionCount()];
+        for (int i = 0; i < 10000; i++) {
+            counts[map.getPartitionIndex(i)]++;
+        }
+        for (int count : counts) {
+            assertTrue(count > 10000 / 16);
+        }
+
+        for (int i = 0; i < 10000; i += 2) {
+            assertTrue(map.remove(i));
+        }
+        assertFalse(map.remove(0));
+
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(i % 2 != 0, map.get(i, b));
+            if (i % 2 != 0) {
+                assertEquals(i, b.getId());
+                assertEquals(i * 10L, b.getValue());
+            }
+        }
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertEquals(0, map.getReservedSize());
+
+        // the map can be filled again
+        map.put(1, b);
+        assertTrue(map.get(1, b));
+
+        // null is a valid key
+        assertFalse(map.get(null, b));
+        b.setId(-1);
+        map.put(null, b);
+        assertTrue(map.get(null, b));
+        assertEquals(-1, b.getId());
+        assertTrue(map.remove(null));
+        map.clear();
+    }
+
+    @Test
+    public void test2() throws InterruptedException {
+        final DirectPartitionedMap<Integer, Bean2> map = new DirectPartitionedMap<Integer, Bean2>();
+
+        // concurrent puts
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int first = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    Bean2 b = new Bean2();
+                    for (int i = first; i < 100000; i += 4) {
+                        b.setId(i);
+                        b.setValue(i);
+                        map.put(i, b);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(100000, map.size());
+
+        // parallel iteration
+        final AtomicInteger count = new AtomicInteger();
+        final AtomicLong sum = new AtomicLong();
+        map.forEach(BEAN_SUPPLIER, new DirectMapVisitor<Integer, Bean2>() {
+            @Override
+            public void visit(Integer key, Bean2 value) {
+                assertEquals(key.intValue(), value.getId());
+                count.incrementAndGet();
+                sum.addAndGet(value.getValue());
+            }
+        });
+        assertEquals(100000, count.get());
+        assertEquals(99999L * 100000 / 2, sum.get());
+
+        map.clear();
+    }
+
+    @Test
+    public void test3() {
+        DirectPartitionedMap<Integer, Bean2> map = new DirectPartitionedMap<Integer, Bean2>(4, new DirectRegion.Builder().withChunkSize(1 << 20), ForkJoinPool.commonPool());
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 1000; i++) {
+            b.setId(i);
+            map.put(i, b);
+        }
+
+        // group by id % 10, index built in each partition from existing entries
+        DirectPartitionedMap<Integer, Bean2>.Index index = map.createIndex(new DirectIndexKeyExtractor() {
+            @Override
+            public long extract(DirectObjectContext doContext) {
+                doContext.getLong();
+                return doContext.getInt() % 10;
+            }
+        });
+        assertEquals(1000, index.size());
+        assertEquals(100, index.count(3));
+
+        // index is maintained by put and remove
+        b.setId(4);
+        map.put(3, b);
+        assertTrue(map.remove(13));
+        assertEquals(999, index.size());
+        assertEquals(98, index.count(3));
+        assertEquals(101, index.count(4));
+
+        final Bean2 b2 = new Bean2();
+        final Set<Integer> ids = new HashSet<Integer>();
+        int count = index.lookup(3, new DirectIndexVisitor() {
+            @Override
+            public void visit(DirectObjectPointer pointer) {
+                pointer.populateBean(b2);
+                assertEquals(3, b2.getId() % 10);
+                ids.add(b2.getId());
+            }
+        });
+        assertEquals(98, count);
+        assertEquals(98, ids.size());
+
+        map.clear();
+        assertEquals(0, index.size());
+
+        map.dropIndex(index);
+    }
+
+    // bench clear of a DirectMap and of a partitioned map
+    @Test
+    public void benchClear() {
+        int count = 1000000;
+        Bean2 b = new Bean2();
+
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram histo1 = metrics.histogram("DirectMap clear");
+        Histogram histo2 = metrics.histogram("DirectPartitionedMap clear");
+
+        for (int loop = 0; loop < BENCH_LOOPS; loop++) {
+            DirectMap<Integer, Bean2> map1 = new DirectMap<Integer, Bean2>();
+            DirectPartitionedMap<Integer, Bean2> map2 = new DirectPartitionedMap<Integer, Bean2>();
+            for (int i = 0; i < count; i++) {
+                b.setId(i);
+                map1.put(i, b);
+                map2.put(i, b);
+            }
+
+            long time0 = System.nanoTime();
+            map1.clear();
+            long time1 = System.nanoTime();
+            map2.clear();
+            long time2 = System.nanoTime();
+
+            histo1.update((time1 - time0) / 1000000);
+            histo2.update((time2 - time1) / 1000000);
+        }
+
+        MetricsUtils.displayHistoResults("DirectMap clear of " + count + " entries", histo1, "ms");
+        MetricsUtils.displayHistoResults("DirectPartitionedMap clear of " + count + " entries", histo2, "ms");
+    }
+}
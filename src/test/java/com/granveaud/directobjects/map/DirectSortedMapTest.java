@@ -0,0 +1,142 @@
+package com.granveaud.directobjects.map;
+
+import com.granveaud.directobjects.beans.Bean2;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectSortedMapTest {
+    @Test
+    public void test1() {
+        DirectSortedMap<Bean2> map = new DirectSortedMap<Bean2>();
+        TreeMap<Long, Long> refMap = new TreeMap<Long, Long>();
+
+        // insert random keys, replace some and remove some
+        Random random = new Random(0);
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(50000);
+            b.setId(i);
+            b.setValue(key * 2);
+
+            map.put(key, b);
+            refMap.put(key, key * 2);
+
+            if (i % 3 == 0) {
+                long removedKey = random.nextInt(50000);
+                assertEquals(refMap.remove(removedKey) != null, map.remove(removedKey));
+            }
+        }
+        assertEquals(refMap.size(), map.size());
+
+        // get
+        for (long key = 0; key < 50000; key++) {
+            Long expected = refMap.get(key);
+            assertEquals(expected != null, map.get(key, b));
+            if (expected != null) assertEquals(expected.longValue(), b.getValue());
+        }
+
+        // floor/ceiling
+        DirectSortedMap<Bean2>.Cursor cursor = map.cursor();
+        for (long key = -10; key < 50010; key += 7) {
+            Long floor = refMap.floorKey(key);
+            assertEquals(floor != null, cursor.seekFloor(key));
+            if (floor != null) assertEquals(floor.longValue(), cursor.getKey());
+
+            Long ceiling = refMap.ceilingKey(key);
+            assertEquals(ceiling != null, cursor.seekCeiling(key));
+            if (ceiling != null) {
+                assertEquals(ceiling.longValue(), cursor.getKey());
+                cursor.populateBean(b);
+                assertEquals(ceiling * 2, b.getValue());
+            }
+        }
+
+        // full iteration with cursor
+        List<Long> keys = new ArrayList<Long>();
+        for (boolean valid = cursor.seekFirst(); valid; valid = cursor.next()) {
+            keys.add(cursor.getKey());
+        }
+        assertEquals(new ArrayList<Long>(refMap.keySet()), keys);
+
+        // range
+        final List<Long> rangeKeys = new ArrayList<Long>();
+        map.forEachInRange(1000, 2000, b, new DirectSortedMapVisitor<Bean2>() {
+            @Override
+            public void visit(long key, Bean2 value) {
+                assertEquals(key * 2, value.getValue());
+                rangeKeys.add(key);
+            }
+        });
+        assertEquals(new ArrayList<Long>(refMap.subMap(1000L, 2000L).keySet()), rangeKeys);
+
+        // empty some leaves and search across them
+        for (long key = 10000; key < 30000; key++) {
+            assertEquals(refMap.remove(key) != null, map.remove(key));
+        }
+        assertTrue(cursor.seekFloor(29999));
+        assertEquals(refMap.floorKey(29999L).longValue(), cursor.getKey());
+        assertTrue(cursor.seekCeiling(10000));
+        assertEquals(refMap.ceilingKey(10000L).longValue(), cursor.getKey());
+        assertTrue(cursor.previous());
+        assertEquals(refMap.floorKey(9999L).longValue(), cursor.getKey());
+
+        map.clear();
+        assertEquals(0, map.size());
+        assertFalse(cursor.seekFirst());
+    }
+
+    @Test
+    public void test2() {
+        DirectSortedMap<Bean2> map = new DirectSortedMap<Bean2>();
+
+        // bulk load sorted timestamps
+        DirectSortedMap<Bean2>.BulkLoader loader = map.bulkLoader();
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 100000; i++) {
+            b.setId(i);
+            b.setValue(i);
+            loader.add(i * 10L, b);
+        }
+        loader.finish();
+        assertEquals(100000, map.size());
+
+        // check content then insert between loaded keys
+        for (int i = 0; i < 100000; i++) {
+            assertTrue(map.get(i * 10L, b));
+            assertEquals(i, b.getId());
+        }
+
+        for (int i = 0; i < 100000; i += 3) {
+            b.setId(-i);
+            map.put(i * 10L + 5, b);
+        }
+
+        DirectSortedMap<Bean2>.Cursor cursor = map.cursor();
+        long previous = Long.MIN_VALUE;
+        int count = 0;
+        for (boolean valid = cursor.seekFirst(); valid; valid = cursor.next()) {
+            assertTrue(cursor.getKey() > previous);
+            previous = cursor.getKey();
+            count++;
+        }
+        assertEquals(map.size(), count);
+
+        assertTrue(cursor.seekFloor(500004));
+        assertEquals(500000, cursor.getKey());
+        assertTrue(cursor.previous());
+        assertEquals(499990, cursor.getKey());
+        assertTrue(cursor.seekFloor(2000000));
+        assertEquals(999995, cursor.getKey());
+        assertFalse(cursor.next());
+
+        map.clear();
+    }
+}
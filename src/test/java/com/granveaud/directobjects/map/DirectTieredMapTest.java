@@ -0,0 +1,209 @@
+package com.granveaud.directobjects.map;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.MetricsUtils;
+import com.granveaud.directobjects.beans.Bean2;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectTieredMapTest {
+    final static private int BENCH_WARMUP = 3;
+    final static private int BENCH_LOOPS = 10;
+
+    // serialized size of Bean2 with its size
+    private static final int RECORD_SIZE = 8 + 4 + 4;
+
+    @Test
+    public void test1() throws IOException {
+        File file = File.createTempFile("directtieredmap", null);
+        DirectTieredMap<Integer, Bean2> map = new DirectTieredMap<Integer, Bean2>(100 * RECORD_SIZE, 2, file);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 10000; i++) {
+            b.setId(i);
+            b.setValue(i * 10L);
+            map.put(i, b);
+            assertTrue(map.getMemorySize() <= 100 * RECORD_SIZE);
+        }
+        assertEquals(10000, map.size());
+        assertEquals(100, map.getHotCount());
+        assertEquals(9900L * RECORD_SIZE, map.getFileSize());
+
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(map.get(i, b));
+            assertEquals(i, b.getId());
+            assertEquals(i * 10L, b.getValue());
+        }
+        assertFalse(map.get(10000, b));
+
+        // update cold values: their records become garbage
+        int cold = 0;
+        for (int i = 0; i < 100; i++) {
+            if (!map.isHot(i)) cold++;
+            b.setId(i);
+            b.setValue(-i);
+            map.put(i, b);
+        }
+        assertEquals((long) cold * RECORD_SIZE, map.getFileGarbageSize());
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(map.get(i, b));
+            assertEquals(-i, b.getValue());
+        }
+
+        for (int i = 0; i < 10000; i += 2) {
+            assertTrue(map.remove(i));
+        }
+        assertEquals(5000, map.size());
+        assertTrue(map.getMemorySize() <= 100 * RECORD_SIZE);
+
+        map.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test2() throws IOException {
+        File file = File.createTempFile("directtieredmap", null);
+        DirectTieredMap<Integer, Bean2> map = new DirectTieredMap<Integer, Bean2>(200 * RECORD_SIZE, 2, file);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 10000; i++) {
+            b.setId(i);
+            map.put(i, b);
+        }
+
+        // hot keys are read often, the other keys once
+        for (int i = 0; i < 10000; i++) {
+            map.get(i % 100, b);
+            map.get(i, b);
+        }
+
+        int hot = 0;
+        for (int i = 0; i < 100; i++) {
+            if (map.isHot(i)) hot++;
+        }
+        assertTrue("hot keys in memory: " + hot, hot >= 90);
+
+        // values which are promoted and demoted again are not written twice
+        long fileSize = map.getFileSize();
+        for (int i = 0; i < 10000; i++) {
+            map.get(i % 100, b);
+        }
+        assertEquals(fileSize, map.getFileSize());
+
+        map.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test3() throws IOException {
+        File file = File.createTempFile("directtieredmap", null);
+        DirectTieredMap<Integer, Bean2> map = new DirectTieredMap<Integer, Bean2>(100 * RECORD_SIZE, 3, file);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 1000; i++) {
+            b.setId(i);
+            map.put(i, b);
+        }
+
+        // a cold key read a second time long after the first time is not promoted
+        assertTrue(map.get(500, b));
+        for (int i = 0; i < 10000; i++) {
+            map.get(i % 50, b);
+        }
+        assertTrue(map.get(500, b));
+        assertFalse(map.isHot(500));
+
+        // a cold key read often is promoted
+        for (int i = 0; i < 3; i++) {
+            assertTrue(map.get(600, b));
+        }
+        assertTrue(map.isHot(600));
+
+        map.close();
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void test4() throws IOException {
+        File file = File.createTempFile("directtieredmap", null);
+        DirectTieredMap<Integer, Bean2> map = new DirectTieredMap<Integer, Bean2>(10 * RECORD_SIZE, 2, file);
+
+        // updates of cold keys: dead records are reclaimed by compacting the file
+        Bean2 b = new Bean2();
+        for (int loop = 0; loop < 50; loop++) {
+            for (int i = 0; i < 1000; i++) {
+                b.setId(i);
+                b.setValue(loop);
+                map.put(i, b);
+            }
+            assertTrue(map.getFileSize() <= 2 * 1000 * RECORD_SIZE + RECORD_SIZE);
+            assertTrue(map.getFileGarbageSize() <= map.getFileSize() / 2 + RECORD_SIZE);
+        }
+        assertEquals(file.length(), map.getFileSize());
+
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(map.get(i, b));
+            assertEquals(i, b.getId());
+            assertEquals(49, b.getValue());
+        }
+
+        map.compactFile();
+        assertEquals(0, map.getFileGarbageSize());
+        assertEquals((1000 - map.getHotCount()) * RECORD_SIZE, map.getFileSize());
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(map.get(i, b));
+            assertEquals(i, b.getId());
+        }
+
+        map.close();
+        assertTrue(file.delete());
+    }
+
+    // bench get of hot and cold values
+    @Test
+    public void bench() throws IOException {
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram histo1 = metrics.histogram("hot get");
+        Histogram histo2 = metrics.histogram("cold get");
+
+        File file = File.createTempFile("directtieredmap", null);
+        DirectTieredMap<Integer, Bean2> map = new DirectTieredMap<Integer, Bean2>(1000 * RECORD_SIZE, 15, file);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 100000; i++) {
+            b.setId(i);
+            map.put(i, b);
+        }
+
+        for (int loop = -BENCH_WARMUP; loop < BENCH_LOOPS; loop++) {
+            long time0 = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                map.get(99999 - (i % 100), b);
+            }
+            long time1 = System.nanoTime();
+            for (int i = 0; i < 100000; i++) {
+                map.get(i, b);
+            }
+            long time2 = System.nanoTime();
+
+            if (loop >= 0) {
+                histo1.update((time1 - time0) / 100000);
+                histo2.update((time2 - time1) / 100000);
+            }
+        }
+
+        MetricsUtils.displayHistoResults("hot get", histo1, "ns/op");
+        MetricsUtils.displayHistoResults("cold get", histo2, "ns/op");
+
+        map.close();
+        assertTrue(file.delete());
+    }
+}
@@ -0,0 +1,238 @@
+package com.granveaud.directobjects.map;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.granveaud.directobjects.MetricsUtils;
+import com.granveaud.directobjects.beans.Bean2;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DirectVersionedMapTest {
+    final static private int BENCH_WARMUP = 3;
+    final static private int BENCH_LOOPS = 10;
+
+    @Test
+    public void test1() {
+        DirectVersionedMap<Integer, Bean2> map = new DirectVersionedMap<Integer, Bean2>();
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 1000; i++) {
+            b.setId(i);
+            b.setValue(1);
+            map.put(i, b);
+        }
+
+        DirectVersionedMap<Integer, Bean2>.Snapshot s1 = map.openSnapshot();
+
+        // update all values and remove half of them
+        for (int i = 0; i < 1000; i++) {
+            b.setId(i);
+            b.setValue(2);
+            map.put(i, b);
+            if (i % 2 == 0) map.remove(i);
+        }
+        assertEquals(500, map.size());
+        assertEquals(1500, map.getRetiredCount());
+
+        DirectVersionedMap<Integer, Bean2>.Snapshot s2 = map.openSnapshot();
+
+        // s1 sees the old values, s2 the new ones
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(s1.get(i, b));
+            assertEquals(1, b.getValue());
+
+            assertEquals(i % 2 != 0, s2.get(i, b));
+            if (i % 2 != 0) assertEquals(2, b.getValue());
+
+            assertEquals(i % 2 != 0, map.get(i, b));
+        }
+
+        final AtomicInteger count = new AtomicInteger();
+        s1.forEach(new Bean2(), new DirectMapVisitor<Integer, Bean2>() {
+            @Override
+            public void visit(Integer key, Bean2 value) {
+                assertEquals(key.intValue(), value.getId());
+                assertEquals(1, value.getValue());
+                count.incrementAndGet();
+            }
+        });
+        assertEquals(1000, count.get());
+
+        // old versions are freed when s1 is closed
+        s1.close();
+        assertEquals(0, map.getRetiredCount());
+        assertFalse(s2.get(0, b));
+
+        s2.close();
+        map.clear();
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    public void test2() throws InterruptedException {
+        final DirectVersionedMap<Integer, Bean2> map = new DirectVersionedMap<Integer, Bean2>();
+        final int count = 1000;
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < count; i++) {
+            b.setId(i);
+            map.put(i, b);
+        }
+
+        // the writer updates all keys in order, round after round
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Bean2 b = new Bean2();
+                for (int round = 1; !stop.get(); round++) {
+                    for (int i = 0; i < count; i++) {
+                        b.setId(i);
+                        b.setValue(round);
+                        map.put(i, b);
+                    }
+                }
+            }
+        };
+        writer.start();
+
+        // a snapshot sees a prefix of the keys at round r and the other keys at round r - 1
+        int snapshots = 0;
+        long end = System.currentTimeMillis() + 500;
+        while (System.currentTimeMillis() < end) {
+            DirectVersionedMap<Integer, Bean2>.Snapshot snapshot = map.openSnapshot();
+
+            long last = -1;
+            boolean switched = false;
+            for (int i = 0; i < count; i++) {
+                assertTrue(snapshot.get(i, b));
+                assertEquals(i, b.getId());
+
+                if (last >= 0 && b.getValue() != last) {
+                    assertFalse(switched);
+                    assertEquals(last - 1, b.getValue());
+                    switched = true;
+                }
+                last = b.getValue();
+            }
+
+            snapshot.close();
+            snapshots++;
+        }
+
+        stop.set(true);
+        writer.join();
+        assertTrue(snapshots > 0);
+
+        assertEquals(0, map.getRetiredCount());
+        map.clear();
+    }
+
+    // bench a full scan of a snapshot while a writer updates the map
+    @Test
+    public void test3() throws InterruptedException {
+        final DirectVersionedMap<Integer, Bean2> map = new DirectVersionedMap<Integer, Bean2>();
+        final int count = 100;
+
+        // the writer fills and clears the map while snapshots are opened: clear fails or no snapshot sees it
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicInteger clears = new AtomicInteger();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Bean2 b = new Bean2();
+                while (!stop.get()) {
+                    for (int i = 0; i < count; i++) {
+                        b.setId(i);
+                        map.put(i, b);
+                    }
+                    try {
+                        map.clear();
+                        clears.incrementAndGet();
+                    } catch (IllegalStateException e) {
+                        // open snapshot
+                    }
+                }
+            }
+        };
+        writer.start();
+
+        Bean2 b = new Bean2();
+        long end = System.currentTimeMillis() + 300;
+        while (System.currentTimeMillis() < end) {
+            DirectVersionedMap<Integer, Bean2>.Snapshot snapshot = map.openSnapshot();
+            for (int i = 0; i < count; i++) {
+                if (snapshot.get(i, b)) assertEquals(i, b.getId());
+            }
+            snapshot.close();
+        }
+
+        stop.set(true);
+        writer.join();
+        assertTrue(clears.get() > 0);
+
+        map.clear();
+    }
+
+    @Test
+    public void bench() throws InterruptedException {
+        MetricRegistry metrics = new MetricRegistry();
+        Histogram histo = metrics.histogram("snapshot scan");
+
+        final DirectVersionedMap<Integer, Bean2> map = new DirectVersionedMap<Integer, Bean2>();
+        final int count = 100000;
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < count; i++) {
+            b.setId(i);
+            map.put(i, b);
+        }
+
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                Bean2 b = new Bean2();
+                for (int i = 0; !stop.get(); i++) {
+                    b.setId(i % count);
+                    b.setValue(i);
+                    map.put(i % count, b);
+                }
+            }
+        };
+        writer.start();
+
+        final AtomicInteger visited = new AtomicInteger();
+        DirectMapVisitor<Integer, Bean2> visitor = new DirectMapVisitor<Integer, Bean2>() {
+            @Override
+            public void visit(Integer key, Bean2 value) {
+                visited.incrementAndGet();
+            }
+        };
+
+        for (int loop = -BENCH_WARMUP; loop < BENCH_LOOPS; loop++) {
+            visited.set(0);
+
+            DirectVersionedMap<Integer, Bean2>.Snapshot snapshot = map.openSnapshot();
+            long time0 = System.nanoTime();
+            snapshot.forEach(b, visitor);
+            long dtime = System.nanoTime() - time0;
+            snapshot.close();
+
+            assertEquals(count, visited.get());
+            if (loop >= 0) histo.update(dtime / count);
+        }
+
+        stop.set(true);
+        writer.join();
+
+        MetricsUtils.displayHistoResults("snapshot scan", histo, "ns/op");
+        map.clear();
+    }
+}
@@ -0,0 +1,191 @@
+package com.granveaud.directobjects.queue;
+
+import com.granveaud.directobjects.DirectObjectContext;
+import com.granveaud.directobjects.beans.Bean2;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectRingBufferTest {
+    @Test
+    public void test1() {
+        DirectRingBuffer<Bean2> ring = new DirectRingBuffer<Bean2>(8, 12, DirectRingBuffer.ProducerType.SINGLE);
+
+        // fill the ring
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 8; i++) {
+            b.setId(i);
+            assertTrue(ring.offer(b));
+        }
+        assertFalse(ring.offer(b));
+        assertEquals(8, ring.size());
+
+        // consume in order
+        for (int i = 0; i < 8; i++) {
+            assertTrue(ring.poll(b));
+            assertEquals(i, b.getId());
+        }
+        assertFalse(ring.poll(b));
+
+        ring.free();
+    }
+
+    @Test
+    public void test2() throws InterruptedException {
+        final int producerCount = 4;
+        final int countPerProducer = 250000;
+
+        final DirectRingBuffer<Bean2> ring = new DirectRingBuffer<Bean2>(1024, 12, DirectRingBuffer.ProducerType.MULTI);
+
+        // each producer sends its id and an increasing value
+        Thread[] producers = new Thread[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            final int producerId = p;
+            producers[p] = new Thread() {
+                @Override
+                public void run() {
+                    Bean2 b = new Bean2();
+                    b.setId(producerId);
+                    for (int i = 0; i < countPerProducer; i++) {
+                        b.setValue(i);
+                        ring.put(b);
+                    }
+                }
+            };
+            producers[p].start();
+        }
+
+        // check that values of each producer arrive in order
+        final long[] lastValues = new long[producerCount];
+        for (int p = 0; p < producerCount; p++) {
+            lastValues[p] = -1;
+        }
+
+        DirectRingBufferConsumer<Bean2> consumer = new DirectRingBufferConsumer<Bean2>() {
+            @Override
+            public void consume(Bean2 value) {
+                assertEquals(lastValues[value.getId()] + 1, value.getValue());
+                lastValues[value.getId()] = value.getValue();
+            }
+        };
+
+        Bean2 b = new Bean2();
+        int total = 0;
+        while (total < producerCount * countPerProducer) {
+            int count = ring.poll(b, consumer, 256);
+            if (count == 0) Thread.yield();
+            total += count;
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        for (int p = 0; p < producerCount; p++) {
+            assertEquals(countPerProducer - 1, lastValues[p]);
+        }
+        assertEquals(0, ring.size());
+
+        ring.free();
+    }
+
+    @Test
+    public void test3() throws IOException, InterruptedException {
+        // use shared memory when available
+        File dir = new File("/dev/shm");
+        File file = File.createTempFile("directringbuffertest", null, dir.isDirectory() ? dir : null);
+
+        final int count = 100000;
+
+        // producer side creates the file, consumer side opens the same file
+        final DirectSharedRingBuffer<Bean2> producerRing = DirectSharedRingBuffer.create(file, 256, 12, DirectRingBuffer.ProducerType.SINGLE);
+        DirectSharedRingBuffer<Bean2> consumerRing = DirectSharedRingBuffer.open(file, DirectRingBuffer.ProducerType.SINGLE);
+        assertEquals(256, consumerRing.getCapacity());
+
+        // the producer type is taken from the file and must match
+        DirectSharedRingBuffer<Bean2> otherRing = DirectSharedRingBuffer.open(file);
+        otherRing.close();
+        try {
+            DirectSharedRingBuffer.open(file, DirectRingBuffer.ProducerType.MULTI);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                Bean2 b = new Bean2();
+                for (int i = 0; i < count; i++) {
+                    b.setId(i);
+                    producerRing.put(b);
+                }
+            }
+        };
+        producer.start();
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < count; i++) {
+            while (!consumerRing.poll(b)) {
+                Thread.yield();
+            }
+            assertEquals(i, b.getId());
+        }
+        producer.join();
+
+        producerRing.close();
+        consumerRing.close();
+
+        // a corrupt producer type is rejected
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.seek(20);
+        raf.writeInt(1000);
+        raf.close();
+        try {
+            DirectSharedRingBuffer.open(file);
+            fail();
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+
+        file.delete();
+    }
+
+    @Test
+    public void test4() {
+        DirectRingBuffer<Bean2> ring = new DirectRingBuffer<Bean2>(4, 12, DirectRingBuffer.ProducerType.SINGLE);
+
+        // a failed serialization publishes an empty slot, the following objects are still consumed
+        Bean2 failing = new Bean2() {
+            @Override
+            public void serialize(DirectObjectContext doContext) {
+                throw new IllegalStateException("serialize failed");
+            }
+        };
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 10; i++) {
+            try {
+                ring.put(failing);
+                fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+
+            b.setId(i);
+            ring.put(b);
+            assertTrue(ring.poll(b));
+            assertEquals(i, b.getId());
+        }
+        assertFalse(ring.poll(b));
+        assertEquals(0, ring.size());
+
+        ring.free();
+    }
+}
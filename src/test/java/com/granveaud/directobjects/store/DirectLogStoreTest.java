@@ -0,0 +1,304 @@
+package com.granveaud.directobjects.store;
+
+import com.granveaud.directobjects.DirectBloomFilter;
+import com.granveaud.directobjects.beans.Bean2;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class DirectLogStoreTest {
+    @Test
+    public void test1() throws IOException, InterruptedException {
+        File dir = createTempDir();
+
+        // small segments to test rolling and compaction
+        DirectLogStore<Bean2> store = new DirectLogStore<Bean2>(dir, 64 * 1024);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 10000; i++) {
+            b.setId(i);
+            b.setValue(i);
+            store.put(i, b);
+        }
+
+        // update even keys and remove keys multiple of 3
+        for (int i = 0; i < 10000; i += 2) {
+            b.setId(i);
+            b.setValue(-i);
+            store.put(i, b);
+        }
+        for (int i = 0; i < 10000; i += 3) {
+            assertTrue(store.remove(i));
+        }
+        assertFalse(store.remove(3));
+
+        int segmentCount = countSegments(dir);
+        assertTrue(store.compact(0.5) > 0);
+        assertTrue(countSegments(dir) < segmentCount);
+        checkContent(store);
+
+        store.close();
+
+        // reopen and check content is restored
+        DirectLogStore<Bean2> store2 = new DirectLogStore<Bean2>(dir, 64 * 1024);
+        checkContent(store2);
+        store2.compact(1.0);
+        checkContent(store2);
+        store2.close();
+
+        DirectLogStore<Bean2> store3 = new DirectLogStore<Bean2>(dir, 64 * 1024);
+        checkContent(store3);
+        store3.close();
+
+        deleteDir(dir);
+    }
+
+    @Test
+    public void test2() throws IOException, InterruptedException {
+        File dir = createTempDir();
+        DirectLogStore<Bean2> store = new DirectLogStore<Bean2>(dir, 64 * 1024);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 5000; i++) {
+            b.setId(i);
+            b.setValue(i);
+            store.put(i, b);
+        }
+
+        // filter built from the existing records, then maintained by put and rebuilt by compact
+        store.createBloomFilter(20000, 0.01);
+        for (int i = 5000; i < 10000; i++) {
+            b.setId(i);
+            b.setValue(i);
+            store.put(i, b);
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            b.setId(i);
+            b.setValue(-i);
+            store.put(i, b);
+        }
+        for (int i = 0; i < 10000; i += 3) {
+            assertTrue(store.remove(i));
+        }
+        checkContent(store);
+
+        assertTrue(store.compact(0.5) > 0);
+        checkContent(store);
+        assertFalse(store.get(20000, b));
+
+        store.close();
+        deleteDir(dir);
+    }
+
+    @Test
+    public void test3() throws Exception {
+        File dir = createTempDir();
+        final DirectLogStore<Bean2> store = new DirectLogStore<Bean2>(dir, 64 * 1024);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 10000; i++) {
+            b.setId(i);
+            b.setValue(i);
+            store.put(i, b);
+        }
+        for (int i = 0; i < 10000; i += 2) {
+            b.setId(i);
+            b.setValue(-i);
+            store.put(i, b);
+        }
+        for (int i = 0; i < 10000; i += 3) {
+            store.remove(i);
+        }
+
+        // concurrent compactions don't compact the same segment twice
+        store.startBackgroundCompaction(1, 0.5);
+        Thread[] threads = new Thread[3];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        store.compact(0.5);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        checkContent(store);
+
+        store.close();
+        deleteDir(dir);
+    }
+
+    @Test
+    public void test4() throws Exception {
+        File dir = createTempDir();
+        DirectLogStore<Bean2> store = new DirectLogStore<Bean2>(dir, 64 * 1024);
+
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 10000; i++) {
+            b.setId(i);
+            b.setValue(i % 2 == 0 ? -i : i);
+            store.put(i, b);
+        }
+        for (int i = 0; i < 10000; i += 3) {
+            store.remove(i);
+        }
+        store.createBloomFilter(20000, 0.01);
+
+        // the filter is saved before close and attached to the reopened store
+        File filterFile = File.createTempFile("directlogstoretest", null);
+        FileChannel fc = new FileOutputStream(filterFile).getChannel();
+        DirectBloomFilter filter = store.getBloomFilter();
+        filter.write(fc);
+        fc.close();
+        store.close();
+
+        // a closed store is not compacted and doesn't get a filter
+        try {
+            store.compact(0.5);
+            fail();
+        } catch (IllegalStateException e) {
+            // closed
+        }
+        try {
+            store.createBloomFilter(20000, 0.01);
+            fail();
+        } catch (IllegalStateException e) {
+            // closed
+        }
+        store.close();
+
+        // and can't be read or written, its filter is freed
+        try {
+            filter.write(fc);
+            fail();
+        } catch (IllegalStateException e) {
+            // closed
+        }
+        try {
+            store.get(1, b);
+            fail();
+        } catch (IllegalStateException e) {
+            // closed
+        }
+        try {
+            store.put(1, b);
+            fail();
+        } catch (IllegalStateException e) {
+            // closed
+        }
+        try {
+            store.remove(1);
+            fail();
+        } catch (IllegalStateException e) {
+            // closed
+        }
+
+        store = new DirectLogStore<Bean2>(dir, 64 * 1024);
+        fc = new FileInputStream(filterFile).getChannel();
+        filter = DirectBloomFilter.read(fc);
+        fc.close();
+        store.attachBloomFilter(filter);
+        assertTrue(store.getBloomFilter() == filter);
+        checkContent(store);
+        assertFalse(store.get(20000, b));
+
+        store.close();
+        assertTrue(filterFile.delete());
+        deleteDir(dir);
+    }
+
+    @Test
+    public void test5() throws IOException, InterruptedException {
+        File dir = createTempDir();
+        DirectLogStore<Bean2> store = new DirectLogStore<Bean2>(dir, 64 * 1024);
+
+        // segment 1: 700 live keys of 2700. Segment 2: removal records of keys in segment 1, then dead records
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 2700; i++) {
+            b.setId(i);
+            store.put(i, b);
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertTrue(store.remove(i));
+        }
+        for (int loop = 0; loop < 2; loop++) {
+            for (int i = 10000; i < 12000; i++) {
+                b.setId(i);
+                store.put(i, b);
+            }
+        }
+
+        // removal records are live while segment 1 exists: segment 2 is not compacted again and again
+        assertEquals(0, store.compact(0.1));
+        assertEquals(0, store.compact(0.1));
+
+        // once segment 1 is compacted, the removal records are dropped
+        assertTrue(store.compact(0.3) >= 2);
+        checkRemoved(store);
+        store.close();
+
+        store = new DirectLogStore<Bean2>(dir, 64 * 1024);
+        checkRemoved(store);
+        store.close();
+
+        deleteDir(dir);
+    }
+
+    private void checkRemoved(DirectLogStore<Bean2> store) {
+        Bean2 b = new Bean2();
+        for (int i = 0; i < 2700; i++) {
+            assertEquals(i >= 2000, store.get(i, b));
+        }
+        assertEquals(700 + 2000, store.size());
+    }
+
+    private void checkContent(DirectLogStore<Bean2> store) {
+        Bean2 b = new Bean2();
+        int count = 0;
+        for (int i = 0; i < 10000; i++) {
+            if (i % 3 == 0) {
+                assertFalse(store.get(i, b));
+            } else {
+                assertTrue(store.get(i, b));
+                assertEquals(i, b.getId());
+                assertEquals(i % 2 == 0 ? -i : i, b.getValue());
+                count++;
+            }
+        }
+        assertEquals(count, store.size());
+    }
+
+    private int countSegments(File dir) {
+        return dir.listFiles().length;
+    }
+
+    private File createTempDir() throws IOException {
+        File dir = File.createTempFile("directlogstoretest", null);
+        dir.delete();
+        dir.mkdirs();
+        return dir;
+    }
+
+    private void deleteDir(File dir) {
+        for (File f : dir.listFiles()) {
+            f.delete();
+        }
+        dir.delete();
+    }
+}